@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2015 Marten Gajda <marten@dmfs.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.dmfs.provider.tasks;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import android.net.Uri;
+
+
+/**
+ * Collects the {@link Uri}s that have been changed by the transactions of a single thread. The {@link Uri}s of the current transaction are kept apart until
+ * the transaction has been committed, so a rollback doesn't result in any notifications.
+ * <p>
+ * Note that this class is not thread safe. Each thread has its own instance.
+ * </p>
+ *
+ * @author Marten Gajda <marten@dmfs.org>
+ */
+final class ChangeSet
+{
+	/**
+	 * The {@link Uri}s changed by the current transaction.
+	 */
+	private Set<Uri> mPending = new HashSet<Uri>();
+
+	/**
+	 * The {@link Uri}s changed by committed transactions that have not been notified yet.
+	 */
+	private Set<Uri> mCommitted = new HashSet<Uri>();
+
+
+	/**
+	 * Adds a {@link Uri} that has been changed by the current transaction.
+	 *
+	 * @param uri
+	 *            The changed {@link Uri}.
+	 */
+	public void add(Uri uri)
+	{
+		mPending.add(uri);
+	}
+
+
+	/**
+	 * Call this when the current transaction has been committed (or yielded).
+	 */
+	public void commit()
+	{
+		if (mCommitted.isEmpty())
+		{
+			// no need to copy anything
+			Set<Uri> committed = mCommitted;
+			mCommitted = mPending;
+			mPending = committed;
+		}
+		else
+		{
+			mCommitted.addAll(mPending);
+			mPending.clear();
+		}
+	}
+
+
+	/**
+	 * Call this when the current transaction has been rolled back.
+	 */
+	public void rollback()
+	{
+		mPending.clear();
+	}
+
+
+	/**
+	 * Returns the {@link Uri}s of all committed transactions and starts over.
+	 *
+	 * @return A {@link Set} of {@link Uri}s to notify.
+	 */
+	public Set<Uri> drain()
+	{
+		if (mCommitted.isEmpty())
+		{
+			return Collections.emptySet();
+		}
+		Set<Uri> result = mCommitted;
+		mCommitted = new HashSet<Uri>();
+		return result;
+	}
+}
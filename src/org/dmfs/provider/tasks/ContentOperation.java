@@ -24,6 +24,7 @@ import org.dmfs.provider.tasks.TaskContract.Tasks;
 import org.dmfs.provider.tasks.model.CursorContentValuesTaskAdapter;
 import org.dmfs.provider.tasks.model.TaskAdapter;
 import org.dmfs.provider.tasks.processors.tasks.TaskInstancesProcessor;
+import org.dmfs.provider.tasks.recurrence.InstanceRebuilder;
 import org.dmfs.rfc5545.DateTime;
 
 import android.annotation.SuppressLint;
@@ -35,6 +36,7 @@ import android.content.SharedPreferences.Editor;
 import android.content.UriMatcher;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Handler;
@@ -46,30 +48,431 @@ public enum ContentOperation
 	/**
 	 * When the local timezone has been changed we need to update the due and start sorting values. This handler will take care of running the appropriate
 	 * update. In addition it fires an operation to update all notifications.
+	 * <p>
+	 * The sorting values are updated directly in the instances table, in chunks of {@link #CHUNK_SIZE} instances. The transaction is yielded between the
+	 * chunks if other threads are waiting for the database. The tasks themselves are not touched. Only instances with a time zone that start or become due
+	 * at a time when the offsets of the old and the new time zone differ are updated.
+	 * </p>
+	 * <p>
+	 * Along with the time zone id we store a fingerprint of its offset rules. If the rules of the old time zone have changed since, e.g. due to a tzdata
+	 * update, the stored sorting values can't be compared to anything, so all zoned instances are updated.
+	 * </p>
 	 */
 	UPDATE_TIMEZONE(new OperationHandler()
+	{
+		/**
+		 * The time span before and after now that is scanned for offset changes. Instances outside of this span are updated regardless of their offsets.
+		 */
+		private final static long SCAN_SPAN = 5L * 365L * 24L * 3600L * 1000L;
+
+		/**
+		 * The maximum number of ranges in a selection. If there are more ranges, all zoned instances are updated.
+		 */
+		private final static int MAX_RANGES = 64;
+
+		/**
+		 * The time in milliseconds to sleep after yielding the transaction, so the threads that have been waiting can run their transactions.
+		 */
+		private final static long YIELD_SLEEP = 50;
+
+
+		@Override
+		public void handleOperation(Context context, Uri uri, SQLiteDatabase db, ContentValues values)
+		{
+			long start = System.currentTimeMillis();
+			TimeZone localTimeZone = TimeZone.getDefault();
+			SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+			String oldTimeZoneId = prefs.getString(PREFS_KEY_TIMEZONE, null);
+			TimeZone oldTimeZone = oldTimeZoneId == null ? null : TimeZone.getTimeZone(oldTimeZoneId);
+
+			int count = 0;
+			if (oldTimeZone == null || !rulesUnchanged(oldTimeZone, prefs.getString(PREFS_KEY_TIMEZONE_RULES, null)))
+			{
+				// we don't know which offsets the sorting values are based on, update all zoned instances
+				count = updateSorting(db, "1=1", localTimeZone);
+				saveTimeZone(prefs, localTimeZone, start);
+			}
+			else if (!localTimeZone.getID().equals(oldTimeZoneId))
+			{
+				String selection = changedRangesSelection(db, oldTimeZone, localTimeZone);
+				if (selection != null)
+				{
+					count = updateSorting(db, selection, localTimeZone);
+				}
+				saveTimeZone(prefs, localTimeZone, start);
+			}
+
+			Log.i("TaskProvider", "time to update " + count + " instances: " + (System.currentTimeMillis() - start) + " ms");
+
+			if (count > 0)
+			{
+				Utils.notifyAllInstances(context, uri.getAuthority());
+			}
+
+			// now update alarms as well
+			UPDATE_NOTIFICATION_ALARM.fire(context, null);
+		}
+
+
+		/**
+		 * Updates the sorting values of all zoned instances that match the given selection.
+		 *
+		 * @return The number of updated instances.
+		 */
+		private int updateSorting(SQLiteDatabase db, String selection, TimeZone timeZone)
+		{
+			SQLiteStatement statement = db.compileStatement("UPDATE " + TaskDatabaseHelper.Tables.INSTANCES + " SET " + Instances.INSTANCE_START_SORTING
+				+ " = ?, " + Instances.INSTANCE_DUE_SORTING + " = ? WHERE " + Instances._ID + " = ?");
+
+			String[] args = new String[1];
+			long lastId = -1;
+			int count = 0;
+			int chunkCount;
+			try
+			{
+				db.beginTransaction();
+				try
+				{
+					do
+					{
+						chunkCount = 0;
+						args[0] = Long.toString(lastId);
+
+						// all-day and floating instances don't depend on the time zone, so we update zoned instances only
+						Cursor c = db.rawQuery("SELECT i." + Instances._ID + ", i." + Instances.INSTANCE_START + ", i." + Instances.INSTANCE_DUE + " FROM "
+							+ TaskDatabaseHelper.Tables.INSTANCES + " i JOIN " + TaskDatabaseHelper.Tables.TASKS + " t ON (t." + Tasks._ID + " = i."
+							+ Instances.TASK_ID + ") WHERE coalesce(t." + Tasks.IS_ALLDAY + ", 0) = 0 AND t." + Tasks.TZ + " IS NOT NULL AND (" + selection
+							+ ") AND i." + Instances._ID + " > ? ORDER BY i." + Instances._ID + " LIMIT " + CHUNK_SIZE, args);
+						try
+						{
+							while (c.moveToNext())
+							{
+								lastId = c.getLong(0);
+								bindSorting(statement, 1, c, 1, timeZone);
+								bindSorting(statement, 2, c, 2, timeZone);
+								statement.bindLong(3, lastId);
+								statement.execute();
+								++chunkCount;
+							}
+						}
+						finally
+						{
+							c.close();
+						}
+
+						count += chunkCount;
+						Log.v("TaskProvider", "updated sorting of " + count + " instances");
+
+						// if other threads are waiting for the database, commit what we have and let them in
+						db.yieldIfContendedSafely(YIELD_SLEEP);
+					}
+					while (chunkCount == CHUNK_SIZE);
+					db.setTransactionSuccessful();
+				}
+				finally
+				{
+					db.endTransaction();
+				}
+			}
+			finally
+			{
+				statement.close();
+			}
+			return count;
+		}
+
+
+		/**
+		 * Binds the sorting value of the timestamp in the given cursor column to the given statement argument.
+		 */
+		private void bindSorting(SQLiteStatement statement, int index, Cursor cursor, int column, TimeZone timeZone)
+		{
+			if (cursor.isNull(column))
+			{
+				statement.bindNull(index);
+			}
+			else
+			{
+				statement.bindLong(index, new DateTime(timeZone, cursor.getLong(column)).getInstance());
+			}
+		}
+
+
+		/**
+		 * Returns a selection for all instances that start or become due when the offsets of both time zones differ. Only the {@link #SCAN_SPAN} before and
+		 * after now is scanned, instances outside of it are always selected.
+		 *
+		 * @param oldTimeZone
+		 *            The previous time zone.
+		 * @return The selection or <code>null</code> if no instance is affected.
+		 */
+		private String changedRangesSelection(SQLiteDatabase db, TimeZone oldTimeZone, TimeZone newTimeZone)
+		{
+			long min;
+			long max;
+			Cursor c = db.rawQuery("SELECT min(" + Instances.INSTANCE_START + "), max(" + Instances.INSTANCE_START + "), min(" + Instances.INSTANCE_DUE
+				+ "), max(" + Instances.INSTANCE_DUE + ") FROM " + TaskDatabaseHelper.Tables.INSTANCES, null);
+			try
+			{
+				if (!c.moveToFirst() || c.isNull(0) && c.isNull(2))
+				{
+					// no dated instances
+					return null;
+				}
+				min = Math.min(c.isNull(0) ? Long.MAX_VALUE : c.getLong(0), c.isNull(2) ? Long.MAX_VALUE : c.getLong(2));
+				max = Math.max(c.isNull(1) ? Long.MIN_VALUE : c.getLong(1), c.isNull(3) ? Long.MIN_VALUE : c.getLong(3));
+			}
+			finally
+			{
+				c.close();
+			}
+
+			// limit the scan, instances far in the past or in the future may have arbitrary dates
+			long now = System.currentTimeMillis();
+			long scanStart = Math.max(min, now - SCAN_SPAN);
+			long scanEnd = Math.min(max + 1, now + SCAN_SPAN);
+			if (scanStart >= scanEnd)
+			{
+				// all instances are outside of the scanned span
+				return "1=1";
+			}
+
+			StringBuilder selection = new StringBuilder(256);
+			int rangeCount = 0;
+			if (min < scanStart)
+			{
+				appendRange(selection, min, scanStart);
+				++rangeCount;
+			}
+			if (scanEnd <= max)
+			{
+				appendRange(selection, scanEnd, max + 1);
+				++rangeCount;
+			}
+
+			// don't build huge selections, SQLite limits the depth of expressions
+			long[] ranges = offsetChangeRanges(oldTimeZone, newTimeZone, scanStart, scanEnd, MAX_RANGES - rangeCount);
+			if (ranges == null)
+			{
+				return "1=1";
+			}
+
+			for (int i = 0, count = ranges.length; i < count; i += 2)
+			{
+				appendRange(selection, ranges[i], ranges[i + 1]);
+			}
+			return selection.length() == 0 ? null : selection.toString();
+		}
+
+
+		private void appendRange(StringBuilder selection, long from, long to)
+		{
+			if (selection.length() > 0)
+			{
+				selection.append(" OR ");
+			}
+			selection.append("i.").append(Instances.INSTANCE_START).append(" >= ").append(from).append(" AND i.").append(Instances.INSTANCE_START)
+				.append(" < ").append(to);
+			selection.append(" OR i.").append(Instances.INSTANCE_DUE).append(" >= ").append(from).append(" AND i.").append(Instances.INSTANCE_DUE)
+				.append(" < ").append(to);
+		}
+
+
+		/**
+		 * Returns a fingerprint of the offset rules of the given time zone within the given span. The fingerprint contains the span, so the same span can be
+		 * checked again later on, see {@link #rulesUnchanged(TimeZone, String)}.
+		 */
+		private String rulesOf(TimeZone timeZone, long from, long to)
+		{
+			long hash = timeZone.getRawOffset();
+			int offset = timeZone.getOffset(from);
+			hash = 31 * hash + offset;
+			long time = from;
+			while (time < to)
+			{
+				long next = Math.min(time + OFFSET_SCAN_STEP, to);
+				int nextOffset = timeZone.getOffset(next);
+				if (nextOffset != offset)
+				{
+					// find the exact transition
+					long low = time;
+					long high = next;
+					while (high - low > 1)
+					{
+						long mid = low + (high - low) / 2;
+						if (timeZone.getOffset(mid) == offset)
+						{
+							low = mid;
+						}
+						else
+						{
+							high = mid;
+						}
+					}
+					hash = 31 * (31 * hash + high) + nextOffset;
+					offset = nextOffset;
+				}
+				time = next;
+			}
+			return from + "/" + to + "/" + hash;
+		}
+
+
+		/**
+		 * Returns whether the given time zone still has the rules of the given fingerprint, which has been returned by
+		 * {@link #rulesOf(TimeZone, long, long)}.
+		 */
+		private boolean rulesUnchanged(TimeZone timeZone, String rules)
+		{
+			if (rules == null)
+			{
+				return false;
+			}
+
+			String[] parts = rules.split("/");
+			try
+			{
+				return parts.length == 3 && rules.equals(rulesOf(timeZone, Long.parseLong(parts[0]), Long.parseLong(parts[1])));
+			}
+			catch (NumberFormatException e)
+			{
+				return false;
+			}
+		}
+
+
+		@SuppressLint("NewApi")
+		private void saveTimeZone(SharedPreferences prefs, TimeZone timeZone, long now)
+		{
+			Editor editor = prefs.edit();
+			editor.putString(PREFS_KEY_TIMEZONE, timeZone.getID());
+			editor.putString(PREFS_KEY_TIMEZONE_RULES, rulesOf(timeZone, now - SCAN_SPAN, now + SCAN_SPAN));
+			if (Build.VERSION.SDK_INT >= 9)
+			{
+				editor.apply();
+			}
+			else
+			{
+				editor.commit();
+			}
+		}
+	}),
+
+	/**
+	 * Recalculates all instances of all tasks. This is necessary after the way instances are stored has changed. The horizon can be passed in the values
+	 * using {@link TaskInstancesProcessor#addHorizon(ContentValues, long)}.
+	 * <p>
+	 * The instances are expanded in parallel by an {@link InstanceRebuilder}, the tasks themselves are not touched.
+	 * </p>
+	 */
+	REBUILD_INSTANCES(new OperationHandler()
 	{
 		@Override
 		public void handleOperation(Context context, Uri uri, SQLiteDatabase db, ContentValues values)
 		{
 			long start = System.currentTimeMillis();
 
-			// request an update of all instance values
-			ContentValues vals = new ContentValues(1);
-			TaskInstancesProcessor.addUpdateRequest(vals);
+			int count = new InstanceRebuilder(db, TaskInstancesProcessor.horizonOf(values)).rebuild();
 
-			// execute update that triggers a recalculation of all due and start sorting values
-			int count = context.getContentResolver().update(
-				TaskContract.Tasks.getContentUri(uri.getAuthority()).buildUpon().appendQueryParameter(TaskContract.CALLER_IS_SYNCADAPTER, "true").build(),
-				vals, null, null);
+			Log.i("TaskProvider", "time to rebuild " + count + " instances: " + (System.currentTimeMillis() - start) + " ms");
 
-			Log.i("TaskProvider", "time to update " + count + " tasks: " + (System.currentTimeMillis() - start) + " ms");
+			Utils.notifyAllInstances(context, uri.getAuthority());
 
 			// now update alarms as well
 			UPDATE_NOTIFICATION_ALARM.fire(context, null);
 		}
 	}),
 
+	/**
+	 * Pushes the expansion horizon of all recurring tasks forward. The horizon can be passed in the values using
+	 * {@link TaskInstancesProcessor#addHorizon(ContentValues, long)}.
+	 * <p>
+	 * The tasks are expanded in chunks of {@link #EXPANSION_CHUNK_SIZE} tasks per transaction. The run is skipped if the last run has expanded the tasks to
+	 * less than {@link #EXPANSION_SLACK} before the new horizon. Each task continues after its last stored instance, series that have ended before the
+	 * horizon of the last run are skipped.
+	 * </p>
+	 */
+	EXPAND_INSTANCES(new OperationHandler()
+	{
+		@Override
+		public void handleOperation(Context context, Uri uri, SQLiteDatabase db, ContentValues values)
+		{
+			long start = System.currentTimeMillis();
+			long until = start + TaskInstancesProcessor.horizonOf(values);
+
+			SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+			long expanded = prefs.getLong(PREFS_KEY_EXPANDED_UNTIL, Long.MIN_VALUE);
+			if (expanded >= until - EXPANSION_SLACK)
+			{
+				// the stored instances reach far enough
+				return;
+			}
+
+			String[] args = new String[1];
+			long lastId = -1;
+			int count = 0;
+			int chunkCount;
+			do
+			{
+				chunkCount = 0;
+				args[0] = Long.toString(lastId);
+				db.beginTransaction();
+				try
+				{
+					// load the next chunk of recurring tasks
+					Cursor taskCursor = db.query(TaskDatabaseHelper.Tables.TASKS, null, "(" + Tasks.RRULE + " not null or " + Tasks.RDATE
+						+ " not null) and " + Tasks._DELETED + "=0 and " + Tasks._ID + " > ?", args, null, null, Tasks._ID,
+						Integer.toString(EXPANSION_CHUNK_SIZE));
+					try
+					{
+						while (taskCursor.moveToNext())
+						{
+							TaskAdapter task = new CursorContentValuesTaskAdapter(taskCursor, null);
+							count += TaskInstancesProcessor.expandInstances(db, task, expanded, until);
+							lastId = task.id();
+							++chunkCount;
+						}
+					}
+					finally
+					{
+						taskCursor.close();
+					}
+					db.setTransactionSuccessful();
+				}
+				finally
+				{
+					db.endTransaction();
+				}
+			}
+			while (chunkCount == EXPANSION_CHUNK_SIZE);
+
+			saveExpandedUntil(prefs, until);
+
+			Log.i("TaskProvider", "time to insert " + count + " instances: " + (System.currentTimeMillis() - start) + " ms");
+
+			if (count > 0)
+			{
+				Utils.notifyAllInstances(context, uri.getAuthority());
+			}
+		}
+
+
+		@SuppressLint("NewApi")
+		private void saveExpandedUntil(SharedPreferences prefs, long until)
+		{
+			Editor editor = prefs.edit();
+			editor.putLong(PREFS_KEY_EXPANDED_UNTIL, until);
+			if (Build.VERSION.SDK_INT >= 9)
+			{
+				editor.apply();
+			}
+			else
+			{
+				editor.commit();
+			}
+		}
+	}),
+
 	/**
 	 * Takes care of everything we need to send task start and task due broadcasts.
 	 */
@@ -302,6 +705,75 @@ public enum ContentOperation
 			return new DateTime(TimeZone.getDefault(), prefs.getLong(PREFS_KEY_LAST_ALARM_TIMESTAMP, System.currentTimeMillis()));
 		}
 
+	}),
+
+	/**
+	 * Checkpoints the write-ahead log, refreshes the statistics of the query planner and returns free pages to the file system. The time budget can be passed
+	 * in the values using {@link DatabaseMaintenance#addBudget(ContentValues, long)}.
+	 */
+	MAINTENANCE(new OperationHandler()
+	{
+		@Override
+		public void handleOperation(Context context, Uri uri, SQLiteDatabase db, ContentValues values)
+		{
+			new DatabaseMaintenance(db, context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE), DatabaseMaintenance.budgetOf(values)).run();
+		}
+	}),
+
+	/**
+	 * Indexes the full-text-search entries that have been marked as pending. The entries are indexed in chunks of {@link #FTS_CHUNK_SIZE} entries per
+	 * transaction, so writers don't have to wait long.
+	 */
+	INDEX_FTS(new OperationHandler()
+	{
+		@Override
+		public void handleOperation(Context context, Uri uri, SQLiteDatabase db, ContentValues values)
+		{
+			long start = System.currentTimeMillis();
+			int count = 0;
+			int chunk;
+			do
+			{
+				chunk = FTSDatabaseHelper.indexPendingEntries(db, FTS_CHUNK_SIZE);
+				count += chunk;
+			} while (chunk == FTS_CHUNK_SIZE);
+
+			if (count > 0)
+			{
+				Log.i("TaskProvider", "time to index " + count + " pending FTS entries: " + (System.currentTimeMillis() - start) + " ms");
+			}
+		}
+	}),
+
+	/**
+	 * Continues a full-text-search rebuild that has been requested with {@link FtsRebuilder#request(SharedPreferences)}. The progress is broadcast with
+	 * {@link TaskContract#ACTION_FTS_REBUILD_PROGRESS}. Nothing happens if no rebuild is pending.
+	 */
+	REBUILD_FTS(new OperationHandler()
+	{
+		@Override
+		public void handleOperation(final Context context, final Uri uri, SQLiteDatabase db, ContentValues values)
+		{
+			long start = System.currentTimeMillis();
+
+			int count = new FtsRebuilder(db, context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE)).rebuild(new FtsRebuilder.ProgressListener()
+			{
+				@Override
+				public void onProgress(int indexed, int total)
+				{
+					Intent progressIntent = new Intent(TaskContract.ACTION_FTS_REBUILD_PROGRESS);
+					progressIntent.setDataAndType(TaskContract.getContentUri(uri.getAuthority()), TaskContract.MIMETYPE_AUTHORITY);
+					progressIntent.putExtra(TaskContract.EXTRA_FTS_REBUILD_INDEXED, indexed);
+					progressIntent.putExtra(TaskContract.EXTRA_FTS_REBUILD_TOTAL, total);
+					context.sendBroadcast(progressIntent);
+				}
+			});
+
+			if (count > 0)
+			{
+				Log.i("TaskProvider", "time to rebuild FTS entries of " + count + " tasks: " + (System.currentTimeMillis() - start) + " ms");
+			}
+		}
 	});
 
 	/**
@@ -314,13 +786,44 @@ public enum ContentOperation
 	 */
 	private final static String BASE_PATH = "content_operation";
 
+	/**
+	 * The step width to scan for offset changes. Time zone transitions are always more than an hour apart.
+	 */
+	private final static long OFFSET_SCAN_STEP = 3600L * 1000L;
+
+	/**
+	 * The number of rows that bulk operations update within a single transaction.
+	 */
+	private final static int CHUNK_SIZE = 500;
+
+	/**
+	 * The number of pending full-text-search entries that are indexed within a single transaction.
+	 */
+	private final static int FTS_CHUNK_SIZE = 50;
+
+	/**
+	 * The number of recurring tasks that are expanded within a single transaction.
+	 */
+	private final static int EXPANSION_CHUNK_SIZE = 64;
+
+	/**
+	 * How far the stored instances may fall behind the expansion horizon before {@link #EXPAND_INSTANCES} expands them again (one week).
+	 */
+	private final static long EXPANSION_SLACK = 7L * 24L * 3600L * 1000L;
+
 	/**
 	 * The {@link OperationHandler} that handles this {@link ContentOperation}.
 	 */
 	private final OperationHandler mHandler;
 
-	private static final String PREFS_NAME = "org.dmfs.provider.tasks";
+	/**
+	 * The name of the {@link SharedPreferences} of the provider.
+	 */
+	static final String PREFS_NAME = "org.dmfs.provider.tasks";
 	private static final String PREFS_KEY_LAST_ALARM_TIMESTAMP = "org.dmfs.provider.tasks.prefs.LAST_ALARM_TIMESTAMP";
+	private static final String PREFS_KEY_EXPANDED_UNTIL = "org.dmfs.provider.tasks.prefs.EXPANDED_UNTIL";
+	private static final String PREFS_KEY_TIMEZONE = "org.dmfs.provider.tasks.prefs.TIMEZONE";
+	private static final String PREFS_KEY_TIMEZONE_RULES = "org.dmfs.provider.tasks.prefs.TIMEZONE_RULES";
 
 
 	private ContentOperation(OperationHandler handler)
@@ -430,6 +933,114 @@ public enum ContentOperation
 		return values()[id - firstId];
 	}
 
+
+	/**
+	 * Returns the ranges within the given span in which the offsets of the given time zones differ.
+	 * 
+	 * @param oldTimeZone
+	 *            A {@link TimeZone}.
+	 * @param newTimeZone
+	 *            Another {@link TimeZone}.
+	 * @param from
+	 *            The start of the span to scan in milliseconds since the epoch.
+	 * @param to
+	 *            The end of the span to scan in milliseconds since the epoch.
+	 * @param maxRanges
+	 *            The maximum number of ranges to return.
+	 * @return Pairs of start (inclusive) and end (exclusive) timestamps or <code>null</code> if there are more than <code>maxRanges</code> ranges.
+	 */
+	static long[] offsetChangeRanges(TimeZone oldTimeZone, TimeZone newTimeZone, long from, long to, int maxRanges)
+	{
+		// collect the transitions, each range starts and ends with one
+		long[] transitions = new long[32];
+		int transitionCount = 0;
+		boolean differs = offsetDiffers(oldTimeZone, newTimeZone, from);
+		if (differs)
+		{
+			if (maxRanges == 0)
+			{
+				return null;
+			}
+			transitions[transitionCount++] = from;
+		}
+
+		long time = from;
+		while (time < to)
+		{
+			long next = Math.min(time + OFFSET_SCAN_STEP, to);
+			boolean nextDiffers = offsetDiffers(oldTimeZone, newTimeZone, next);
+			if (nextDiffers != differs)
+			{
+				if (!differs && transitionCount == maxRanges * 2)
+				{
+					// another range would start
+					return null;
+				}
+				if (transitionCount == transitions.length)
+				{
+					long[] newTransitions = new long[transitionCount * 2];
+					System.arraycopy(transitions, 0, newTransitions, 0, transitionCount);
+					transitions = newTransitions;
+				}
+				transitions[transitionCount++] = findTransition(oldTimeZone, newTimeZone, time, next, differs);
+				differs = nextDiffers;
+			}
+			time = next;
+		}
+
+		if ((transitionCount & 1) == 1)
+		{
+			// the last range lasts until the end
+			if (transitions[transitionCount - 1] >= to)
+			{
+				--transitionCount;
+			}
+			else
+			{
+				if (transitionCount == transitions.length)
+				{
+					long[] newTransitions = new long[transitionCount + 1];
+					System.arraycopy(transitions, 0, newTransitions, 0, transitionCount);
+					transitions = newTransitions;
+				}
+				transitions[transitionCount++] = to;
+			}
+		}
+
+		long[] result = new long[transitionCount];
+		System.arraycopy(transitions, 0, result, 0, transitionCount);
+		return result;
+	}
+
+
+	private static boolean offsetDiffers(TimeZone oldTimeZone, TimeZone newTimeZone, long time)
+	{
+		return oldTimeZone.getOffset(time) != newTimeZone.getOffset(time);
+	}
+
+
+	/**
+	 * Returns the first time after <code>from</code> at which {@link #offsetDiffers(TimeZone, TimeZone, long)} no longer returns <code>differs</code>.
+	 */
+	private static long findTransition(TimeZone oldTimeZone, TimeZone newTimeZone, long from, long to, boolean differs)
+	{
+		long low = from;
+		long high = to;
+		while (high - low > 1)
+		{
+			long mid = low + (high - low) / 2;
+			if (offsetDiffers(oldTimeZone, newTimeZone, mid) == differs)
+			{
+				low = mid;
+			}
+			else
+			{
+				high = mid;
+			}
+		}
+		return high;
+	}
+
 	public interface OperationHandler
 	{
 		public void handleOperation(Context context, Uri uri, SQLiteDatabase db, ContentValues values);
@@ -0,0 +1,356 @@
+/*
+ * Copyright (C) 2015 Marten Gajda <marten@dmfs.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.dmfs.provider.tasks;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.annotation.SuppressLint;
+import android.content.ContentValues;
+import android.content.SharedPreferences;
+import android.content.SharedPreferences.Editor;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Build;
+import android.util.Log;
+
+
+/**
+ * Keeps the database in shape. A maintenance run checkpoints the write-ahead log, refreshes the statistics of the query planner and returns free pages to the
+ * file system. Each run stops when its time budget has been used up, the next run continues where the last one stopped.
+ * <p>
+ * The statistics are refreshed one table at a time and at most every {@link #ANALYZE_INTERVAL} milliseconds. Free pages can be returned only in
+ * <code>auto_vacuum = INCREMENTAL</code> mode. The mode can't be set when the database is created, because the framework creates its own table before we get
+ * a chance to do so, so the first maintenance run switches the mode and runs a full <code>VACUUM</code> once, regardless of its budget.
+ * </p>
+ *
+ * @author Marten Gajda <marten@dmfs.org>
+ */
+public final class DatabaseMaintenance
+{
+	/**
+	 * The default time budget of a maintenance run in milliseconds.
+	 */
+	public final static long DEFAULT_BUDGET = 500;
+
+	/**
+	 * The key of the time budget in the {@link ContentValues} of a maintenance operation.
+	 */
+	private final static String BUDGET = "org.dmfs.provider.tasks.DatabaseMaintenance.BUDGET";
+
+	/**
+	 * The minimum time between two complete ANALYZE cycles (one week).
+	 */
+	private final static long ANALYZE_INTERVAL = 7L * 24L * 3600L * 1000L;
+
+	/**
+	 * The number of pages to return in one step of the incremental vacuum.
+	 */
+	private final static int VACUUM_PAGES_PER_STEP = 128;
+
+	/**
+	 * The value of the auto_vacuum pragma in incremental mode.
+	 */
+	private final static int AUTO_VACUUM_INCREMENTAL = 2;
+
+	private static final String PREFS_KEY_LAST_ANALYZE = "org.dmfs.provider.tasks.prefs.LAST_ANALYZE";
+	private static final String PREFS_KEY_ANALYZE_POSITION = "org.dmfs.provider.tasks.prefs.ANALYZE_POSITION";
+	private static final String PREFS_KEY_VACUUM_MODE_CHANGED = "org.dmfs.provider.tasks.prefs.VACUUM_MODE_CHANGED";
+
+	private final SQLiteDatabase mDb;
+	private final SharedPreferences mPrefs;
+	private final long mBudget;
+	private long mDeadline;
+
+	/*
+	 * The metrics of the last run.
+	 */
+	private int mWalFrames;
+	private int mCheckpointedFrames;
+	private int mAnalyzedTables;
+	private int mFreedPages;
+
+
+	/**
+	 * Add the time budget of a maintenance run to the given {@link ContentValues}.
+	 *
+	 * @param values
+	 *            The {@link ContentValues} of the maintenance operation.
+	 * @param budget
+	 *            The time budget in milliseconds.
+	 */
+	public static void addBudget(ContentValues values, long budget)
+	{
+		values.put(BUDGET, budget);
+	}
+
+
+	/**
+	 * Returns the time budget stored in the given {@link ContentValues} by {@link #addBudget(ContentValues, long)}.
+	 *
+	 * @param values
+	 *            The {@link ContentValues}, may be <code>null</code>.
+	 * @return The budget in milliseconds or {@link #DEFAULT_BUDGET} if the values don't contain a budget.
+	 */
+	public static long budgetOf(ContentValues values)
+	{
+		Long budget = values == null ? null : values.getAsLong(BUDGET);
+		return budget == null ? DEFAULT_BUDGET : budget;
+	}
+
+
+	/**
+	 * Creates a new {@link DatabaseMaintenance}.
+	 *
+	 * @param db
+	 *            The database to maintain.
+	 * @param prefs
+	 *            The {@link SharedPreferences} that store the progress between two runs.
+	 * @param budget
+	 *            The time budget of a run in milliseconds.
+	 */
+	public DatabaseMaintenance(SQLiteDatabase db, SharedPreferences prefs, long budget)
+	{
+		mDb = db;
+		mPrefs = prefs;
+		mBudget = budget;
+	}
+
+
+	/**
+	 * Runs all maintenance tasks until they're done or the budget has been used up.
+	 */
+	public void run()
+	{
+		long start = System.currentTimeMillis();
+		mDeadline = start + mBudget;
+		mWalFrames = 0;
+		mCheckpointedFrames = 0;
+		mAnalyzedTables = 0;
+		mFreedPages = 0;
+
+		checkpoint();
+
+		if (!expired())
+		{
+			analyze();
+		}
+
+		if (!expired())
+		{
+			vacuum();
+		}
+
+		Log.i("TaskProvider", "database maintenance: checkpointed " + mCheckpointedFrames + " of " + mWalFrames + " WAL frames, analyzed " + mAnalyzedTables
+			+ " tables, freed " + mFreedPages + " pages in " + (System.currentTimeMillis() - start) + " ms");
+	}
+
+
+	private boolean expired()
+	{
+		return System.currentTimeMillis() >= mDeadline;
+	}
+
+
+	/**
+	 * Copies the write-ahead log into the database. If all frames could be copied, the log is truncated, so it doesn't keep the size it had after the last
+	 * large transaction.
+	 */
+	private void checkpoint()
+	{
+		int busy = 1;
+		Cursor c = mDb.rawQuery("PRAGMA wal_checkpoint(PASSIVE)", null);
+		try
+		{
+			if (c.moveToFirst())
+			{
+				busy = c.getInt(0);
+				mWalFrames = Math.max(0, c.getInt(1));
+				mCheckpointedFrames = Math.max(0, c.getInt(2));
+			}
+		}
+		finally
+		{
+			c.close();
+		}
+
+		if (busy == 0 && mWalFrames > 0 && mCheckpointedFrames == mWalFrames && !expired())
+		{
+			// older SQLite versions don't know TRUNCATE and run a passive checkpoint instead
+			pragma("wal_checkpoint(TRUNCATE)");
+		}
+	}
+
+
+	/**
+	 * Refreshes the statistics of the query planner. Each table is analyzed separately, so we can stop at any table and continue with the next one in the
+	 * next run.
+	 */
+	private void analyze()
+	{
+		String position = mPrefs.getString(PREFS_KEY_ANALYZE_POSITION, null);
+		if (position == null && System.currentTimeMillis() - mPrefs.getLong(PREFS_KEY_LAST_ANALYZE, 0) < ANALYZE_INTERVAL)
+		{
+			// statistics are still fresh
+			return;
+		}
+
+		List<String> tables = new ArrayList<String>();
+		Cursor c = mDb.rawQuery(
+			"SELECT name FROM sqlite_master WHERE type = 'table' AND name NOT LIKE 'sqlite_%' AND sql NOT LIKE 'CREATE VIRTUAL%' ORDER BY name", null);
+		try
+		{
+			while (c.moveToNext())
+			{
+				tables.add(c.getString(0));
+			}
+		}
+		finally
+		{
+			c.close();
+		}
+
+		for (String table : tables)
+		{
+			if (position != null && table.compareTo(position) <= 0)
+			{
+				// analyzed in a previous run
+				continue;
+			}
+
+			if (expired())
+			{
+				saveAnalyzeState(position, mPrefs.getLong(PREFS_KEY_LAST_ANALYZE, 0));
+				return;
+			}
+
+			mDb.execSQL("ANALYZE \"" + table + "\"");
+			position = table;
+			++mAnalyzedTables;
+		}
+
+		// all tables have been analyzed
+		saveAnalyzeState(null, System.currentTimeMillis());
+	}
+
+
+	private void saveAnalyzeState(String position, long lastAnalyze)
+	{
+		Editor editor = mPrefs.edit();
+		editor.putString(PREFS_KEY_ANALYZE_POSITION, position);
+		editor.putLong(PREFS_KEY_LAST_ANALYZE, lastAnalyze);
+		save(editor);
+	}
+
+
+	@SuppressLint("NewApi")
+	private void save(Editor editor)
+	{
+		if (Build.VERSION.SDK_INT >= 9)
+		{
+			editor.apply();
+		}
+		else
+		{
+			editor.commit();
+		}
+	}
+
+
+	/**
+	 * Returns free pages to the file system in steps of {@link #VACUUM_PAGES_PER_STEP} pages.
+	 */
+	private void vacuum()
+	{
+		if (DatabaseUtils.longForQuery(mDb, "PRAGMA auto_vacuum", null) != AUTO_VACUUM_INCREMENTAL)
+		{
+			if (!mPrefs.getBoolean(PREFS_KEY_VACUUM_MODE_CHANGED, false))
+			{
+				changeVacuumMode();
+			}
+			return;
+		}
+
+		while (!expired())
+		{
+			long freePages = DatabaseUtils.longForQuery(mDb, "PRAGMA freelist_count", null);
+			if (freePages == 0)
+			{
+				break;
+			}
+
+			int pages = (int) Math.min(freePages, VACUUM_PAGES_PER_STEP);
+
+			// run each step in a transaction, so other threads can write in between
+			mDb.beginTransaction();
+			try
+			{
+				pragma("incremental_vacuum(" + pages + ")");
+				mDb.setTransactionSuccessful();
+			}
+			finally
+			{
+				mDb.endTransaction();
+			}
+			mFreedPages += pages;
+		}
+	}
+
+
+	/**
+	 * Switches the database to incremental auto vacuum. This takes a full <code>VACUUM</code>, which rebuilds the entire database file, so it's tried only
+	 * once.
+	 */
+	private void changeVacuumMode()
+	{
+		long start = System.currentTimeMillis();
+		try
+		{
+			// VACUUM can't run within a transaction, maintenance runs never are
+			mDb.execSQL("PRAGMA auto_vacuum = INCREMENTAL");
+			mDb.execSQL("VACUUM");
+			Log.i("TaskProvider", "switched to incremental auto vacuum in " + (System.currentTimeMillis() - start) + " ms");
+		}
+		catch (SQLException e)
+		{
+			// most likely there is not enough space to copy the database, don't try that again on every run
+			Log.e("TaskProvider", "could not switch to incremental auto vacuum", e);
+		}
+		save(mPrefs.edit().putBoolean(PREFS_KEY_VACUUM_MODE_CHANGED, true));
+	}
+
+
+	/**
+	 * Executes a pragma. Some pragmas return a result, so we have to use a query.
+	 */
+	private void pragma(String pragma)
+	{
+		Cursor c = mDb.rawQuery("PRAGMA " + pragma, null);
+		try
+		{
+			// the pragma is executed when the cursor is filled
+			c.getCount();
+		}
+		finally
+		{
+			c.close();
+		}
+	}
+}
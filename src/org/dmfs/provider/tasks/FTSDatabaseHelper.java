@@ -17,7 +17,10 @@
 
 package org.dmfs.provider.tasks;
 
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
 
 import org.dmfs.ngrams.NGramGenerator;
@@ -27,9 +30,11 @@ import org.dmfs.provider.tasks.TaskContract.Tasks;
 import org.dmfs.provider.tasks.TaskDatabaseHelper.Tables;
 import org.dmfs.provider.tasks.model.TaskAdapter;
 
-import android.content.ContentValues;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
+import android.database.sqlite.SQLiteStatement;
 import android.text.TextUtils;
 
 
@@ -45,14 +50,28 @@ public class FTSDatabaseHelper
 	private final static float SEARCH_RESULTS_MIN_SCORE = 0.4f;
 
 	/**
-	 * A Generator for 3-grams.
+	 * A Generator for 3-grams. {@link NGramGenerator}s are not thread safe, so each thread gets its own.
 	 */
-	private final static NGramGenerator TRIGRAM_GENERATOR = new NGramGenerator(3, 1).setAddSpaceInFront(true);
+	private final static ThreadLocal<NGramGenerator> TRIGRAM_GENERATOR = new ThreadLocal<NGramGenerator>()
+	{
+		@Override
+		protected NGramGenerator initialValue()
+		{
+			return new NGramGenerator(3, 1).setAddSpaceInFront(true);
+		}
+	};
 
 	/**
-	 * A Generator for 4-grams.
+	 * A Generator for 4-grams. {@link NGramGenerator}s are not thread safe, so each thread gets its own.
 	 */
-	private final static NGramGenerator TETRAGRAM_GENERATOR = new NGramGenerator(4, 3 /* shorter words are fully covered by trigrams */).setAddSpaceInFront(true);
+	private final static ThreadLocal<NGramGenerator> TETRAGRAM_GENERATOR = new ThreadLocal<NGramGenerator>()
+	{
+		@Override
+		protected NGramGenerator initialValue()
+		{
+			return new NGramGenerator(4, 3 /* shorter words are fully covered by trigrams */).setAddSpaceInFront(true);
+		}
+	};
 
 	/**
 	 * Search content columns. Defines all the columns for the full text search
@@ -106,6 +125,7 @@ public class FTSDatabaseHelper
 	public static final String FTS_NGRAM_TABLE = "FTS_Ngram";
 	public static final String FTS_TASK_VIEW = "FTS_Task_View";
 	public static final String FTS_TASK_PROPERTY_VIEW = "FTS_Task_Property_View";
+	public static final String FTS_PENDING_TABLE = "FTS_Pending";
 
 	/**
 	 * SQL command to create the table for full text search and contains relationships between ngrams and tasks
@@ -122,12 +142,64 @@ public class FTSDatabaseHelper
 	private final static String SQL_CREATE_NGRAM_TABLE = "CREATE TABLE " + FTS_NGRAM_TABLE + "( " + NGramColumns.NGRAM_ID
 		+ " Integer PRIMARY KEY AUTOINCREMENT, " + NGramColumns.TEXT + " Text)";
 
+	/**
+	 * SQL command to create the table of task entries that wait to be indexed.
+	 */
+	private final static String SQL_CREATE_PENDING_TABLE = "CREATE TABLE " + FTS_PENDING_TABLE + "( " + FTSContentColumns.TASK_ID + " Integer, "
+		+ FTSContentColumns.TYPE + " Integer, UNIQUE (" + FTSContentColumns.TASK_ID + ", " + FTSContentColumns.TYPE + ") ON CONFLICT IGNORE )";
+
 	// FIXME: at present the minimum score is hard coded can we leave that decision to the caller?
-	private final static String SQL_RAW_QUERY_SEARCH_TASK = "SELECT %s " + ", min(1.0*count(*)/?, 1.0) as " + TaskContract.Tasks.SCORE + " from "
+	private final static String SQL_RAW_QUERY_SEARCH_TASK_NGRAMS = "SELECT %s " + ", min(1.0*count(*)/?, 1.0) as " + TaskContract.Tasks.SCORE + " from "
 		+ FTS_NGRAM_TABLE + " join " + FTS_CONTENT_TABLE + " on (" + FTS_NGRAM_TABLE + "." + NGramColumns.NGRAM_ID + "=" + FTS_CONTENT_TABLE + "."
 		+ FTSContentColumns.NGRAM_ID + ") join " + Tables.INSTANCE_VIEW + " on (" + Tables.INSTANCE_VIEW + "." + Tasks._ID + " = " + FTS_CONTENT_TABLE + "."
-		+ FTSContentColumns.TASK_ID + ") where %s group by " + Tasks._ID + " having " + TaskContract.Tasks.SCORE + " >= " + SEARCH_RESULTS_MIN_SCORE
-		+ " order by %s;";
+		+ FTSContentColumns.TASK_ID + ") where %s group by " + Tasks._ID + " having " + TaskContract.Tasks.SCORE + " >= " + SEARCH_RESULTS_MIN_SCORE;
+
+	private final static String SQL_RAW_QUERY_SEARCH_TASK = SQL_RAW_QUERY_SEARCH_TASK_NGRAMS + " order by %s;";
+
+	/**
+	 * The search query to use while there are pending entries. Tasks with pending entries are excluded from the n-gram search, because their n-grams might
+	 * be outdated. Instead their title, location and description are searched for the search string. Note that this means the properties of such a task
+	 * (like its categories) are not searchable until its pending entries have been indexed by {@link ContentOperation#INDEX_FTS}.
+	 */
+	private final static String SQL_RAW_QUERY_SEARCH_TASK_WITH_PENDING = "SELECT * FROM (" + SQL_RAW_QUERY_SEARCH_TASK_NGRAMS + " union all select "
+		+ Tables.INSTANCE_VIEW + ".*, null as " + NGramColumns.TEXT + ", 1.0 as " + TaskContract.Tasks.SCORE + " from " + Tables.INSTANCE_VIEW
+		+ " where %s group by " + Tasks._ID + ") order by %s;";
+
+	/**
+	 * The escape character of the <code>like</code> patterns.
+	 */
+	private final static char LIKE_ESCAPE = '\\';
+
+	private final static String SQL_LIKE = " like ? escape '" + LIKE_ESCAPE + "'";
+
+	private final static String SQL_PENDING_TASK_IDS = "(SELECT " + FTSContentColumns.TASK_ID + " FROM " + FTS_PENDING_TABLE + ")";
+
+	private final static String SQL_QUERY_HAS_PENDING = "SELECT EXISTS (SELECT 1 FROM " + FTS_PENDING_TABLE + ")";
+
+	private final static String SQL_QUERY_PENDING = "SELECT " + FTS_PENDING_TABLE + ".rowid, " + FTS_PENDING_TABLE + "." + FTSContentColumns.TASK_ID + ", "
+		+ FTS_PENDING_TABLE + "." + FTSContentColumns.TYPE + ", " + Tables.TASKS + "." + Tasks._ID + ", " + Tasks.TITLE + ", " + Tasks.LOCATION + ", "
+		+ Tasks.DESCRIPTION + " FROM " + FTS_PENDING_TABLE + " LEFT JOIN " + Tables.TASKS + " ON (" + Tables.TASKS + "." + Tasks._ID + " = "
+		+ FTS_PENDING_TABLE + "." + FTSContentColumns.TASK_ID + ") LIMIT ?";
+
+	private final static String SQL_INSERT_PENDING = "INSERT OR IGNORE INTO " + FTS_PENDING_TABLE + " (" + FTSContentColumns.TASK_ID + ", "
+		+ FTSContentColumns.TYPE + ") VALUES (?, ?)";
+
+	private final static String SQL_DELETE_PENDING = "DELETE FROM " + FTS_PENDING_TABLE + " WHERE rowid = ?";
+
+	private final static String SQL_INSERT_NGRAM = "INSERT OR IGNORE INTO " + FTS_NGRAM_TABLE + " (" + NGramColumns.TEXT + ") VALUES (?)";
+
+	private final static String SQL_QUERY_NGRAM_ID = "SELECT " + NGramColumns.NGRAM_ID + " FROM " + FTS_NGRAM_TABLE + " WHERE " + NGramColumns.TEXT
+		+ " = ?";
+
+	private final static String SQL_INSERT_NGRAM_RELATION = "INSERT OR IGNORE INTO " + FTS_CONTENT_TABLE + " (" + FTSContentColumns.TASK_ID + ", "
+		+ FTSContentColumns.NGRAM_ID + ", " + FTSContentColumns.TYPE + ", " + FTSContentColumns.PROPERTY_ID + ") VALUES (?, ?, ?, ?)";
+
+	private final static String SQL_DELETE_NGRAM_RELATIONS = "DELETE FROM " + FTS_CONTENT_TABLE + " WHERE " + FTSContentColumns.TASK_ID + " = ? AND "
+		+ FTSContentColumns.TYPE + " = ?";
+
+	private final static String SQL_DELETE_PROPERTY_NGRAM_RELATIONS = SQL_DELETE_NGRAM_RELATIONS + " AND " + FTSContentColumns.PROPERTY_ID + " = ?";
+
+	private final static String SQL_DELETE_NGRAM_RELATION = SQL_DELETE_NGRAM_RELATIONS + " AND " + FTSContentColumns.NGRAM_ID + " = ?";
 
 	private final static String SQL_RAW_QUERY_SEARCH_TASK_DEFAULT_PROJECTION = Tables.INSTANCE_VIEW + ".* ," + FTS_NGRAM_TABLE + "." + NGramColumns.TEXT;
 
@@ -172,6 +244,9 @@ public class FTSDatabaseHelper
 	public static void onCreate(SQLiteDatabase db)
 	{
 		initializeFTS(db);
+		db.execSQL(SQL_CREATE_PENDING_TABLE);
+		// the database has been recreated, forget the ids of the old one
+		NGramCache.get(db).clear();
 	}
 
 
@@ -179,14 +254,18 @@ public class FTSDatabaseHelper
 	{
 		if (oldVersion < 8)
 		{
+			// the entries of the existing tasks are created by an FtsRebuilder once the upgrade is complete
 			initializeFTS(db);
-			initializeFTSContent(db);
 		}
 		if (oldVersion < 16)
 		{
 			db.execSQL(TaskDatabaseHelper.createIndexString(FTS_CONTENT_TABLE, true, FTSContentColumns.TYPE, FTSContentColumns.TASK_ID,
 				FTSContentColumns.PROPERTY_ID));
 		}
+		if (oldVersion < 20)
+		{
+			db.execSQL(SQL_CREATE_PENDING_TABLE);
+		}
 	}
 
 
@@ -217,152 +296,294 @@ public class FTSDatabaseHelper
 
 
 	/**
-	 * Creates the FTS entries for the existing tasks.
+	 * Updates the existing searchables entries for the task. Only the relations of the n-grams that have been added to or removed from a field are updated.
 	 * 
 	 * @param db
 	 *            The writable {@link SQLiteDatabase}.
+	 * @param task
+	 *            The {@link TaskAdapter} containing the new values.
 	 */
-	private static void initializeFTSContent(SQLiteDatabase db)
+	public static void updateTaskFTSEntries(SQLiteDatabase db, TaskAdapter task)
 	{
-		String[] task_projection = new String[] { Tasks._ID, Tasks.TITLE, Tasks.DESCRIPTION, Tasks.LOCATION };
-		Cursor c = db.query(Tables.TASKS_PROPERTY_VIEW, task_projection, null, null, null, null, null);
-		while (c.moveToNext())
-		{
-			insertTaskFTSEntries(db, c.getLong(0), c.getString(1), c.getString(2), c.getString(3));
-		}
-		c.close();
-	}
+		NGramCache cache = NGramCache.get(db);
 
-
-	/**
-	 * Inserts the searchable texts of the task in the database.
-	 * 
-	 * @param db
-	 *            The writable {@link SQLiteDatabase}.
-	 * 
-	 * @param taskId
-	 *            The row id of the task.
-	 * @param title
-	 *            The title of the task.
-	 * @param description
-	 *            The description of the task.
-	 */
-	private static void insertTaskFTSEntries(SQLiteDatabase db, long taskId, String title, String description, String location)
-	{
 		// title
-		if (title != null && title.length() > 0)
+		if (task.isUpdated(TaskAdapter.TITLE))
 		{
-			updateEntry(db, taskId, -1, SearchableTypes.TITLE, title);
+			updateEntry(db, cache, task.id(), SearchableTypes.TITLE, task.oldValueOf(TaskAdapter.TITLE), task.valueOf(TaskAdapter.TITLE));
 		}
 
 		// location
-		if (location != null && location.length() > 0)
+		if (task.isUpdated(TaskAdapter.LOCATION))
 		{
-			updateEntry(db, taskId, -1, SearchableTypes.LOCATION, location);
+			updateEntry(db, cache, task.id(), SearchableTypes.LOCATION, task.oldValueOf(TaskAdapter.LOCATION), task.valueOf(TaskAdapter.LOCATION));
 		}
 
 		// description
-		if (description != null && description.length() > 0)
+		if (task.isUpdated(TaskAdapter.DESCRIPTION))
 		{
-			updateEntry(db, taskId, -1, SearchableTypes.DESCRIPTION, description);
+			updateEntry(db, cache, task.id(), SearchableTypes.DESCRIPTION, task.oldValueOf(TaskAdapter.DESCRIPTION), task.valueOf(TaskAdapter.DESCRIPTION));
 		}
 
 	}
 
 
 	/**
-	 * Updates the existing searchables entries for the task.
+	 * Updates or creates the searchable entries for a property. Passing <code>null</code> as searchable text will remove the entry.
+	 * 
+	 * @param db
+	 *            The writable {@link SQLiteDatabase}.
+	 * @param taskId
+	 *            the row id of the task this property belongs to.
+	 * @param propertyId
+	 *            the id of the property
+	 * @param searchableText
+	 *            the searchable text value of the property
+	 */
+	public static void updatePropertyFTSEntry(SQLiteDatabase db, long taskId, long propertyId, String searchableText)
+	{
+		updateEntry(db, NGramCache.get(db), taskId, propertyId, SearchableTypes.PROPERTY, searchableText);
+	}
+
+
+	/**
+	 * Marks the updated searchable entries of the task as pending instead of updating them right away. Pending entries are indexed by
+	 * {@link #indexPendingEntries(SQLiteDatabase, int)} later on. Until then the search falls back to a plain text search in the title, location and
+	 * description of the task, so its properties can't be found in the meantime.
 	 * 
 	 * @param db
 	 *            The writable {@link SQLiteDatabase}.
 	 * @param task
 	 *            The {@link TaskAdapter} containing the new values.
 	 */
-	public static void updateTaskFTSEntries(SQLiteDatabase db, TaskAdapter task)
+	public static void queueTaskFTSEntries(SQLiteDatabase db, TaskAdapter task)
 	{
-		// title
-		if (task.isUpdated(TaskAdapter.TITLE))
+		StatementCache statements = StatementCache.get(db);
+		SQLiteStatement insert = statements.acquire(SQL_INSERT_PENDING);
+		try
 		{
-			updateEntry(db, task.id(), -1, SearchableTypes.TITLE, task.valueOf(TaskAdapter.TITLE));
+			if (task.isUpdated(TaskAdapter.TITLE))
+			{
+				queueEntry(insert, task.id(), SearchableTypes.TITLE);
+			}
+			if (task.isUpdated(TaskAdapter.LOCATION))
+			{
+				queueEntry(insert, task.id(), SearchableTypes.LOCATION);
+			}
+			if (task.isUpdated(TaskAdapter.DESCRIPTION))
+			{
+				queueEntry(insert, task.id(), SearchableTypes.DESCRIPTION);
+			}
 		}
-
-		// location
-		if (task.isUpdated(TaskAdapter.LOCATION))
+		finally
 		{
-			updateEntry(db, task.id(), -1, SearchableTypes.LOCATION, task.valueOf(TaskAdapter.LOCATION));
+			statements.release(SQL_INSERT_PENDING, insert);
 		}
+	}
 
-		// description
-		if (task.isUpdated(TaskAdapter.DESCRIPTION))
-		{
-			updateEntry(db, task.id(), -1, SearchableTypes.DESCRIPTION, task.valueOf(TaskAdapter.DESCRIPTION));
-		}
 
+	private static void queueEntry(SQLiteStatement insert, long taskId, int type)
+	{
+		insert.bindLong(1, taskId);
+		insert.bindLong(2, type);
+		insert.executeInsert();
 	}
 
 
 	/**
-	 * Updates or creates the searchable entries for a property. Passing <code>null</code> as searchable text will remove the entry.
+	 * Indexes up to <code>limit</code> pending entries in a transaction of its own. Entries are indexed with the current text of the task, entries of
+	 * deleted tasks are just dropped.
 	 * 
 	 * @param db
-	 *            The writable {@link SQLiteDatabase}.
-	 * @param taskId
-	 *            the row id of the task this property belongs to.
-	 * @param propertyId
-	 *            the id of the property
-	 * @param searchableText
-	 *            the searchable text value of the property
+	 *            The writable {@link SQLiteDatabase}, must not be in a transaction.
+	 * @param limit
+	 *            The maximum number of entries to index.
+	 * @return The number of entries that have been processed. If this is less than <code>limit</code> there are no more pending entries.
 	 */
-	public static void updatePropertyFTSEntry(SQLiteDatabase db, long taskId, long propertyId, String searchableText)
+	public static int indexPendingEntries(SQLiteDatabase db, int limit)
 	{
-		updateEntry(db, taskId, propertyId, SearchableTypes.PROPERTY, searchableText);
+		NGramCache cache = NGramCache.get(db);
+		StatementCache statements = StatementCache.get(db);
+		int count = 0;
+		boolean success = false;
+		db.beginTransaction();
+		try
+		{
+			SQLiteStatement delete = statements.acquire(SQL_DELETE_PENDING);
+			Cursor c = db.rawQuery(SQL_QUERY_PENDING, new String[] { String.valueOf(limit) });
+			try
+			{
+				while (c.moveToNext())
+				{
+					if (!c.isNull(3))
+					{
+						int type = c.getInt(2);
+						String text = type == SearchableTypes.TITLE ? c.getString(4) : type == SearchableTypes.LOCATION ? c.getString(5) : c.getString(6);
+						updateEntry(db, cache, c.getLong(1), -1, type, text);
+					}
+					// else the task has been deleted in the meantime
+
+					delete.bindLong(1, c.getLong(0));
+					delete.execute();
+					++count;
+				}
+			}
+			finally
+			{
+				c.close();
+				statements.release(SQL_DELETE_PENDING, delete);
+			}
+			db.setTransactionSuccessful();
+			success = true;
+		}
+		finally
+		{
+			db.endTransaction();
+			// this transaction doesn't run through the provider, so we have to take care of the cache ourselves
+			if (success)
+			{
+				cache.commit();
+			}
+			else
+			{
+				cache.rollback();
+			}
+		}
+		return count;
 	}
 
 
 	/**
-	 * Inserts NGrams into the NGram database.
+	 * Inserts NGrams into the NGram database. NGrams found in the given {@link NGramCache} are not inserted again.
 	 * 
 	 * @param db
 	 *            A writable {@link SQLiteDatabase}.
+	 * @param cache
+	 *            The {@link NGramCache} to use or <code>null</code>.
 	 * @param ngrams
 	 *            The set of NGrams.
-	 * @return The ids of the ngrams in the given set.
+	 * @return The ids of the ngrams in the given set mapped by their text.
 	 */
-	private static Set<Long> insertNGrams(SQLiteDatabase db, Set<String> ngrams)
+	static Map<String, Long> insertNGrams(SQLiteDatabase db, NGramCache cache, Set<String> ngrams)
 	{
-		Set<Long> nGramIds = new HashSet<Long>(ngrams.size());
-		ContentValues values = new ContentValues(1);
-		for (String ngram : ngrams)
+		Map<String, Long> nGramIds = new HashMap<String, Long>(ngrams.size() * 2);
+		StatementCache statements = StatementCache.get(db);
+		SQLiteStatement insert = null;
+		SQLiteStatement query = null;
+		try
 		{
-			values.put(NGramColumns.TEXT, ngram);
-			long nGramId = db.insertWithOnConflict(FTS_NGRAM_TABLE, null, values, SQLiteDatabase.CONFLICT_IGNORE);
-			if (nGramId == -1)
+			for (String ngram : ngrams)
 			{
-				// the docs say insertWithOnConflict returns the existing row id when CONFLICT_IGNORE is specified an the values conflict with an existing
-				// column, however, that doesn't seem to work reliably, so we when for an error condition and get the row id ourselves
-				Cursor c = db
-					.query(FTS_NGRAM_TABLE, new String[] { NGramColumns.NGRAM_ID }, NGramColumns.TEXT + "=?", new String[] { ngram }, null, null, null);
-				try
+				Long cachedId = cache == null ? null : cache.get(ngram);
+				if (cachedId != null)
 				{
-					if (c.moveToFirst())
+					nGramIds.put(ngram, cachedId);
+					continue;
+				}
+
+				if (insert == null)
+				{
+					insert = statements.acquire(SQL_INSERT_NGRAM);
+				}
+				insert.bindString(1, ngram);
+				long nGramId = insert.executeInsert();
+				if (nGramId == -1)
+				{
+					// the n-gram exists already, get the row id ourselves
+					if (query == null)
+					{
+						query = statements.acquire(SQL_QUERY_NGRAM_ID);
+					}
+					query.bindString(1, ngram);
+					try
 					{
-						nGramId = c.getLong(0);
+						nGramId = query.simpleQueryForLong();
+					}
+					catch (SQLiteDoneException e)
+					{
+						// no such n-gram, this should not happen
 					}
 				}
-				finally
+				if (cache != null && nGramId != -1)
 				{
-					c.close();
+					cache.put(ngram, nGramId);
 				}
-
+				nGramIds.put(ngram, nGramId);
+			}
+		}
+		finally
+		{
+			if (insert != null)
+			{
+				statements.release(SQL_INSERT_NGRAM, insert);
+			}
+			if (query != null)
+			{
+				statements.release(SQL_QUERY_NGRAM_ID, query);
 			}
-			nGramIds.add(nGramId);
 		}
 		return nGramIds;
 
 	}
 
 
-	private static void updateEntry(SQLiteDatabase db, long taskId, long propertyId, int type, String searchableText)
+	/**
+	 * Returns the ids of the given NGrams without inserting any missing NGrams.
+	 * 
+	 * @param db
+	 *            A {@link SQLiteDatabase}.
+	 * @param cache
+	 *            The {@link NGramCache} to use or <code>null</code>.
+	 * @param ngrams
+	 *            The set of NGrams.
+	 * @return The ids of the NGrams in the given set that exist in the database.
+	 */
+	private static Set<Long> queryNGramIds(SQLiteDatabase db, NGramCache cache, Set<String> ngrams)
+	{
+		Set<Long> nGramIds = new HashSet<Long>(ngrams.size());
+		StatementCache statements = StatementCache.get(db);
+		SQLiteStatement query = null;
+		try
+		{
+			for (String ngram : ngrams)
+			{
+				Long nGramId = cache == null ? null : cache.get(ngram);
+				if (nGramId == null)
+				{
+					if (query == null)
+					{
+						query = statements.acquire(SQL_QUERY_NGRAM_ID);
+					}
+					query.bindString(1, ngram);
+					try
+					{
+						nGramId = query.simpleQueryForLong();
+					}
+					catch (SQLiteDoneException e)
+					{
+						// the n-gram doesn't exist, so there is no relation to it either
+						continue;
+					}
+					if (cache != null)
+					{
+						cache.put(ngram, nGramId);
+					}
+				}
+				nGramIds.add(nGramId);
+			}
+		}
+		finally
+		{
+			if (query != null)
+			{
+				statements.release(SQL_QUERY_NGRAM_ID, query);
+			}
+		}
+		return nGramIds;
+	}
+
+
+	private static void updateEntry(SQLiteDatabase db, NGramCache cache, long taskId, long propertyId, int type, String searchableText)
 	{
 		// delete existing NGram relations
 		deleteNGramRelations(db, taskId, propertyId, type);
@@ -370,12 +591,12 @@ public class FTSDatabaseHelper
 		if (searchableText != null && searchableText.length() > 0)
 		{
 			// generate nGrams
-			Set<String> propertyNgrams = TRIGRAM_GENERATOR.getNgrams(searchableText);
+			Set<String> propertyNgrams = TRIGRAM_GENERATOR.get().getNgrams(searchableText);
 
-			TETRAGRAM_GENERATOR.getNgrams(propertyNgrams, searchableText);
+			TETRAGRAM_GENERATOR.get().getNgrams(propertyNgrams, searchableText);
 
 			// insert ngrams
-			Set<Long> propertyNgramIds = insertNGrams(db, propertyNgrams);
+			Collection<Long> propertyNgramIds = insertNGrams(db, cache, propertyNgrams).values();
 
 			// insert ngram relations
 			insertNGramRelations(db, propertyNgramIds, taskId, propertyId, type);
@@ -383,13 +604,77 @@ public class FTSDatabaseHelper
 	}
 
 
+	/**
+	 * Updates the searchable entry of a task field by inserting and deleting only the relations of n-grams that are in just one of the old and the new text.
+	 * If most of the old n-grams are gone it's cheaper to replace the entire entry, so that's what happens in that case.
+	 * 
+	 * @param db
+	 *            The writable {@link SQLiteDatabase}.
+	 * @param cache
+	 *            The {@link NGramCache} to use or <code>null</code>.
+	 * @param taskId
+	 *            The row id of the task.
+	 * @param type
+	 *            The {@link SearchableTypes} type, must not be {@link SearchableTypes#PROPERTY}.
+	 * @param oldText
+	 *            The text that has been indexed so far, may be <code>null</code>.
+	 * @param newText
+	 *            The text to index, may be <code>null</code>.
+	 */
+	static void updateEntry(SQLiteDatabase db, NGramCache cache, long taskId, int type, String oldText, String newText)
+	{
+		Set<String> oldNgrams = ngramsOf(oldText);
+		Set<String> addedNgrams = ngramsOf(newText);
+
+		Set<String> removedNgrams = new HashSet<String>(oldNgrams);
+		removedNgrams.removeAll(addedNgrams);
+
+		if (removedNgrams.size() * 2 > oldNgrams.size())
+		{
+			updateEntry(db, cache, taskId, -1, type, newText);
+			return;
+		}
+
+		addedNgrams.removeAll(oldNgrams);
+
+		if (!removedNgrams.isEmpty())
+		{
+			deleteNGramRelations(db, queryNGramIds(db, cache, removedNgrams), taskId, type);
+		}
+
+		if (!addedNgrams.isEmpty())
+		{
+			insertNGramRelations(db, insertNGrams(db, cache, addedNgrams).values(), taskId, -1L, type);
+		}
+	}
+
+
+	/**
+	 * Returns the n-grams of the given text.
+	 * 
+	 * @param text
+	 *            The text, may be <code>null</code>.
+	 * @return A modifiable {@link Set} of n-grams, empty if the text is <code>null</code> or empty.
+	 */
+	static Set<String> ngramsOf(String text)
+	{
+		if (text == null || text.length() == 0)
+		{
+			return new HashSet<String>();
+		}
+		Set<String> ngrams = TRIGRAM_GENERATOR.get().getNgrams(text);
+		TETRAGRAM_GENERATOR.get().getNgrams(ngrams, text);
+		return ngrams;
+	}
+
+
 	/**
 	 * Inserts NGrams relations for a task entry.
 	 * 
 	 * @param db
 	 *            A writable {@link SQLiteDatabase}.
 	 * @param ngramIds
-	 *            The set of NGram ids.
+	 *            The NGram ids.
 	 * @param taskId
 	 *            The row id of the task.
 	 * @param propertyId
@@ -397,23 +682,31 @@ public class FTSDatabaseHelper
 	 * @param The
 	 *            entry type of the relation (title, description, property).
 	 */
-	private static void insertNGramRelations(SQLiteDatabase db, Set<Long> ngramIds, long taskId, Long propertyId, int contentType)
+	static void insertNGramRelations(SQLiteDatabase db, Collection<Long> ngramIds, long taskId, Long propertyId, int contentType)
 	{
-		ContentValues values = new ContentValues(4);
-		for (Long ngramId : ngramIds)
+		StatementCache statements = StatementCache.get(db);
+		SQLiteStatement insert = statements.acquire(SQL_INSERT_NGRAM_RELATION);
+		try
 		{
-			values.put(FTSContentColumns.TASK_ID, taskId);
-			values.put(FTSContentColumns.NGRAM_ID, ngramId);
-			values.put(FTSContentColumns.TYPE, contentType);
-			if (contentType == SearchableTypes.PROPERTY)
+			for (Long ngramId : ngramIds)
 			{
-				values.put(FTSContentColumns.PROPERTY_ID, propertyId);
-			}
-			else
-			{
-				values.putNull(FTSContentColumns.PROPERTY_ID);
+				insert.bindLong(1, taskId);
+				insert.bindLong(2, ngramId);
+				insert.bindLong(3, contentType);
+				if (contentType == SearchableTypes.PROPERTY)
+				{
+					insert.bindLong(4, propertyId);
+				}
+				else
+				{
+					insert.bindNull(4);
+				}
+				insert.executeInsert();
 			}
-			db.insertWithOnConflict(FTS_CONTENT_TABLE, null, values, SQLiteDatabase.CONFLICT_IGNORE);
+		}
+		finally
+		{
+			statements.release(SQL_INSERT_NGRAM_RELATION, insert);
 		}
 
 	}
@@ -430,17 +723,59 @@ public class FTSDatabaseHelper
 	 *            The property row id, ignored if <code>contentType</code> is not {@link SearchableTypes#PROPERTY}.
 	 * @param contentType
 	 *            The {@link SearchableTypes} type.
-	 * @return The number of deleted relations.
 	 */
-	private static int deleteNGramRelations(SQLiteDatabase db, long taskId, long propertyId, int contentType)
+	private static void deleteNGramRelations(SQLiteDatabase db, long taskId, long propertyId, int contentType)
+	{
+		String sql = contentType == SearchableTypes.PROPERTY ? SQL_DELETE_PROPERTY_NGRAM_RELATIONS : SQL_DELETE_NGRAM_RELATIONS;
+		StatementCache statements = StatementCache.get(db);
+		SQLiteStatement delete = statements.acquire(sql);
+		try
+		{
+			delete.bindLong(1, taskId);
+			delete.bindLong(2, contentType);
+			if (contentType == SearchableTypes.PROPERTY)
+			{
+				delete.bindLong(3, propertyId);
+			}
+			delete.execute();
+		}
+		finally
+		{
+			statements.release(sql, delete);
+		}
+	}
+
+
+	/**
+	 * Deletes the relations of the given NGrams to a task field.
+	 * 
+	 * @param db
+	 *            The writable {@link SQLiteDatabase}.
+	 * @param ngramIds
+	 *            The ids of the NGrams.
+	 * @param taskId
+	 *            The task row id.
+	 * @param contentType
+	 *            The {@link SearchableTypes} type, must not be {@link SearchableTypes#PROPERTY}.
+	 */
+	private static void deleteNGramRelations(SQLiteDatabase db, Set<Long> ngramIds, long taskId, int contentType)
 	{
-		StringBuilder whereClause = new StringBuilder(FTSContentColumns.TASK_ID).append(" = ").append(taskId);
-		whereClause.append(" AND ").append(FTSContentColumns.TYPE).append(" = ").append(contentType);
-		if (contentType == SearchableTypes.PROPERTY)
+		StatementCache statements = StatementCache.get(db);
+		SQLiteStatement delete = statements.acquire(SQL_DELETE_NGRAM_RELATION);
+		try
+		{
+			for (Long ngramId : ngramIds)
+			{
+				delete.bindLong(1, taskId);
+				delete.bindLong(2, contentType);
+				delete.bindLong(3, ngramId);
+				delete.execute();
+			}
+		}
+		finally
 		{
-			whereClause.append(" AND ").append(FTSContentColumns.PROPERTY_ID).append(" = ").append(propertyId);
+			statements.release(SQL_DELETE_NGRAM_RELATION, delete);
 		}
-		return db.delete(FTS_CONTENT_TABLE, whereClause.toString(), null);
 	}
 
 
@@ -478,8 +813,8 @@ public class FTSDatabaseHelper
 			selectionBuilder.append(" (");
 		}
 
-		Set<String> ngrams = TRIGRAM_GENERATOR.getNgrams(searchString);
-		TETRAGRAM_GENERATOR.getNgrams(ngrams, searchString);
+		Set<String> ngrams = TRIGRAM_GENERATOR.get().getNgrams(searchString);
+		TETRAGRAM_GENERATOR.get().getNgrams(ngrams, searchString);
 
 		String[] queryArgs;
 
@@ -521,7 +856,7 @@ public class FTSDatabaseHelper
 		else
 		{
 			selectionBuilder.append(NGramColumns.TEXT);
-			selectionBuilder.append(" like ?");
+			selectionBuilder.append(SQL_LIKE);
 
 			// selection arguments
 			if (selectionArgs != null && selectionArgs.length > 0)
@@ -529,13 +864,13 @@ public class FTSDatabaseHelper
 				queryArgs = new String[selectionArgs.length + 2];
 				queryArgs[0] = String.valueOf(ngrams.size());
 				System.arraycopy(selectionArgs, 0, queryArgs, 1, selectionArgs.length);
-				queryArgs[queryArgs.length - 1] = " " + searchString + "%";
+				queryArgs[queryArgs.length - 1] = " " + escapeLike(searchString) + "%";
 			}
 			else
 			{
 				queryArgs = new String[2];
 				queryArgs[0] = String.valueOf(ngrams.size());
-				queryArgs[1] = " " + searchString + "%";
+				queryArgs[1] = " " + escapeLike(searchString) + "%";
 			}
 
 		}
@@ -544,6 +879,15 @@ public class FTSDatabaseHelper
 		selectionBuilder.append(Tasks._DELETED);
 		selectionBuilder.append(" = 0");
 
+		boolean hasPending = searchString != null && searchString.length() > 0 && DatabaseUtils.longForQuery(db, SQL_QUERY_HAS_PENDING, null) != 0;
+		if (hasPending)
+		{
+			selectionBuilder.append(" AND ");
+			selectionBuilder.append(Tasks._ID);
+			selectionBuilder.append(" NOT IN ");
+			selectionBuilder.append(SQL_PENDING_TASK_IDS);
+		}
+
 		if (sortOrder == null)
 		{
 			sortOrder = Tasks.SCORE + " desc";
@@ -553,8 +897,87 @@ public class FTSDatabaseHelper
 			sortOrder = Tasks.SCORE + " desc, " + sortOrder;
 		}
 
+		if (hasPending)
+		{
+			return getTaskSearchCursorWithPending(db, searchString, selection, selectionArgs, sortOrder, selectionBuilder.toString(), queryArgs);
+		}
+
 		Cursor c = db.rawQueryWithFactory(null,
 			String.format(SQL_RAW_QUERY_SEARCH_TASK, SQL_RAW_QUERY_SEARCH_TASK_DEFAULT_PROJECTION, selectionBuilder.toString(), sortOrder), queryArgs, null);
 		return c;
 	}
+
+
+	/**
+	 * Runs the search query while there are pending entries. The result of the n-gram search is merged with the tasks with pending entries that contain the
+	 * search string in their title, location or description. The properties of tasks with pending entries are not searched.
+	 */
+	private static Cursor getTaskSearchCursorWithPending(SQLiteDatabase db, String searchString, String selection, String[] selectionArgs,
+		String sortOrder, String ngramSelection, String[] ngramArgs)
+	{
+		StringBuilder pendingSelection = new StringBuilder(256);
+		if (!TextUtils.isEmpty(selection))
+		{
+			pendingSelection.append("(");
+			pendingSelection.append(selection);
+			pendingSelection.append(") AND ");
+		}
+		pendingSelection.append(Tasks._DELETED);
+		pendingSelection.append(" = 0 AND ");
+		pendingSelection.append(Tasks._ID);
+		pendingSelection.append(" IN ");
+		pendingSelection.append(SQL_PENDING_TASK_IDS);
+		pendingSelection.append(" AND (");
+		pendingSelection.append(Tasks.TITLE);
+		pendingSelection.append(SQL_LIKE);
+		pendingSelection.append(" OR ");
+		pendingSelection.append(Tasks.LOCATION);
+		pendingSelection.append(SQL_LIKE);
+		pendingSelection.append(" OR ");
+		pendingSelection.append(Tasks.DESCRIPTION);
+		pendingSelection.append(SQL_LIKE);
+		pendingSelection.append(")");
+
+		int selectionArgCount = selectionArgs == null ? 0 : selectionArgs.length;
+		String[] queryArgs = new String[ngramArgs.length + selectionArgCount + 3];
+		System.arraycopy(ngramArgs, 0, queryArgs, 0, ngramArgs.length);
+		if (selectionArgCount > 0)
+		{
+			System.arraycopy(selectionArgs, 0, queryArgs, ngramArgs.length, selectionArgCount);
+		}
+		String pattern = "%" + escapeLike(searchString) + "%";
+		queryArgs[queryArgs.length - 3] = pattern;
+		queryArgs[queryArgs.length - 2] = pattern;
+		queryArgs[queryArgs.length - 1] = pattern;
+
+		return db.rawQueryWithFactory(null, String.format(SQL_RAW_QUERY_SEARCH_TASK_WITH_PENDING, SQL_RAW_QUERY_SEARCH_TASK_DEFAULT_PROJECTION,
+			ngramSelection, pendingSelection.toString(), sortOrder), queryArgs, null);
+	}
+
+
+	/**
+	 * Escapes the wildcards of a <code>like</code> pattern in the given text, so it matches literally when used with {@link #SQL_LIKE}.
+	 * 
+	 * @param text
+	 *            The text to escape, may be <code>null</code>.
+	 * @return The escaped text.
+	 */
+	static String escapeLike(String text)
+	{
+		if (text == null)
+		{
+			return null;
+		}
+		StringBuilder result = new StringBuilder(text.length() + 8);
+		for (int i = 0, length = text.length(); i < length; ++i)
+		{
+			char c = text.charAt(i);
+			if (c == '%' || c == '_' || c == LIKE_ESCAPE)
+			{
+				result.append(LIKE_ESCAPE);
+			}
+			result.append(c);
+		}
+		return result.toString();
+	}
 }
@@ -0,0 +1,410 @@
+/*
+ * Copyright (C) 2015 Marten Gajda <marten@dmfs.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.dmfs.provider.tasks;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+
+import org.dmfs.provider.tasks.FTSDatabaseHelper.FTSContentColumns;
+import org.dmfs.provider.tasks.FTSDatabaseHelper.SearchableTypes;
+import org.dmfs.provider.tasks.TaskContract.Properties;
+import org.dmfs.provider.tasks.TaskContract.Property.Category;
+import org.dmfs.provider.tasks.TaskContract.Tasks;
+import org.dmfs.provider.tasks.TaskDatabaseHelper.Tables;
+
+import android.annotation.SuppressLint;
+import android.content.SharedPreferences;
+import android.content.SharedPreferences.Editor;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Build;
+import android.os.SystemClock;
+import android.util.Log;
+
+
+/**
+ * Rebuilds the full-text-search entries of all tasks and their properties. The tasks are read in pages of {@link #TASKS_PER_TRANSACTION} tasks. The n-grams
+ * of each page are generated by a {@link WorkerPool}, the calling thread merges them and is the only one that writes to the database.
+ * <p>
+ * Each page is read, indexed and written within a single transaction, so the index stays usable and other threads get access to the database between the
+ * pages. The id of the last task of each page is stored in the {@link SharedPreferences}, so a rebuild that has been interrupted by the death of the process
+ * continues where it stopped.
+ * </p>
+ *
+ * @author Marten Gajda <marten@dmfs.org>
+ */
+final class FtsRebuilder
+{
+	/**
+	 * The number of tasks that are indexed within a single transaction.
+	 */
+	private final static int TASKS_PER_TRANSACTION = 128;
+
+	/**
+	 * The number of entries a worker indexes in one go.
+	 */
+	private final static int ENTRIES_PER_JOB = 32;
+
+	/**
+	 * The minimum time in milliseconds between two progress reports.
+	 */
+	private final static long PROGRESS_INTERVAL = 1000;
+
+	/**
+	 * The id of the last task that has been indexed or -1 if the rebuild has not indexed any task yet. This is only present while a rebuild is pending.
+	 */
+	private static final String PREFS_KEY_POSITION = "org.dmfs.provider.tasks.prefs.FTS_REBUILD_POSITION";
+
+	private final static String[] TASK_PROJECTION = { Tasks._ID, Tasks.TITLE, Tasks.LOCATION, Tasks.DESCRIPTION };
+
+	private final static String[] CATEGORY_PROJECTION = { Properties.TASK_ID, Properties.PROPERTY_ID, Category.CATEGORY_NAME };
+
+	/**
+	 * Receives the progress of a rebuild.
+	 */
+	public interface ProgressListener
+	{
+		/**
+		 * Called on the rebuilding thread after some tasks have been indexed.
+		 *
+		 * @param indexed
+		 *            The number of tasks that have been indexed so far.
+		 * @param total
+		 *            The total number of tasks.
+		 */
+		public void onProgress(int indexed, int total);
+	}
+
+	private final SQLiteDatabase mDb;
+	private final SharedPreferences mPrefs;
+	private final int mThreadCount;
+
+
+	/**
+	 * Marks a rebuild as pending. The rebuild starts from scratch the next time {@link #rebuild(ProgressListener)} is called.
+	 *
+	 * @param prefs
+	 *            The {@link SharedPreferences} that store the progress.
+	 */
+	public static void request(SharedPreferences prefs)
+	{
+		// make sure the request survives the death of the process
+		prefs.edit().putLong(PREFS_KEY_POSITION, -1).commit();
+	}
+
+
+	/**
+	 * Returns whether a rebuild has been requested and not finished yet.
+	 *
+	 * @param prefs
+	 *            The {@link SharedPreferences} that store the progress.
+	 * @return <code>true</code> if a rebuild is pending.
+	 */
+	public static boolean isPending(SharedPreferences prefs)
+	{
+		return prefs.contains(PREFS_KEY_POSITION);
+	}
+
+
+	/**
+	 * Creates an {@link FtsRebuilder} that uses one worker per available processor.
+	 *
+	 * @param db
+	 *            The {@link SQLiteDatabase}.
+	 * @param prefs
+	 *            The {@link SharedPreferences} that store the progress.
+	 */
+	public FtsRebuilder(SQLiteDatabase db, SharedPreferences prefs)
+	{
+		this(db, prefs, Runtime.getRuntime().availableProcessors());
+	}
+
+
+	/**
+	 * Creates an {@link FtsRebuilder} with the given number of workers.
+	 *
+	 * @param db
+	 *            The {@link SQLiteDatabase}.
+	 * @param prefs
+	 *            The {@link SharedPreferences} that store the progress.
+	 * @param threadCount
+	 *            The number of worker threads.
+	 */
+	public FtsRebuilder(SQLiteDatabase db, SharedPreferences prefs, int threadCount)
+	{
+		mDb = db;
+		mPrefs = prefs;
+		mThreadCount = Math.max(1, threadCount);
+	}
+
+
+	/**
+	 * Continues a pending rebuild. This blocks until all remaining tasks have been indexed. Nothing happens if no rebuild is pending.
+	 *
+	 * @param listener
+	 *            A {@link ProgressListener} or <code>null</code>.
+	 * @return The number of tasks that have been indexed by this call.
+	 */
+	public int rebuild(ProgressListener listener)
+	{
+		if (!isPending(mPrefs))
+		{
+			return 0;
+		}
+
+		long lastId = mPrefs.getLong(PREFS_KEY_POSITION, -1);
+		int total = (int) DatabaseUtils.longForQuery(mDb, "SELECT count(*) FROM " + Tables.TASKS, null);
+		int indexed = (int) DatabaseUtils.longForQuery(mDb, "SELECT count(*) FROM " + Tables.TASKS + " WHERE " + Tasks._ID + " <= ?",
+			new String[] { Long.toString(lastId) });
+		int taskCount = 0;
+
+		WorkerPool<Void> workers = new WorkerPool<Void>("FtsRebuilder", mThreadCount);
+
+		SQLiteStatement deleteContent = mDb.compileStatement("DELETE FROM " + FTSDatabaseHelper.FTS_CONTENT_TABLE + " WHERE "
+			+ FTSContentColumns.TASK_ID + " BETWEEN ? AND ?");
+		SQLiteStatement deletePending = mDb.compileStatement("DELETE FROM " + FTSDatabaseHelper.FTS_PENDING_TABLE + " WHERE "
+			+ FTSContentColumns.TASK_ID + " BETWEEN ? AND ?");
+
+		NGramCache cache = NGramCache.get(mDb);
+		long lastReport = SystemClock.elapsedRealtime();
+		try
+		{
+			int pageSize;
+			do
+			{
+				boolean success = false;
+				mDb.beginTransaction();
+				try
+				{
+					List<Entry> entries = new ArrayList<Entry>(TASKS_PER_TRANSACTION * 4);
+					pageSize = loadTasks(lastId, entries);
+					if (pageSize > 0)
+					{
+						long firstId = entries.get(0).taskId;
+						lastId = entries.get(entries.size() - 1).taskId;
+						loadCategories(firstId, lastId, entries);
+
+						// the page contains all tasks in [firstId, lastId], so we can remove their entries at once
+						deleteContent.bindLong(1, firstId);
+						deleteContent.bindLong(2, lastId);
+						deleteContent.execute();
+						deletePending.bindLong(1, firstId);
+						deletePending.bindLong(2, lastId);
+						deletePending.execute();
+
+						indexPage(workers, cache, entries);
+					}
+					mDb.setTransactionSuccessful();
+					success = true;
+				}
+				finally
+				{
+					mDb.endTransaction();
+					// this transaction doesn't run through the provider, so we have to take care of the cache ourselves
+					if (success)
+					{
+						cache.commit();
+					}
+					else
+					{
+						cache.rollback();
+					}
+				}
+
+				taskCount += pageSize;
+				savePosition(lastId);
+
+				long now = SystemClock.elapsedRealtime();
+				if (listener != null && now - lastReport >= PROGRESS_INTERVAL)
+				{
+					listener.onProgress(Math.min(indexed + taskCount, total), total);
+					lastReport = now;
+				}
+			}
+			while (pageSize == TASKS_PER_TRANSACTION);
+
+			mPrefs.edit().remove(PREFS_KEY_POSITION).commit();
+			Log.v("TaskProvider", "rebuilt FTS entries of " + taskCount + " tasks");
+			if (listener != null)
+			{
+				listener.onProgress(total, total);
+			}
+		}
+		finally
+		{
+			workers.shutdown();
+			deleteContent.close();
+			deletePending.close();
+		}
+		return taskCount;
+	}
+
+
+	/**
+	 * Generates the n-grams of the given entries on the workers, merges them and inserts them with their relations.
+	 */
+	private void indexPage(WorkerPool<Void> workers, NGramCache cache, List<Entry> entries)
+	{
+		int jobCount = 0;
+		for (int i = 0, count = entries.size(); i < count; i += ENTRIES_PER_JOB)
+		{
+			workers.submit(new Job(entries.subList(i, Math.min(i + ENTRIES_PER_JOB, count))));
+			++jobCount;
+		}
+
+		for (int i = 0; i < jobCount; ++i)
+		{
+			// this throws if the job failed, which aborts the rebuild
+			workers.take();
+		}
+
+		// insert all n-grams of the page at once
+		Set<String> ngrams = new HashSet<String>(1024);
+		for (Entry entry : entries)
+		{
+			ngrams.addAll(entry.ngrams);
+		}
+		Map<String, Long> ngramIds = FTSDatabaseHelper.insertNGrams(mDb, cache, ngrams);
+
+		for (Entry entry : entries)
+		{
+			List<Long> ids = new ArrayList<Long>(entry.ngrams.size());
+			for (String ngram : entry.ngrams)
+			{
+				ids.add(ngramIds.get(ngram));
+			}
+			FTSDatabaseHelper.insertNGramRelations(mDb, ids, entry.taskId, entry.propertyId, entry.type);
+		}
+	}
+
+
+	/**
+	 * Loads the searchable texts of the next {@link #TASKS_PER_TRANSACTION} tasks with an id larger than the given one.
+	 *
+	 * @return The number of tasks that have been loaded.
+	 */
+	private int loadTasks(long lastId, List<Entry> entries)
+	{
+		Cursor c = mDb.query(Tables.TASKS, TASK_PROJECTION, Tasks._ID + " > ?", new String[] { Long.toString(lastId) }, null, null, Tasks._ID,
+			Integer.toString(TASKS_PER_TRANSACTION));
+		try
+		{
+			while (c.moveToNext())
+			{
+				long id = c.getLong(0);
+				entries.add(new Entry(id, -1, SearchableTypes.TITLE, c.getString(1)));
+				entries.add(new Entry(id, -1, SearchableTypes.LOCATION, c.getString(2)));
+				entries.add(new Entry(id, -1, SearchableTypes.DESCRIPTION, c.getString(3)));
+			}
+			return c.getCount();
+		}
+		finally
+		{
+			c.close();
+		}
+	}
+
+
+	/**
+	 * Loads the names of the categories of all tasks with an id in the given range.
+	 */
+	private void loadCategories(long firstId, long lastId, List<Entry> entries)
+	{
+		Cursor c = mDb.query(Tables.PROPERTIES, CATEGORY_PROJECTION, Properties.MIMETYPE + " = ? and " + Properties.TASK_ID + " BETWEEN ? AND ?",
+			new String[] { Category.CONTENT_ITEM_TYPE, Long.toString(firstId), Long.toString(lastId) }, null, null, null);
+		try
+		{
+			while (c.moveToNext())
+			{
+				entries.add(new Entry(c.getLong(0), c.getLong(1), SearchableTypes.PROPERTY, c.getString(2)));
+			}
+		}
+		finally
+		{
+			c.close();
+		}
+	}
+
+
+	@SuppressLint("NewApi")
+	private void savePosition(long lastId)
+	{
+		Editor editor = mPrefs.edit();
+		editor.putLong(PREFS_KEY_POSITION, lastId);
+		if (Build.VERSION.SDK_INT >= 9)
+		{
+			editor.apply();
+		}
+		else
+		{
+			editor.commit();
+		}
+	}
+
+	/**
+	 * A searchable text and, once it has been indexed, its n-grams.
+	 */
+	private final static class Entry
+	{
+		final long taskId;
+		final long propertyId;
+		final int type;
+		final String text;
+		Set<String> ngrams;
+
+
+		Entry(long taskId, long propertyId, int type, String text)
+		{
+			this.taskId = taskId;
+			this.propertyId = propertyId;
+			this.type = type;
+			this.text = text;
+		}
+	}
+
+	/**
+	 * Generates the n-grams of a couple of entries.
+	 */
+	private final static class Job implements Callable<Void>
+	{
+		private final List<Entry> mEntries;
+
+
+		Job(List<Entry> entries)
+		{
+			mEntries = entries;
+		}
+
+
+		@Override
+		public Void call()
+		{
+			for (Entry entry : mEntries)
+			{
+				entry.ngrams = FTSDatabaseHelper.ngramsOf(entry.text);
+			}
+			return null;
+		}
+	}
+}
@@ -0,0 +1,502 @@
+/*
+ * Copyright (C) 2015 Marten Gajda <marten@dmfs.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.dmfs.provider.tasks;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.os.SystemClock;
+import android.util.Log;
+
+
+/**
+ * A queue that combines concurrent single row writes into shared transactions, so they share the costs of a commit.
+ * <p>
+ * Every thread that submits a {@link Write} waits until it has been executed. The first waiting thread becomes the leader. It takes up to
+ * {@link #MAX_GROUP_SIZE} writes from the queue, executes them in one transaction and wakes up the other threads of the group. Writes that arrive in the
+ * meantime are executed by the next leader. If the last group contained more than one write, the leader waits up to {@link #COMBINE_WINDOW} milliseconds
+ * for more writes before it starts, a thread that writes alone doesn't wait at all.
+ * </p>
+ * <p>
+ * If a write of a group fails, the entire transaction is rolled back and each write of the group is executed again in its own transaction. That way every
+ * caller gets its own result or exception.
+ * </p>
+ * <p>
+ * A write that is submitted by the leader while it executes its group runs within the transaction of the group. Nothing has been committed at that point,
+ * so it's up to the group to call {@link #onGroupCommitted(boolean)} once its transaction has been committed. If such a write fails, SQLite rolls back the
+ * transaction of the group as well.
+ * </p>
+ *
+ * @author Marten Gajda <marten@dmfs.org>
+ */
+abstract class GroupCommitQueue
+{
+	private final static String TAG = "GroupCommitQueue";
+
+	/**
+	 * The maximum number of writes in one transaction.
+	 */
+	private final static int MAX_GROUP_SIZE = 64;
+
+	/**
+	 * The time in milliseconds a leader waits for other writes if there was some concurrency recently.
+	 */
+	private final static long COMBINE_WINDOW = 2;
+
+	/**
+	 * The number of committed groups after which the metrics are logged.
+	 */
+	private final static int METRICS_INTERVAL = 1000;
+
+	/**
+	 * A single write operation. Subclasses execute the operation in {@link #execute(SQLiteDatabase)}.
+	 *
+	 * @param <T>
+	 *            The type of the result.
+	 */
+	static abstract class Write<T>
+	{
+		private final boolean mCallerIsSyncAdapter;
+		private boolean mDone;
+		private boolean mCommitted;
+		private T mResult;
+		private Throwable mError;
+
+
+		/**
+		 * Creates a new {@link Write}.
+		 *
+		 * @param callerIsSyncAdapter
+		 *            Whether the caller is a sync adapter.
+		 */
+		public Write(boolean callerIsSyncAdapter)
+		{
+			mCallerIsSyncAdapter = callerIsSyncAdapter;
+		}
+
+
+		/**
+		 * Executes this write within a transaction. Note that a write might be executed twice, if another write of the same group fails. The first execution
+		 * is rolled back in that case, but any changes to the arguments of the write and any other side effects are not. Implementations should not modify
+		 * their arguments and should not start anything that can't be undone by a rollback.
+		 *
+		 * @param db
+		 *            The database in a transaction.
+		 * @return The result of the write.
+		 */
+		abstract T execute(SQLiteDatabase db);
+
+
+		private boolean tryExecute(SQLiteDatabase db)
+		{
+			try
+			{
+				mResult = execute(db);
+				mError = null;
+				return true;
+			}
+			catch (RuntimeException e)
+			{
+				mError = e;
+			}
+			catch (Error e)
+			{
+				mError = e;
+			}
+			mResult = null;
+			return false;
+		}
+
+
+		private T result()
+		{
+			if (mError instanceof RuntimeException)
+			{
+				throw (RuntimeException) mError;
+			}
+			if (mError instanceof Error)
+			{
+				throw (Error) mError;
+			}
+			return mResult;
+		}
+	}
+
+	private final SQLiteOpenHelper mOpenHelper;
+
+	private final Object mLock = new Object();
+
+	/**
+	 * The writes that wait for execution, guarded by {@link #mLock}.
+	 */
+	private final LinkedList<Write<?>> mQueue = new LinkedList<Write<?>>();
+
+	/**
+	 * The thread that currently executes a group or <code>null</code>, guarded by {@link #mLock}.
+	 */
+	private Thread mLeader;
+
+	/**
+	 * The size of the last group, guarded by {@link #mLock}.
+	 */
+	private int mLastGroupSize;
+
+	/**
+	 * Whether all writes that have been submitted by the leader while its group was executed came from sync adapters. This is accessed by the leader only.
+	 */
+	private boolean mNestedCallerIsSyncAdapter = true;
+
+	/*
+	 * The metrics since they have been logged the last time, guarded by mLock.
+	 */
+	private int mGroups;
+	private int mWrites;
+	private int mMaxGroupSize;
+	private int mRetries;
+	private long mTransactionTime;
+	private long mMetricsStart = SystemClock.elapsedRealtime();
+
+
+	/**
+	 * Creates a new {@link GroupCommitQueue}.
+	 *
+	 * @param openHelper
+	 *            The {@link SQLiteOpenHelper} of the database to write to.
+	 */
+	public GroupCommitQueue(SQLiteOpenHelper openHelper)
+	{
+		mOpenHelper = openHelper;
+	}
+
+
+	/**
+	 * Begins a transaction.
+	 *
+	 * @param db
+	 *            The database.
+	 * @return The time when the transaction began.
+	 */
+	protected abstract long beginTransaction(SQLiteDatabase db);
+
+
+	/**
+	 * Ends a transaction that has been started by {@link #beginTransaction(SQLiteDatabase)}.
+	 *
+	 * @param db
+	 *            The database.
+	 * @param transactionStart
+	 *            The value returned by {@link #beginTransaction(SQLiteDatabase)}.
+	 * @param successful
+	 *            Whether the transaction has been marked as successful.
+	 */
+	protected abstract void endTransaction(SQLiteDatabase db, long transactionStart, boolean successful);
+
+
+	/**
+	 * Called after a group has been committed, if at least one write of the group succeeded.
+	 *
+	 * @param callerIsSyncAdapter
+	 *            <code>true</code> if all writes of the group came from sync adapters.
+	 */
+	protected abstract void onGroupCommitted(boolean callerIsSyncAdapter);
+
+
+	/**
+	 * Executes the given {@link Write}, possibly in one transaction with writes of other threads, and returns its result. This method returns when the
+	 * transaction has been committed.
+	 *
+	 * @param write
+	 *            The {@link Write} to execute.
+	 * @return The result of the write.
+	 * @throws RuntimeException
+	 *             if the write failed.
+	 */
+	public <T> T submit(Write<T> write)
+	{
+		boolean interrupted = false;
+		boolean nested;
+
+		synchronized (mLock)
+		{
+			nested = mLeader == Thread.currentThread();
+			if (!nested)
+			{
+				mQueue.add(write);
+			}
+		}
+
+		if (nested)
+		{
+			// called by the leader while it executes or notifies about its group, waiting for the queue would never return
+			SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+			if (db.inTransaction())
+			{
+				// this write joins the transaction of the group, which notifies about it once it has been committed
+				mNestedCallerIsSyncAdapter &= write.mCallerIsSyncAdapter;
+				execute(db, write);
+			}
+			else if (execute(db, write))
+			{
+				onGroupCommitted(write.mCallerIsSyncAdapter);
+			}
+			return write.result();
+		}
+
+		while (true)
+		{
+			synchronized (mLock)
+			{
+				while (!write.mDone && mLeader != null)
+				{
+					try
+					{
+						mLock.wait();
+					}
+					catch (InterruptedException e)
+					{
+						// the write is already queued, we can't abort it
+						interrupted = true;
+					}
+				}
+
+				if (write.mDone)
+				{
+					break;
+				}
+
+				// become the leader of the next group
+				mLeader = Thread.currentThread();
+			}
+
+			try
+			{
+				interrupted |= runGroup();
+			}
+			finally
+			{
+				synchronized (mLock)
+				{
+					mLeader = null;
+					mLock.notifyAll();
+				}
+			}
+		}
+
+		if (interrupted)
+		{
+			Thread.currentThread().interrupt();
+		}
+		return write.result();
+	}
+
+
+	/**
+	 * Takes the next group of writes from the queue and executes it.
+	 *
+	 * @return <code>true</code> if the thread has been interrupted while waiting for more writes.
+	 */
+	private boolean runGroup()
+	{
+		boolean interrupted = false;
+		List<Write<?>> group;
+
+		synchronized (mLock)
+		{
+			if (mLastGroupSize > 1 && mQueue.size() < MAX_GROUP_SIZE)
+			{
+				// there was concurrency recently, give other threads a chance to join this group
+				try
+				{
+					mLock.wait(COMBINE_WINDOW);
+				}
+				catch (InterruptedException e)
+				{
+					interrupted = true;
+				}
+			}
+
+			int size = Math.min(mQueue.size(), MAX_GROUP_SIZE);
+			group = new ArrayList<Write<?>>(size);
+			for (int i = 0; i < size; ++i)
+			{
+				group.add(mQueue.removeFirst());
+			}
+			mLastGroupSize = size;
+		}
+
+		if (group.isEmpty())
+		{
+			return interrupted;
+		}
+
+		boolean callerIsSyncAdapter = true;
+		for (Write<?> write : group)
+		{
+			callerIsSyncAdapter &= write.mCallerIsSyncAdapter;
+		}
+
+		long start = SystemClock.elapsedRealtime();
+		boolean committed = false;
+		boolean retried = false;
+		Throwable failure = null;
+		mNestedCallerIsSyncAdapter = true;
+		try
+		{
+			SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+			committed = execute(db, group);
+
+			if (!committed && group.size() > 1)
+			{
+				// one of the writes failed and took the others down, run each of them alone
+				retried = true;
+				for (Write<?> write : group)
+				{
+					committed |= execute(db, write);
+				}
+			}
+
+			if (committed)
+			{
+				onGroupCommitted(callerIsSyncAdapter && mNestedCallerIsSyncAdapter);
+			}
+		}
+		/*
+		 * The transaction itself or the notification failed. Don't throw, the group might not even contain the write of this thread. Instead every write that has not been
+		 * committed gets the exception.
+		 */
+		catch (RuntimeException e)
+		{
+			failure = e;
+		}
+		catch (Error e)
+		{
+			failure = e;
+		}
+		finally
+		{
+			synchronized (mLock)
+			{
+				for (Write<?> write : group)
+				{
+					if (failure != null && !write.mCommitted && write.mError == null)
+					{
+						write.mError = failure;
+					}
+					write.mDone = true;
+				}
+				updateMetrics(group.size(), retried, SystemClock.elapsedRealtime() - start);
+			}
+		}
+		return interrupted;
+	}
+
+
+	/**
+	 * Executes all the given writes in one transaction.
+	 *
+	 * @return <code>true</code> if all writes succeeded and the transaction has been committed.
+	 */
+	private boolean execute(SQLiteDatabase db, List<Write<?>> group)
+	{
+		boolean success = true;
+		long transactionStart = beginTransaction(db);
+		try
+		{
+			for (Write<?> write : group)
+			{
+				if (!write.tryExecute(db))
+				{
+					success = false;
+					break;
+				}
+			}
+			if (success)
+			{
+				db.setTransactionSuccessful();
+			}
+		}
+		finally
+		{
+			endTransaction(db, transactionStart, success);
+		}
+
+		if (success)
+		{
+			for (Write<?> write : group)
+			{
+				write.mCommitted = true;
+			}
+		}
+		return success;
+	}
+
+
+	/**
+	 * Executes a single write in its own transaction.
+	 *
+	 * @return <code>true</code> if the write succeeded and the transaction has been committed.
+	 */
+	private boolean execute(SQLiteDatabase db, Write<?> write)
+	{
+		boolean success = false;
+		long transactionStart = beginTransaction(db);
+		try
+		{
+			success = write.tryExecute(db);
+			if (success)
+			{
+				db.setTransactionSuccessful();
+			}
+		}
+		finally
+		{
+			endTransaction(db, transactionStart, success);
+		}
+		write.mCommitted = success;
+		return success;
+	}
+
+
+	private void updateMetrics(int groupSize, boolean retried, long time)
+	{
+		++mGroups;
+		mWrites += groupSize;
+		mMaxGroupSize = Math.max(mMaxGroupSize, groupSize);
+		mTransactionTime += time;
+		if (retried)
+		{
+			++mRetries;
+		}
+
+		if (mGroups >= METRICS_INTERVAL)
+		{
+			long elapsed = Math.max(1, SystemClock.elapsedRealtime() - mMetricsStart);
+			Log.i(TAG, "group commit: " + mWrites + " writes in " + mGroups + " transactions (max " + mMaxGroupSize + " writes, " + mRetries + " retried), "
+				+ (mWrites * 1000L / elapsed) + " writes/s, " + (mTransactionTime / mGroups) + " ms per transaction");
+			mGroups = 0;
+			mWrites = 0;
+			mMaxGroupSize = 0;
+			mRetries = 0;
+			mTransactionTime = 0;
+			mMetricsStart = SystemClock.elapsedRealtime();
+		}
+	}
+}
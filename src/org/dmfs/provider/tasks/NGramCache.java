@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2015 Marten Gajda <marten@dmfs.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.dmfs.provider.tasks;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.database.sqlite.SQLiteDatabase;
+
+
+/**
+ * A bounded cache that maps the text of an n-gram to its row id in {@link FTSDatabaseHelper#FTS_NGRAM_TABLE}. The least recently used n-grams are evicted
+ * first.
+ * <p>
+ * An id that has been looked up or inserted by a transaction is only visible to the thread of that transaction until the transaction has been committed. If
+ * the transaction is rolled back the id is dropped, because the row might not exist anymore and its id might be taken by another n-gram later on. The
+ * provider calls {@link #commit()} and {@link #rollback()} when its transactions end. Code that writes to the n-gram table in its own transactions must call
+ * them itself.
+ * </p>
+ * <p>
+ * N-grams are never deleted, so the ids of committed rows remain valid. Call {@link #clear()} if the table is recreated.
+ * </p>
+ *
+ * @author Marten Gajda <marten@dmfs.org>
+ */
+final class NGramCache
+{
+	/**
+	 * The maximum number of n-grams in a cache.
+	 */
+	private final static int MAX_SIZE = 4096;
+
+	/**
+	 * The caches of all databases by path.
+	 */
+	private final static Map<String, NGramCache> CACHES = new HashMap<String, NGramCache>();
+
+	/**
+	 * The ids of committed n-grams in access order, guarded by <code>this</code>.
+	 */
+	private final Map<String, Long> mCommitted = new LinkedHashMap<String, Long>(256, 0.75f, true)
+	{
+		private static final long serialVersionUID = 1L;
+
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Long> eldest)
+		{
+			return size() > MAX_SIZE;
+		}
+	};
+
+	/**
+	 * The ids of n-grams that have been looked up or inserted by the current transaction of each thread.
+	 */
+	private final ThreadLocal<Map<String, Long>> mPending = new ThreadLocal<Map<String, Long>>()
+	{
+		@Override
+		protected Map<String, Long> initialValue()
+		{
+			return new HashMap<String, Long>(64);
+		}
+	};
+
+
+	/**
+	 * Returns the {@link NGramCache} of the given database.
+	 *
+	 * @param db
+	 *            The {@link SQLiteDatabase}.
+	 * @return The {@link NGramCache}.
+	 */
+	public static NGramCache get(SQLiteDatabase db)
+	{
+		String path = db.getPath();
+		synchronized (CACHES)
+		{
+			NGramCache cache = CACHES.get(path);
+			if (cache == null)
+			{
+				cache = new NGramCache();
+				CACHES.put(path, cache);
+			}
+			return cache;
+		}
+	}
+
+
+	/**
+	 * Returns the id of the given n-gram.
+	 *
+	 * @param ngram
+	 *            The text of the n-gram.
+	 * @return The id or <code>null</code> if the n-gram is not in the cache.
+	 */
+	public Long get(String ngram)
+	{
+		Long id;
+		synchronized (this)
+		{
+			id = mCommitted.get(ngram);
+		}
+		return id != null ? id : mPending.get().get(ngram);
+	}
+
+
+	/**
+	 * Adds the id of an n-gram that has been looked up or inserted by the current transaction.
+	 *
+	 * @param ngram
+	 *            The text of the n-gram.
+	 * @param id
+	 *            The id of the n-gram.
+	 */
+	public void put(String ngram, long id)
+	{
+		Map<String, Long> pending = mPending.get();
+		if (pending.size() < MAX_SIZE)
+		{
+			pending.put(ngram, id);
+		}
+	}
+
+
+	/**
+	 * Call this when the current transaction of this thread has been committed (or yielded).
+	 */
+	public void commit()
+	{
+		Map<String, Long> pending = mPending.get();
+		if (pending.isEmpty())
+		{
+			return;
+		}
+		synchronized (this)
+		{
+			mCommitted.putAll(pending);
+		}
+		pending.clear();
+	}
+
+
+	/**
+	 * Call this when the current transaction of this thread has been rolled back.
+	 */
+	public void rollback()
+	{
+		mPending.get().clear();
+	}
+
+
+	/**
+	 * Removes all committed n-grams from the cache.
+	 */
+	public void clear()
+	{
+		synchronized (this)
+		{
+			mCommitted.clear();
+		}
+	}
+}
@@ -0,0 +1,220 @@
+/*
+ * Copyright (C) 2015 Marten Gajda <marten@dmfs.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.dmfs.provider.tasks;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.content.ContentResolver;
+import android.net.Uri;
+import android.os.Handler;
+
+
+/**
+ * Coalesces content change notifications. All notifications that are posted within a window of {@link #mWindow} milliseconds after the first one are sent
+ * together on the thread of the given {@link Handler}. Each {@link Uri} is notified only once per window.
+ * <p>
+ * The {@link ContentResolver} delivers a notification of a {@link Uri} to the observers of all its descendants too. So a {@link Uri} is dropped if one of its
+ * ancestors is notified in the same window, and the {@link Uri}s of {@link #COLLAPSE_THRESHOLD} or more siblings are replaced by their parent. Siblings are
+ * never replaced by the authority root, which would notify the observers of all collections, so the result is at the collection level (like
+ * <code>content://authority/tasks</code>) at most. If any of the merged notifications requested a sync, the remaining one does too.
+ * </p>
+ *
+ * @author Marten Gajda <marten@dmfs.org>
+ */
+final class NotificationDispatcher
+{
+	/**
+	 * The default window in milliseconds.
+	 */
+	public final static long DEFAULT_WINDOW = 100;
+
+	/**
+	 * The number of siblings that are replaced by their parent.
+	 */
+	private final static int COLLAPSE_THRESHOLD = 8;
+
+	private final ContentResolver mResolver;
+	private final Handler mHandler;
+	private final long mWindow;
+
+	/**
+	 * The pending notifications mapped to their syncToNetwork flag, guarded by <code>this</code>.
+	 */
+	private Map<Uri, Boolean> mPending = new HashMap<Uri, Boolean>();
+
+	private final Runnable mFlush = new Runnable()
+	{
+		@Override
+		public void run()
+		{
+			flush();
+		}
+	};
+
+
+	/**
+	 * Creates a new {@link NotificationDispatcher}.
+	 *
+	 * @param resolver
+	 *            The {@link ContentResolver} to notify.
+	 * @param handler
+	 *            The {@link Handler} of the thread that sends the notifications.
+	 * @param window
+	 *            The window in milliseconds. If this is 0 notifications are sent immediately.
+	 */
+	public NotificationDispatcher(ContentResolver resolver, Handler handler, long window)
+	{
+		mResolver = resolver;
+		mHandler = handler;
+		mWindow = window;
+	}
+
+
+	/**
+	 * Posts a change notification of the given {@link Uri}.
+	 *
+	 * @param uri
+	 *            The changed {@link Uri}.
+	 * @param syncToNetwork
+	 *            Whether the change should be synced to the network.
+	 */
+	public void post(Uri uri, boolean syncToNetwork)
+	{
+		if (mWindow <= 0)
+		{
+			mResolver.notifyChange(uri, null, syncToNetwork);
+			return;
+		}
+
+		synchronized (this)
+		{
+			boolean first = mPending.isEmpty();
+			Boolean sync = mPending.get(uri);
+			mPending.put(uri, syncToNetwork || sync != null && sync);
+			if (first)
+			{
+				// don't postpone pending notifications, otherwise a steady flow of changes would never be notified
+				mHandler.postDelayed(mFlush, mWindow);
+			}
+		}
+	}
+
+
+	/**
+	 * Sends all pending notifications.
+	 */
+	private void flush()
+	{
+		Map<Uri, Boolean> pending;
+		synchronized (this)
+		{
+			pending = mPending;
+			mPending = new HashMap<Uri, Boolean>();
+		}
+
+		for (Map.Entry<Uri, Boolean> entry : collapse(pending).entrySet())
+		{
+			mResolver.notifyChange(entry.getKey(), null, entry.getValue());
+		}
+	}
+
+
+	/**
+	 * Merges {@link Uri}s into their ancestors. {@link Uri}s are only replaced by ancestors at or below the collection level, unless an ancestor is part of the
+	 * given {@link Uri}s itself.
+	 */
+	static Map<Uri, Boolean> collapse(Map<Uri, Boolean> uris)
+	{
+		// replace large groups of siblings by their parent, but never by the authority root
+		Map<Uri, Integer> siblings = new HashMap<Uri, Integer>();
+		for (Uri uri : uris.keySet())
+		{
+			Uri parent = parentOf(uri);
+			if (parent != null && !parent.getPathSegments().isEmpty() && uri.getQuery() == null)
+			{
+				Integer count = siblings.get(parent);
+				siblings.put(parent, count == null ? 1 : count + 1);
+			}
+		}
+
+		Map<Uri, Boolean> result = new HashMap<Uri, Boolean>(uris.size());
+		for (Map.Entry<Uri, Boolean> entry : uris.entrySet())
+		{
+			Uri uri = entry.getKey();
+			Uri parent = parentOf(uri);
+			Integer count = parent == null ? null : siblings.get(parent);
+			merge(result, count != null && count >= COLLAPSE_THRESHOLD ? parent : uri, entry.getValue());
+		}
+
+		// drop all Uris that have an ancestor in the result
+		Map<Uri, Boolean> collapsed = new HashMap<Uri, Boolean>(result.size());
+		for (Map.Entry<Uri, Boolean> entry : result.entrySet())
+		{
+			Uri target = entry.getKey();
+			if (target.getQuery() != null && result.containsKey(pathOf(target, target.getPathSegments().size())))
+			{
+				// the same Uri without the query notifies the same observers
+				target = pathOf(target, target.getPathSegments().size());
+			}
+			for (Uri ancestor = parentOf(target); ancestor != null; ancestor = parentOf(ancestor))
+			{
+				if (result.containsKey(ancestor))
+				{
+					target = ancestor;
+				}
+			}
+			merge(collapsed, target, entry.getValue());
+		}
+		return collapsed;
+	}
+
+
+	private static void merge(Map<Uri, Boolean> uris, Uri uri, boolean syncToNetwork)
+	{
+		Boolean sync = uris.get(uri);
+		uris.put(uri, syncToNetwork || sync != null && sync);
+	}
+
+
+	/**
+	 * Returns the parent of the given {@link Uri}, i.e. the {@link Uri} without the last path segment, or <code>null</code> if the {@link Uri} doesn't have a
+	 * path. Note that the query is dropped, because the {@link ContentResolver} doesn't take it into account.
+	 */
+	private static Uri parentOf(Uri uri)
+	{
+		int segments = uri.getPathSegments().size();
+		return segments == 0 ? null : pathOf(uri, segments - 1);
+	}
+
+
+	/**
+	 * Returns a {@link Uri} with the scheme, the authority and the first <code>segmentCount</code> path segments of the given {@link Uri}.
+	 */
+	private static Uri pathOf(Uri uri, int segmentCount)
+	{
+		List<String> segments = uri.getPathSegments();
+		Uri.Builder builder = new Uri.Builder().scheme(uri.getScheme()).authority(uri.getAuthority());
+		for (int i = 0; i < segmentCount; ++i)
+		{
+			builder.appendPath(segments.get(i));
+		}
+		return builder.build();
+	}
+}
@@ -1,12 +1,12 @@
 /*
  * Copyright (C) 2015 Marten Gajda <marten@dmfs.org>
- *
+ * 
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
  * You may obtain a copy of the License at
- *
+ * 
  *     http://www.apache.org/licenses/LICENSE-2.0
- *
+ * 
  * Unless required by applicable law or agreed to in writing, software
  * distributed under the License is distributed on an "AS IS" BASIS,
  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
@@ -18,6 +18,7 @@
 package org.dmfs.provider.tasks;
 
 import java.util.ArrayList;
+import java.util.List;
 
 import android.net.Uri;
 import android.os.Bundle;
@@ -25,15 +26,56 @@ import android.os.Bundle;
 
 /**
  * A log to track all content provider operations.
+ * <p>
+ * The log stores ranges of consecutive ids that have been subject to the same operation, so a sync that inserts thousands of tasks results in just a few
+ * ranges. If the log contains more than {@link #MAX_RANGES} ranges it stops logging ranges and reports an overflow instead.
+ * </p>
+ * <p>
+ * In addition the log keeps every single operation in its original order, including duplicates, for the deprecated extras
+ * {@link TaskContract#EXTRA_OPERATIONS_URIS} and {@link TaskContract#EXTRA_OPERATIONS}. Existing receivers rely on them, so they are sent in full until
+ * they are removed.
+ * </p>
  * 
  * @author Marten Gajda <marten@dmfs.org>
  */
 public class ProviderOperationsLog
 {
+	/**
+	 * The maximum number of ranges to log.
+	 */
+	private final static int MAX_RANGES = 1024;
+
+	/**
+	 * The number of elements of a range: operation, index of the base {@link Uri}, first id and last id.
+	 */
+	private final static int RANGE_SIZE = 4;
+
+	private final static int OPERATION = 0;
+	private final static int BASE_URI = 1;
+	private final static int FIRST_ID = 2;
+	private final static int LAST_ID = 3;
+
+	/**
+	 * The directory {@link Uri}s of the logged entities.
+	 */
+	private ArrayList<Uri> mBaseUris = new ArrayList<Uri>(4);
+
+	private long[] mRanges = new long[16 * RANGE_SIZE];
+
+	private int mRangeCount;
+
+	/**
+	 * The {@link Uri}s of all logged operations in their original order.
+	 */
 	private ArrayList<Uri> mUris = new ArrayList<Uri>(16);
 
+	/**
+	 * The codes of all logged operations in their original order.
+	 */
 	private ArrayList<Integer> mOperations = new ArrayList<Integer>(16);
 
+	private boolean mOverflow;
+
 
 	/**
 	 * Add an operation on the given {@link Uri} to the log.
@@ -45,16 +87,141 @@ public class ProviderOperationsLog
 	 */
 	public void log(ProviderOperation operation, Uri uri)
 	{
+		long id = -1;
+		Uri baseUri = uri;
+		List<String> segments = uri.getPathSegments();
+		if (segments.size() > 0)
+		{
+			try
+			{
+				id = Long.parseLong(segments.get(segments.size() - 1));
+				Uri.Builder builder = new Uri.Builder().scheme(uri.getScheme()).authority(uri.getAuthority());
+				for (int i = 0, count = segments.size() - 1; i < count; ++i)
+				{
+					builder.appendPath(segments.get(i));
+				}
+				baseUri = builder.build();
+			}
+			catch (NumberFormatException e)
+			{
+				// not an entity Uri, log the Uri itself
+			}
+		}
+
 		synchronized (this)
 		{
 			mUris.add(uri);
 			mOperations.add(operation.ordinal());
+			addRange(operation.ordinal(), baseUri, id, id);
+		}
+	}
+
+
+	/**
+	 * Adds all operations of the given log to this log. This is used to publish the operations of a transaction once it has been committed.
+	 * 
+	 * @param log
+	 *            The {@link ProviderOperationsLog} to add.
+	 */
+	public void addAll(ProviderOperationsLog log)
+	{
+		synchronized (log)
+		{
+			synchronized (this)
+			{
+				mUris.addAll(log.mUris);
+				mOperations.addAll(log.mOperations);
+				mOverflow |= log.mOverflow;
+				for (int i = 0, count = log.mRangeCount * RANGE_SIZE; i < count; i += RANGE_SIZE)
+				{
+					addRange(log.mRanges[i + OPERATION], log.mBaseUris.get((int) log.mRanges[i + BASE_URI]), log.mRanges[i + FIRST_ID],
+						log.mRanges[i + LAST_ID]);
+				}
+			}
 		}
 	}
 
 
+	/**
+	 * Removes all operations from this log.
+	 */
+	public void clear()
+	{
+		synchronized (this)
+		{
+			// we can't just clear the ArrayLists, because a Bundle might keep a reference to them
+			mBaseUris = new ArrayList<Uri>(4);
+			mUris = new ArrayList<Uri>(16);
+			mOperations = new ArrayList<Integer>(16);
+			mRangeCount = 0;
+			mOverflow = false;
+		}
+	}
+
+
+	/**
+	 * Adds a range of ids to the log, extending the last range if possible. The caller must hold the lock of this log.
+	 */
+	private void addRange(long operation, Uri baseUri, long firstId, long lastId)
+	{
+		if (mOverflow)
+		{
+			return;
+		}
+
+		int baseIndex = mBaseUris.indexOf(baseUri);
+		if (baseIndex < 0)
+		{
+			baseIndex = mBaseUris.size();
+			mBaseUris.add(baseUri);
+		}
+
+		if (mRangeCount > 0 && firstId >= 0)
+		{
+			int last = (mRangeCount - 1) * RANGE_SIZE;
+			if (mRanges[last + OPERATION] == operation && mRanges[last + BASE_URI] == baseIndex && mRanges[last + FIRST_ID] >= 0)
+			{
+				if (firstId == mRanges[last + LAST_ID] + 1)
+				{
+					// extend the last range
+					mRanges[last + LAST_ID] = lastId;
+					return;
+				}
+				if (firstId >= mRanges[last + FIRST_ID] && lastId <= mRanges[last + LAST_ID])
+				{
+					// already logged
+					return;
+				}
+			}
+		}
+
+		if (mRangeCount == MAX_RANGES)
+		{
+			mOverflow = true;
+			return;
+		}
+
+		if ((mRangeCount + 1) * RANGE_SIZE > mRanges.length)
+		{
+			long[] ranges = new long[mRanges.length * 2];
+			System.arraycopy(mRanges, 0, ranges, 0, mRangeCount * RANGE_SIZE);
+			mRanges = ranges;
+		}
+
+		int next = mRangeCount * RANGE_SIZE;
+		mRanges[next + OPERATION] = operation;
+		mRanges[next + BASE_URI] = baseIndex;
+		mRanges[next + FIRST_ID] = firstId;
+		mRanges[next + LAST_ID] = lastId;
+		++mRangeCount;
+	}
+
+
 	/**
 	 * Adds the operations log to the given {@link Bundle}, creating one if the given bundle is <code>null</code>.
+	 * <p>
+	 * The {@link Bundle} contains the ranges and the overflow flag, along with the deprecated lists of all operations in their original order.
+	 * </p>
 	 * 
 	 * @param bundle
 	 *            A {@link Bundle} or <code>null</code>.
@@ -62,22 +229,28 @@ public class ProviderOperationsLog
 	 *            <code>true</code> to clear the log afterwards, <code>false</code> to keep it.
 	 * @return The {@link Bundle} that was passed or created.
 	 */
+	@SuppressWarnings("deprecation")
 	public Bundle toBundle(Bundle bundle, boolean clearLog)
 	{
 		if (bundle == null)
 		{
-			bundle = new Bundle(2);
+			bundle = new Bundle(5);
 		}
 
 		synchronized (this)
 		{
-			bundle.putParcelableArrayList(TaskContract.EXTRA_OPERATIONS_URIS, mUris);
-			bundle.putIntegerArrayList(TaskContract.EXTRA_OPERATIONS, mOperations);
+			long[] ranges = new long[mRangeCount * RANGE_SIZE];
+			System.arraycopy(mRanges, 0, ranges, 0, ranges.length);
+
+			bundle.putParcelableArrayList(TaskContract.EXTRA_OPERATIONS_BASE_URIS, clearLog ? mBaseUris : new ArrayList<Uri>(mBaseUris));
+			bundle.putLongArray(TaskContract.EXTRA_OPERATIONS_RANGES, ranges);
+			bundle.putBoolean(TaskContract.EXTRA_OPERATIONS_OVERFLOW, mOverflow);
+			bundle.putParcelableArrayList(TaskContract.EXTRA_OPERATIONS_URIS, clearLog ? mUris : new ArrayList<Uri>(mUris));
+			bundle.putIntegerArrayList(TaskContract.EXTRA_OPERATIONS, clearLog ? mOperations : new ArrayList<Integer>(mOperations));
+
 			if (clearLog)
 			{
-				// we can't just clear the ArrayLists, because the Bundle keeps a reference to them
-				mUris = new ArrayList<Uri>(16);
-				mOperations = new ArrayList<Integer>(16);
+				clear();
 			}
 		}
 		return bundle;
@@ -104,6 +277,9 @@ public class ProviderOperationsLog
 	 */
 	public boolean isEmpty()
 	{
-		return mUris.size() == 0;
+		synchronized (this)
+		{
+			return mUris.isEmpty();
+		}
 	}
-}
\ No newline at end of file
+}
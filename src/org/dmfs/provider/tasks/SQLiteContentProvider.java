@@ -17,19 +17,21 @@
 package org.dmfs.provider.tasks;
 
 import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import android.content.ContentProvider;
 import android.content.ContentProviderOperation;
 import android.content.ContentProviderResult;
-import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.OperationApplicationException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.net.Uri;
+import android.os.SystemClock;
+import android.text.TextUtils;
 
 
 /**
@@ -50,23 +52,73 @@ abstract class SQLiteContentProvider extends ContentProvider
 	private static final String TAG = "SQLiteContentProvider";
 
 	private SQLiteOpenHelper mOpenHelper;
-	private Set<Uri> mChangedUris;
+
+	/**
+	 * The {@link Uri}s changed by the transactions of the current thread. Each thread has its own {@link ChangeSet}, so a transaction never notifies the
+	 * changes of another one.
+	 */
+	private final ThreadLocal<ChangeSet> mChangeSet = new ThreadLocal<ChangeSet>()
+	{
+		@Override
+		protected ChangeSet initialValue()
+		{
+			return new ChangeSet();
+		}
+	};
 
 	private final ThreadLocal<Boolean> mApplyingBatch = new ThreadLocal<Boolean>();
-	private static final int SLEEP_AFTER_YIELD_DELAY = 4000;
+
+	/**
+	 * Whether a nested transaction of the current thread has failed, which rolls back the outermost transaction.
+	 */
+	private final ThreadLocal<Boolean> mNestedTransactionFailed = new ThreadLocal<Boolean>();
+	private final YieldPolicy mYieldPolicy = new YieldPolicy();
+
+	/**
+	 * The queue that combines concurrent calls to {@link #insert(Uri, ContentValues)}, {@link #update(Uri, ContentValues, String, String[])} and
+	 * {@link #delete(Uri, String, String[])} into shared transactions.
+	 */
+	private GroupCommitQueue mWriteQueue;
 
 	/**
 	 * Maximum number of operations allowed in a batch between yield points.
 	 */
 	private static final int MAX_OPERATIONS_PER_YIELD_POINT = 500;
 
+	/**
+	 * The number of operations after which a batch that allows auto-chunking is committed at the next safe boundary.
+	 */
+	private static final int AUTO_CHUNK_SIZE = MAX_OPERATIONS_PER_YIELD_POINT / 2;
+
 
 	@Override
 	public boolean onCreate()
 	{
 		Context context = getContext();
 		mOpenHelper = getDatabaseHelper(context);
-		mChangedUris = new HashSet<Uri>();
+		mWriteQueue = new GroupCommitQueue(mOpenHelper)
+		{
+			@Override
+			protected long beginTransaction(SQLiteDatabase db)
+			{
+				return SQLiteContentProvider.this.beginTransaction(db);
+			}
+
+
+			@Override
+			protected void endTransaction(SQLiteDatabase db, long transactionStart, boolean successful)
+			{
+				SQLiteContentProvider.this.endTransaction(db, successful);
+				mYieldPolicy.transactionFinished(transactionStart);
+			}
+
+
+			@Override
+			protected void onGroupCommitted(boolean callerIsSyncAdapter)
+			{
+				onEndTransaction(callerIsSyncAdapter);
+			}
+		};
 		return true;
 	}
 
@@ -97,14 +149,11 @@ abstract class SQLiteContentProvider extends ContentProvider
 
 
 	/**
-	 * Call this to add a URI to the list of URIs to be notified when the transaction is committed.
+	 * Call this to add a URI to the list of URIs to be notified when the transaction is committed. The URI is dropped if the transaction is rolled back.
 	 */
 	protected void postNotifyUri(Uri uri)
 	{
-		synchronized (mChangedUris)
-		{
-			mChangedUris.add(uri);
-		}
+		mChangeSet.get().add(uri);
 	}
 
 
@@ -114,6 +163,28 @@ abstract class SQLiteContentProvider extends ContentProvider
 	}
 
 
+	/**
+	 * Returns whether the caller allows to commit a batch in several transactions. If so, {@link #applyBatch(ArrayList)} commits the batch right before
+	 * an operation if neither this nor any later operation refers to the result of an earlier one, instead of failing when there are too many operations
+	 * between two yield points. The {@link Uri} of the first operation of a batch decides.
+	 */
+	protected boolean isAutoChunkingAllowed(Uri uri)
+	{
+		return false;
+	}
+
+
+	/**
+	 * Returns whether an update of the given {@link Uri} may be executed in a transaction with other writes. Such an update might be executed twice if another
+	 * write of the same group fails, so subclasses must return <code>false</code> for updates with side effects that are not rolled back with the
+	 * transaction.
+	 */
+	protected boolean isGroupCommitAllowed(Uri uri)
+	{
+		return true;
+	}
+
+
 	public SQLiteOpenHelper getDatabaseHelper()
 	{
 		return mOpenHelper;
@@ -127,30 +198,26 @@ abstract class SQLiteContentProvider extends ContentProvider
 
 
 	@Override
-	public Uri insert(Uri uri, ContentValues values)
+	public Uri insert(final Uri uri, final ContentValues values)
 	{
 		Uri result = null;
-		boolean callerIsSyncAdapter = isCallerSyncAdapter(uri);
+		final boolean callerIsSyncAdapter = isCallerSyncAdapter(uri);
 		boolean applyingBatch = applyingBatch();
-		SQLiteDatabase db = mOpenHelper.getWritableDatabase();
 		if (!applyingBatch)
 		{
-			db.beginTransaction();
-			try
-			{
-				result = insertInTransaction(db, uri, values, callerIsSyncAdapter);
-				db.setTransactionSuccessful();
-			}
-			finally
+			result = mWriteQueue.submit(new GroupCommitQueue.Write<Uri>(callerIsSyncAdapter)
 			{
-				db.endTransaction();
-			}
-
-			onEndTransaction(callerIsSyncAdapter);
+				@Override
+				Uri execute(SQLiteDatabase db)
+				{
+					// the write might be executed twice, so don't pass the original values
+					return insertInTransaction(db, uri, values == null ? null : new ContentValues(values), callerIsSyncAdapter);
+				}
+			});
 		}
 		else
 		{
-			result = insertInTransaction(db, uri, values, callerIsSyncAdapter);
+			result = insertInTransaction(mOpenHelper.getWritableDatabase(), uri, values, callerIsSyncAdapter);
 		}
 		return result;
 	}
@@ -162,19 +229,34 @@ abstract class SQLiteContentProvider extends ContentProvider
 		int numValues = values.length;
 		boolean callerIsSyncAdapter = isCallerSyncAdapter(uri);
 		SQLiteDatabase db = mOpenHelper.getWritableDatabase();
-		db.beginTransaction();
+		boolean successful = false;
+		long transactionStart = beginTransaction(db);
+		long lastYieldAttempt = 0;
 		try
 		{
 			for (int i = 0; i < numValues; i++)
 			{
 				insertInTransaction(db, uri, values[i], callerIsSyncAdapter);
-				db.yieldIfContendedSafely();
+				if (mYieldPolicy.shouldYield(transactionStart, lastYieldAttempt))
+				{
+					if (db.yieldIfContendedSafely(mYieldPolicy.sleepAfterYield()))
+					{
+						// everything up to here has been committed
+						transactionCommitted(db);
+						transactionStart = SystemClock.elapsedRealtime();
+					}
+					else
+					{
+						lastYieldAttempt = SystemClock.elapsedRealtime();
+					}
+				}
 			}
 			db.setTransactionSuccessful();
+			successful = true;
 		}
 		finally
 		{
-			db.endTransaction();
+			endTransaction(db, successful);
 		}
 
 		onEndTransaction(callerIsSyncAdapter);
@@ -183,61 +265,71 @@ abstract class SQLiteContentProvider extends ContentProvider
 
 
 	@Override
-	public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs)
+	public int update(final Uri uri, final ContentValues values, final String selection, final String[] selectionArgs)
 	{
 		int count = 0;
-		boolean callerIsSyncAdapter = isCallerSyncAdapter(uri);
+		final boolean callerIsSyncAdapter = isCallerSyncAdapter(uri);
 		boolean applyingBatch = applyingBatch();
-		SQLiteDatabase db = mOpenHelper.getWritableDatabase();
-		if (!applyingBatch)
+		if (applyingBatch)
 		{
-			db.beginTransaction();
+			count = updateInTransaction(mOpenHelper.getWritableDatabase(), uri, values, selection, selectionArgs, callerIsSyncAdapter);
+		}
+		else if (isGroupCommitAllowed(uri))
+		{
+			count = mWriteQueue.submit(new GroupCommitQueue.Write<Integer>(callerIsSyncAdapter)
+			{
+				@Override
+				Integer execute(SQLiteDatabase db)
+				{
+					// the write might be executed twice, so don't pass the original values
+					return updateInTransaction(db, uri, values == null ? null : new ContentValues(values), selection, selectionArgs, callerIsSyncAdapter);
+				}
+			});
+		}
+		else
+		{
+			// this update must be executed exactly once, so it gets a transaction of its own
+			SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+			boolean successful = false;
+			long transactionStart = beginTransaction(db);
 			try
 			{
 				count = updateInTransaction(db, uri, values, selection, selectionArgs, callerIsSyncAdapter);
 				db.setTransactionSuccessful();
+				successful = true;
 			}
 			finally
 			{
-				db.endTransaction();
+				endTransaction(db, successful);
+				mYieldPolicy.transactionFinished(transactionStart);
 			}
-
 			onEndTransaction(callerIsSyncAdapter);
 		}
-		else
-		{
-			count = updateInTransaction(db, uri, values, selection, selectionArgs, callerIsSyncAdapter);
-		}
 
 		return count;
 	}
 
 
 	@Override
-	public int delete(Uri uri, String selection, String[] selectionArgs)
+	public int delete(final Uri uri, final String selection, final String[] selectionArgs)
 	{
 		int count = 0;
-		boolean callerIsSyncAdapter = isCallerSyncAdapter(uri);
+		final boolean callerIsSyncAdapter = isCallerSyncAdapter(uri);
 		boolean applyingBatch = applyingBatch();
-		SQLiteDatabase db = mOpenHelper.getWritableDatabase();
 		if (!applyingBatch)
 		{
-			db.beginTransaction();
-			try
+			count = mWriteQueue.submit(new GroupCommitQueue.Write<Integer>(callerIsSyncAdapter)
 			{
-				count = deleteInTransaction(db, uri, selection, selectionArgs, callerIsSyncAdapter);
-				db.setTransactionSuccessful();
-			}
-			finally
-			{
-				db.endTransaction();
-			}
-
-			onEndTransaction(callerIsSyncAdapter);
+				@Override
+				Integer execute(SQLiteDatabase db)
+				{
+					return deleteInTransaction(db, uri, selection, selectionArgs, callerIsSyncAdapter);
+				}
+			});
 		}
 		else
 		{
-			count = deleteInTransaction(db, uri, selection, selectionArgs, callerIsSyncAdapter);
+			count = deleteInTransaction(mOpenHelper.getWritableDatabase(), uri, selection, selectionArgs, callerIsSyncAdapter);
 		}
 		return count;
 	}
@@ -249,64 +341,282 @@ abstract class SQLiteContentProvider extends ContentProvider
 		int ypCount = 0;
 		int opCount = 0;
 		boolean callerIsSyncAdapter = false;
+		final int numOperations = operations.size();
+		final boolean autoChunking = numOperations > 0 && isAutoChunkingAllowed(operations.get(0).getUri());
 		SQLiteDatabase db = mOpenHelper.getWritableDatabase();
-		db.beginTransaction();
+		boolean successful = false;
+		long transactionStart = beginTransaction(db);
+		long lastYieldAttempt = 0;
 		try
 		{
 			mApplyingBatch.set(true);
-			final int numOperations = operations.size();
 			final ContentProviderResult[] results = new ContentProviderResult[numOperations];
+			final boolean[] safeBoundaries = autoChunking ? safeBoundaries(operations) : null;
 			for (int i = 0; i < numOperations; i++)
 			{
+				final ContentProviderOperation operation = operations.get(i);
+				if (autoChunking && opCount >= AUTO_CHUNK_SIZE && safeBoundaries[i])
+				{
+					// no later operation depends on any earlier one, so it's safe to commit everything before this one
+					db.setTransactionSuccessful();
+					endTransaction(db, true);
+					transactionStart = beginTransaction(db);
+					opCount = 0;
+					ypCount++;
+				}
 				if (++opCount >= MAX_OPERATIONS_PER_YIELD_POINT)
 				{
 					throw new OperationApplicationException("Too many content provider operations between yield points. "
 						+ "The maximum number of operations per yield point is " + MAX_OPERATIONS_PER_YIELD_POINT, ypCount);
 				}
-				final ContentProviderOperation operation = operations.get(i);
 				if (!callerIsSyncAdapter && isCallerSyncAdapter(operation.getUri()))
 				{
 					callerIsSyncAdapter = true;
 				}
-				if (i > 0 && operation.isYieldAllowed())
+				boolean yieldAllowed = i > 0 && operation.isYieldAllowed();
+				if (yieldAllowed)
 				{
 					opCount = 0;
-					if (db.yieldIfContendedSafely(SLEEP_AFTER_YIELD_DELAY))
+				}
+				if ((yieldAllowed || autoChunking && i > 0 && safeBoundaries[i]) && mYieldPolicy.shouldYield(transactionStart, lastYieldAttempt))
+				{
+					// other threads have been waiting too long, yield at this yield point or, if the caller allows it, at this safe boundary
+					if (db.yieldIfContendedSafely(mYieldPolicy.sleepAfterYield()))
 					{
+						transactionCommitted(db);
+						opCount = 0;
 						ypCount++;
+						transactionStart = SystemClock.elapsedRealtime();
+					}
+					else
+					{
+						// nobody was waiting after all, the transaction keeps its age, but don't try again right away
+						lastYieldAttempt = SystemClock.elapsedRealtime();
 					}
 				}
 				results[i] = operation.apply(this, results, i);
 			}
 			db.setTransactionSuccessful();
+			successful = true;
 			return results;
 		}
 		finally
 		{
 			mApplyingBatch.set(false);
-			db.endTransaction();
+			endTransaction(db, successful);
+			// notifies the changes of all chunks that have been committed
 			onEndTransaction(callerIsSyncAdapter);
 		}
 	}
 
 
-	protected void onEndTransaction(boolean callerIsSyncAdapter)
+	/**
+	 * Begins a transaction and tells the {@link YieldPolicy} how long we had to wait for it.
+	 * 
+	 * @return The time when the transaction began.
+	 */
+	private long beginTransaction(SQLiteDatabase db)
+	{
+		mYieldPolicy.startWaiting();
+		try
+		{
+			db.beginTransaction();
+		}
+		finally
+		{
+			mYieldPolicy.stopWaiting();
+		}
+		return SystemClock.elapsedRealtime();
+	}
+
+
+	/**
+	 * Ends a transaction and moves its changes to the committed changes of this thread or drops them if the transaction has been rolled back.
+	 * 
+	 * @param successful
+	 *            Whether the transaction has been marked as successful.
+	 */
+	private void endTransaction(SQLiteDatabase db, boolean successful)
+	{
+		try
+		{
+			db.endTransaction();
+		}
+		catch (RuntimeException e)
+		{
+			// the commit failed
+			if (db.inTransaction())
+			{
+				mNestedTransactionFailed.set(true);
+			}
+			else
+			{
+				mNestedTransactionFailed.set(false);
+				transactionRolledBack(db);
+			}
+			throw e;
+		}
+
+		if (db.inTransaction())
+		{
+			// a nested transaction, nothing has been committed or rolled back yet, the outermost transaction decides
+			if (!successful)
+			{
+				// a failed nested transaction makes SQLiteDatabase roll back the outermost one
+				mNestedTransactionFailed.set(true);
+			}
+			return;
+		}
+
+		boolean nestedTransactionFailed = Boolean.TRUE.equals(mNestedTransactionFailed.get());
+		mNestedTransactionFailed.set(false);
+		if (successful && !nestedTransactionFailed)
+		{
+			transactionCommitted(db);
+		}
+		else
+		{
+			transactionRolledBack(db);
+		}
+	}
+
+
+	private void transactionCommitted(SQLiteDatabase db)
+	{
+		mChangeSet.get().commit();
+		onTransactionCommitted(db);
+	}
+
+
+	private void transactionRolledBack(SQLiteDatabase db)
+	{
+		mChangeSet.get().rollback();
+		onTransactionRolledBack(db);
+	}
+
+
+	/**
+	 * Called on the thread of a transaction after the transaction has been committed or after it has yielded successfully. Subclasses may override this to
+	 * publish state that must not be visible before the transaction has been committed.
+	 * 
+	 * @param db
+	 *            The database.
+	 */
+	protected void onTransactionCommitted(SQLiteDatabase db)
+	{
+	}
+
+
+	/**
+	 * Called on the thread of a transaction after the transaction has been rolled back. Subclasses may override this to drop state that has been collected
+	 * during the transaction.
+	 * 
+	 * @param db
+	 *            The database.
+	 */
+	protected void onTransactionRolledBack(SQLiteDatabase db)
+	{
+	}
+
+
+	/**
+	 * Returns for each operation of the given batch whether the batch can be split right before it, i.e. whether neither the operation nor any later one
+	 * refers to the result of an earlier operation.
+	 * <p>
+	 * There is no public API to get the back-references of an operation, so we resolve them against two sets of fake results. The fake result of operation
+	 * <code>n</code> has a count of <code>n</code> in the first set and <code>n + 1</code> in the second one. Values that differ between both resolutions
+	 * are back-references and the value of the first resolution is the index of the operation they refer to. References to later operations are invalid and
+	 * fail here just like they would fail when the operation is applied.
+	 * </p>
+	 */
+	private static boolean[] safeBoundaries(List<ContentProviderOperation> operations)
+	{
+		int count = operations.size();
+		ContentProviderResult[] results = new ContentProviderResult[count];
+		ContentProviderResult[] shiftedResults = new ContentProviderResult[count];
+		for (int i = 0; i < count; ++i)
+		{
+			results[i] = new ContentProviderResult(i);
+			shiftedResults[i] = new ContentProviderResult(i + 1);
+		}
+
+		boolean[] result = new boolean[count];
+		int firstReference = Integer.MAX_VALUE;
+		for (int i = count - 1; i >= 0; --i)
+		{
+			firstReference = Math.min(firstReference, firstBackReference(operations.get(i), i, results, shiftedResults));
+			result[i] = firstReference >= i;
+		}
+		return result;
+	}
+
+
+	/**
+	 * Returns the index of the first operation the given operation refers to or {@link Integer#MAX_VALUE} if it has no back-references. See
+	 * {@link #safeBoundaries(List)}.
+	 */
+	private static int firstBackReference(ContentProviderOperation operation, int index, ContentProviderResult[] results,
+		ContentProviderResult[] shiftedResults)
 	{
-		Set<Uri> changed;
-		synchronized (mChangedUris)
+		int result = Integer.MAX_VALUE;
+
+		ContentValues values = operation.resolveValueBackReferences(results, index);
+		ContentValues shiftedValues = operation.resolveValueBackReferences(shiftedResults, index);
+		// without back-references older versions return the same instance twice
+		if (values != shiftedValues)
 		{
-			changed = new HashSet<Uri>(mChangedUris);
-			mChangedUris.clear();
+			for (Map.Entry<String, Object> entry : values.valueSet())
+			{
+				Object value = entry.getValue();
+				if (value != null && !value.equals(shiftedValues.get(entry.getKey())))
+				{
+					result = Math.min(result, ((Number) value).intValue());
+				}
+			}
+		}
+
+		String[] args = operation.resolveSelectionArgsBackReferences(results, index);
+		String[] shiftedArgs = operation.resolveSelectionArgsBackReferences(shiftedResults, index);
+		if (args != shiftedArgs)
+		{
+			for (int i = 0, count = args.length; i < count; ++i)
+			{
+				if (!TextUtils.equals(args[i], shiftedArgs[i]))
+				{
+					result = Math.min(result, Integer.parseInt(args[i]));
+				}
+			}
 		}
-		ContentResolver resolver = getContext().getContentResolver();
+		return result;
+	}
+
+
+	protected void onEndTransaction(boolean callerIsSyncAdapter)
+	{
+		Set<Uri> changed = mChangeSet.get().drain();
 		for (Uri uri : changed)
 		{
 			boolean syncToNetwork = !callerIsSyncAdapter && syncToNetwork(uri);
-			resolver.notifyChange(uri, null, syncToNetwork);
+			notifyChange(uri, syncToNetwork);
 		}
 	}
 
 
+	/**
+	 * Notifies the observers of a changed {@link Uri}. The default implementation notifies them immediately. Subclasses may override this to defer or
+	 * coalesce notifications.
+	 * 
+	 * @param uri
+	 *            The changed {@link Uri}.
+	 * @param syncToNetwork
+	 *            Whether the change should be synced to the network.
+	 */
+	protected void notifyChange(Uri uri, boolean syncToNetwork)
+	{
+		getContext().getContentResolver().notifyChange(uri, null, syncToNetwork);
+	}
+
+
 	protected boolean syncToNetwork(Uri uri)
 	{
 		return false;
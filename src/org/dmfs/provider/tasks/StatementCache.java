@@ -0,0 +1,266 @@
+/*
+ * Copyright (C) 2015 Marten Gajda <marten@dmfs.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.dmfs.provider.tasks;
+
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import android.content.ContentValues;
+import android.database.DatabaseUtils;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+
+/**
+ * A cache of compiled {@link SQLiteStatement}s of a database. Hot write paths use it to avoid compiling the same SQL over and over again.
+ * <p>
+ * {@link SQLiteDatabase#insert(String, String, ContentValues)} builds the SQL and compiles a new {@link SQLiteStatement} for every row. Before API level 16
+ * each of these calls prepares the statement in SQLite, which means parsing and planning the SQL again for every row. Since API level 16 each connection
+ * caches its prepared statements, but creating an {@link SQLiteStatement} still acquires a connection to look up its parameters, and the arguments are
+ * copied into a new array. Expanding a recurring task or indexing a task for the search inserts hundreds of rows with the same few statements, so these
+ * costs add up for every task a sync adapter writes.
+ * </p>
+ * <p>
+ * Before API level 16 a statement is bound to the connection of the {@link SQLiteDatabase} it has been compiled with. Since API level 16 it's bound to the
+ * {@link SQLiteDatabase} and runs on whatever connection the executing thread holds. Either way it's not valid beyond the {@link SQLiteDatabase} object it
+ * belongs to. That's why each {@link SQLiteDatabase} object gets its own cache, which is discarded when the database has been closed.
+ * </p>
+ * <p>
+ * A statement is owned by the thread that acquired it until it's released again, so no two threads ever bind the same statement. The least recently released
+ * statements are closed if the cache grows beyond {@link #MAX_SIZE} statements.
+ * </p>
+ *
+ * <pre>
+ * SQLiteStatement insert = cache.acquire(SQL);
+ * try
+ * {
+ * 	insert.bindLong(1, value);
+ * 	insert.executeInsert();
+ * }
+ * finally
+ * {
+ * 	cache.release(SQL, insert);
+ * }
+ * </pre>
+ *
+ * @author Marten Gajda <marten@dmfs.org>
+ */
+public final class StatementCache
+{
+	/**
+	 * The maximum number of cached statements per database.
+	 */
+	private final static int MAX_SIZE = 32;
+
+	/**
+	 * The caches of all open databases. The keys are compared by identity, so two {@link SQLiteDatabase} objects with the same path, like in-memory databases
+	 * or a database that has been reopened, never share their statements.
+	 */
+	private final static Map<SQLiteDatabase, StatementCache> CACHES = new IdentityHashMap<SQLiteDatabase, StatementCache>();
+
+	private final SQLiteDatabase mDb;
+
+	/**
+	 * The statements that are currently not in use mapped by their SQL, in the order they have been released, guarded by <code>this</code>.
+	 */
+	private final Map<String, SQLiteStatement> mStatements = new LinkedHashMap<String, SQLiteStatement>(MAX_SIZE)
+	{
+		private static final long serialVersionUID = 1L;
+
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, SQLiteStatement> eldest)
+		{
+			if (size() > MAX_SIZE)
+			{
+				eldest.getValue().close();
+				return true;
+			}
+			return false;
+		}
+	};
+
+	/**
+	 * Whether this cache has been closed, guarded by <code>this</code>.
+	 */
+	private boolean mClosed;
+
+
+	/**
+	 * Returns the {@link StatementCache} of the given database.
+	 *
+	 * @param db
+	 *            The {@link SQLiteDatabase}.
+	 * @return The {@link StatementCache}.
+	 */
+	public static StatementCache get(SQLiteDatabase db)
+	{
+		synchronized (CACHES)
+		{
+			StatementCache cache = CACHES.get(db);
+			if (cache == null)
+			{
+				// a database we didn't see before, this is a good time to get rid of the caches of databases that have been closed in the meantime
+				Iterator<Map.Entry<SQLiteDatabase, StatementCache>> iterator = CACHES.entrySet().iterator();
+				while (iterator.hasNext())
+				{
+					Map.Entry<SQLiteDatabase, StatementCache> entry = iterator.next();
+					if (!entry.getKey().isOpen())
+					{
+						entry.getValue().close();
+						iterator.remove();
+					}
+				}
+				cache = new StatementCache(db);
+				CACHES.put(db, cache);
+			}
+			return cache;
+		}
+	}
+
+
+	private StatementCache(SQLiteDatabase db)
+	{
+		mDb = db;
+	}
+
+
+	/**
+	 * Returns a compiled statement for the given SQL. The caller owns the statement until it passes it to {@link #release(String, SQLiteStatement)}.
+	 *
+	 * @param sql
+	 *            The SQL of the statement.
+	 * @return An {@link SQLiteStatement}.
+	 */
+	public SQLiteStatement acquire(String sql)
+	{
+		SQLiteStatement statement;
+		synchronized (this)
+		{
+			statement = mStatements.remove(sql);
+		}
+		return statement != null ? statement : mDb.compileStatement(sql);
+	}
+
+
+	/**
+	 * Returns a statement that has been returned by {@link #acquire(String)} to the cache. The statement must not be used afterwards.
+	 *
+	 * @param sql
+	 *            The SQL that has been passed to {@link #acquire(String)}.
+	 * @param statement
+	 *            The {@link SQLiteStatement}.
+	 */
+	public void release(String sql, SQLiteStatement statement)
+	{
+		statement.clearBindings();
+		SQLiteStatement obsolete;
+		synchronized (this)
+		{
+			// if another thread released a statement for the same SQL in the meantime we just keep that one
+			obsolete = mClosed ? statement : mStatements.put(sql, statement);
+		}
+		if (obsolete != null)
+		{
+			obsolete.close();
+		}
+	}
+
+
+	/**
+	 * Inserts a row into the given table like {@link SQLiteDatabase#insert(String, String, ContentValues)} does, but using a cached statement for every
+	 * distinct set of columns.
+	 *
+	 * @param table
+	 *            The table to insert the row into.
+	 * @param nullColumnHack
+	 *            See {@link SQLiteDatabase#insert(String, String, ContentValues)}, only used if the values are empty.
+	 * @param values
+	 *            The values of the new row.
+	 * @return The row id of the new row.
+	 * @throws SQLException
+	 *             if the row could not be inserted. Other than {@link SQLiteDatabase#insert(String, String, ContentValues)} this method doesn't hide errors,
+	 *             so a failed insert fails the transaction instead of losing the row silently.
+	 */
+	public long insert(String table, String nullColumnHack, ContentValues values)
+	{
+		int size = values.size();
+		if (size == 0)
+		{
+			return mDb.insertOrThrow(table, nullColumnHack, values);
+		}
+
+		Set<Map.Entry<String, Object>> entries = values.valueSet();
+
+		StringBuilder sqlBuilder = new StringBuilder(32 + size * 24);
+		sqlBuilder.append("INSERT INTO ").append(table).append(" (");
+		boolean first = true;
+		for (Map.Entry<String, Object> entry : entries)
+		{
+			if (!first)
+			{
+				sqlBuilder.append(',');
+			}
+			sqlBuilder.append(entry.getKey());
+			first = false;
+		}
+		sqlBuilder.append(") VALUES (?");
+		for (int i = 1; i < size; ++i)
+		{
+			sqlBuilder.append(",?");
+		}
+		sqlBuilder.append(')');
+
+		String sql = sqlBuilder.toString();
+		SQLiteStatement insert = acquire(sql);
+		try
+		{
+			int index = 1;
+			for (Map.Entry<String, Object> entry : entries)
+			{
+				DatabaseUtils.bindObjectToProgram(insert, index++, entry.getValue());
+			}
+			return insert.executeInsert();
+		}
+		finally
+		{
+			release(sql, insert);
+		}
+	}
+
+
+	/**
+	 * Closes all cached statements.
+	 */
+	private void close()
+	{
+		synchronized (this)
+		{
+			for (SQLiteStatement statement : mStatements.values())
+			{
+				statement.close();
+			}
+			mStatements.clear();
+			mClosed = true;
+		}
+	}
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2015 Marten Gajda <marten@dmfs.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.dmfs.provider.tasks;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+
+
+/**
+ * Storage profiles that tune the SQLite settings of the task database. A profile can be selected by adding a meta-data element with the name
+ * <code>org.dmfs.provider.tasks.STORAGE_PROFILE</code> and the name of the profile as the value to the provider element in the manifest. The default is
+ * {@link #BALANCED}.
+ * <p>
+ * These settings apply to a single connection only. There is no way to configure the read connections of a database in WAL mode, so the settings are applied
+ * to the primary connection that executes all transactions. That means a profile tunes the writes, i.e. syncs, the instance expansion and the FTS indexing.
+ * Queries that don't run in a transaction, including searches, use the framework defaults. The page size is always chosen by the framework. None of the
+ * profiles makes searches faster.
+ * </p>
+ * <p>
+ * The sizes are derived from the size of the database, not from measurements. The largest part of a task database is the FTS n-gram index, a few thousand
+ * tasks with their instances result in a database of a few MiB. A cache that holds the index pages touched by a sync saves re-reading them for every task,
+ * mapping the database saves copying pages that are read within a transaction. The gain depends on the device, so integrators who care should measure a
+ * sync with {@link #FRAMEWORK} and the profile they want to use.
+ * </p>
+ *
+ * @author Marten Gajda <marten@dmfs.org>
+ */
+public enum StorageProfile
+{
+	/**
+	 * Doesn't change any setting, the database runs on the framework defaults.
+	 */
+	FRAMEWORK(null, null, null, null),
+
+	/**
+	 * For devices with little memory. Uses a small page cache and doesn't map the database into memory, since mapped pages count towards the memory usage
+	 * of the process.
+	 */
+	LOW_MEMORY(-512, 0L, "NORMAL", "DEFAULT"),
+
+	/**
+	 * The default profile. A 2 MiB page cache, 16 MiB of memory mapped I/O and temporary tables in memory. The cache equals the default of recent SQLite
+	 * versions, so it mostly takes effect on older ones. 16 MiB map the entire database of a typical user.
+	 */
+	BALANCED(-2048, 16L * 1024L * 1024L, "NORMAL", "MEMORY"),
+
+	/**
+	 * For large databases that receive large syncs. An 8 MiB page cache and 64 MiB of memory mapped I/O, enough to keep the FTS index of tens of thousands
+	 * of tasks in memory while they are synced.
+	 */
+	PERFORMANCE(-8192, 64L * 1024L * 1024L, "NORMAL", "MEMORY");
+
+	/**
+	 * The cache size in pages or, if negative, in KiB or <code>null</code> to use the default.
+	 */
+	private final Integer mCacheSize;
+
+	/**
+	 * The maximum number of bytes to map into memory or <code>null</code> to use the default.
+	 */
+	private final Long mMmapSize;
+
+	/**
+	 * The synchronous mode or <code>null</code> to use the default. This is applied only in WAL mode, in which <code>NORMAL</code> is still safe.
+	 */
+	private final String mSynchronous;
+
+	/**
+	 * The temp store or <code>null</code> to use the default.
+	 */
+	private final String mTempStore;
+
+
+	private StorageProfile(Integer cacheSize, Long mmapSize, String synchronous, String tempStore)
+	{
+		mCacheSize = cacheSize;
+		mMmapSize = mmapSize;
+		mSynchronous = synchronous;
+		mTempStore = tempStore;
+	}
+
+
+	/**
+	 * Returns the {@link StorageProfile} with the given name.
+	 *
+	 * @param name
+	 *            The name of a profile, may be <code>null</code>.
+	 * @return The {@link StorageProfile} or {@link #BALANCED} if there is no profile with the given name.
+	 */
+	public static StorageProfile get(String name)
+	{
+		if (name != null)
+		{
+			for (StorageProfile profile : values())
+			{
+				if (profile.name().equalsIgnoreCase(name))
+				{
+					return profile;
+				}
+			}
+		}
+		return BALANCED;
+	}
+
+
+	/**
+	 * Applies the connection settings of this profile to the primary connection of the given database.
+	 *
+	 * @param db
+	 *            The database.
+	 */
+	void apply(SQLiteDatabase db)
+	{
+		if (db.isReadOnly())
+		{
+			return;
+		}
+
+		// the primary connection is the one that runs transactions, so a transaction makes sure the pragmas end up there
+		db.beginTransaction();
+		try
+		{
+			if (mCacheSize != null)
+			{
+				pragma(db, "cache_size = " + mCacheSize);
+			}
+
+			if (mMmapSize != null)
+			{
+				// older SQLite versions ignore unknown pragmas
+				pragma(db, "mmap_size = " + mMmapSize);
+			}
+			db.setTransactionSuccessful();
+		}
+		finally
+		{
+			db.endTransaction();
+		}
+
+		// the temp store and the synchronous mode can't be changed within a transaction, the synchronous mode is relaxed in WAL mode only
+		if (mTempStore != null)
+		{
+			db.execSQL("PRAGMA temp_store = " + mTempStore);
+		}
+
+		if (mSynchronous != null && "wal".equalsIgnoreCase(DatabaseUtils.stringForQuery(db, "PRAGMA journal_mode", null)))
+		{
+			db.execSQL("PRAGMA synchronous = " + mSynchronous);
+		}
+	}
+
+
+	/**
+	 * Executes a pragma. Some pragmas return a result, so we have to use a query.
+	 */
+	private static void pragma(SQLiteDatabase db, String pragma)
+	{
+		Cursor c = db.rawQuery("PRAGMA " + pragma, null);
+		try
+		{
+			c.moveToFirst();
+		}
+		finally
+		{
+			c.close();
+		}
+	}
+}
@@ -66,6 +66,20 @@ public final class TaskContract
 	 */
 	public static final String CALLER_IS_SYNCADAPTER = "caller_is_syncadapter";
 
+	/**
+	 * URI parameter to allow the provider to commit a large batch in several transactions. If the first operation of a batch has this parameter set to
+	 * <code>true</code> the provider doesn't fail if a batch has too many operations between two yield points. Instead it commits the batch in chunks,
+	 * starting each new chunk at an operation if no later operation has a back-reference to an operation before it. It also yields at such operations if
+	 * other threads have been waiting too long for the batch. The results are still returned at once, but if an operation fails, all earlier chunks remain committed.
+	 */
+	public static final String AUTO_CHUNK_BATCH = "auto_chunk_batch";
+
+	/**
+	 * URI parameter to restrict a query of {@link Tasks} or {@link Instances} to the task list with the given id. Cursors returned by such a query are
+	 * notified only about changes of tasks in that list, so it's the preferred way to show a single task list.
+	 */
+	public static final String LIST_ID = "list_id";
+
 	/**
 	 * URI parameter to signal the request of the extended properties of a task.
 	 */
@@ -99,6 +113,24 @@ public final class TaskContract
 	 */
 	public static final String ACTION_DATABASE_INITIALIZED = "org.dmfs.tasks.DATABASE_INITIALIZED";
 
+	/**
+	 * Broadcast action that's sent while the full-text-search index is being rebuilt, i.e. after an upgrade of the database. The index is usable but
+	 * incomplete until {@link #EXTRA_FTS_REBUILD_INDEXED} equals {@link #EXTRA_FTS_REBUILD_TOTAL}.
+	 * <p />
+	 * The intent data represents the authority of the provider, the MIME type will be {@link #MIMETYPE_AUTHORITY}.
+	 */
+	public static final String ACTION_FTS_REBUILD_PROGRESS = "org.dmfs.tasks.FTS_REBUILD_PROGRESS";
+
+	/**
+	 * An int extra of {@link #ACTION_FTS_REBUILD_PROGRESS} that contains the number of tasks that have been indexed so far.
+	 */
+	public static final String EXTRA_FTS_REBUILD_INDEXED = "org.dmfs.tasks.FTS_REBUILD_INDEXED";
+
+	/**
+	 * An int extra of {@link #ACTION_FTS_REBUILD_PROGRESS} that contains the total number of tasks to index.
+	 */
+	public static final String EXTRA_FTS_REBUILD_TOTAL = "org.dmfs.tasks.FTS_REBUILD_TOTAL";
+
 	/**
 	 * A MIME type of an authority. Authorities itself don't seem to have a MIME type in Android, so we just use our own.
 	 */
@@ -137,7 +169,14 @@ public final class TaskContract
 	/**
 	 * The name of the {@link Intent#ACTION_PROVIDER_CHANGED} extra that contains the {@link ArrayList} of {@link Uri}s that have been modified. This always
 	 * goes along with an {@link #EXTRA_OPERATIONS} which contains a code for the operation executed on a Uri at the same index.
+	 * <p>
+	 * The lists contain all operations in the order they have been executed, including repeated operations on the same {@link Uri}. They are still sent with
+	 * every broadcast, but they can become very large, so they will be removed in a future version. Their removal will be announced in advance.
+	 * </p>
+	 * 
+	 * @deprecated Use {@link #EXTRA_OPERATIONS_BASE_URIS} and {@link #EXTRA_OPERATIONS_RANGES}.
 	 */
+	@Deprecated
 	public final static String EXTRA_OPERATIONS_URIS = "org.dmfs.tasks.OPERATIONS_URIS";
 
 	/**
@@ -148,9 +187,34 @@ public final class TaskContract
 	 * <li>1 - for updates</li>
 	 * <li>2 - for deletes</li>
 	 * </ul>
+	 * <p>
+	 * The same codes are used in {@link #EXTRA_OPERATIONS_RANGES}.
+	 * </p>
+	 * 
+	 * @deprecated Use {@link #EXTRA_OPERATIONS_BASE_URIS} and {@link #EXTRA_OPERATIONS_RANGES}, see {@link #EXTRA_OPERATIONS_URIS}.
 	 */
+	@Deprecated
 	public final static String EXTRA_OPERATIONS = "org.dmfs.tasks.OPERATIONS";
 
+	/**
+	 * The name of the {@link Intent#ACTION_PROVIDER_CHANGED} extra that contains an {@link ArrayList} of the directory {@link Uri}s of the entities in
+	 * {@link #EXTRA_OPERATIONS_RANGES}.
+	 */
+	public final static String EXTRA_OPERATIONS_BASE_URIS = "org.dmfs.tasks.OPERATIONS_BASE_URIS";
+
+	/**
+	 * The name of the {@link Intent#ACTION_PROVIDER_CHANGED} extra that contains the operations as ranges of ids in a <code>long</code> array. Each range takes
+	 * four elements: the operation code (see {@link #EXTRA_OPERATIONS}), the index of the directory {@link Uri} in {@link #EXTRA_OPERATIONS_BASE_URIS}, the
+	 * first id and the last id of the range. An id of <code>-1</code> means the operation has been executed on the directory {@link Uri} itself.
+	 */
+	public final static String EXTRA_OPERATIONS_RANGES = "org.dmfs.tasks.OPERATIONS_RANGES";
+
+	/**
+	 * The name of the {@link Intent#ACTION_PROVIDER_CHANGED} extra that contains a boolean that's <code>true</code> if there were too many operations to report
+	 * all of them. In that case the receiver should assume that anything could have changed and reload everything it needs.
+	 */
+	public final static String EXTRA_OPERATIONS_OVERFLOW = "org.dmfs.tasks.OPERATIONS_OVERFLOW";
+
 
 	/**
 	 * Private constructor to prevent instantiation.
@@ -1030,14 +1094,24 @@ public final class TaskContract
 		 */
 		public static final String INSTANCE_DURATION = "instance_duration";
 
+		/**
+		 * The original time of this instance in milliseconds since the epoch. For instances of recurring tasks this is the time of the instance as defined by
+		 * the recurrence set. For recurrence exceptions this equals {@link TaskColumns#ORIGINAL_INSTANCE_TIME}. For non-recurring tasks this is the start
+		 * date or, if the task has no start date, the due date.
+		 * <p>
+		 * Value: Long
+		 * </p>
+		 * <p>
+		 * read-only
+		 * </p>
+		 */
+		public static final String INSTANCE_ORIGINAL_TIME = "instance_original_time";
+
 	}
 
 	/**
-	 * Instances of a task. At present this table is read only. Currently it contains exactly one entry per task (and task exception), so it's merely a copy of
-	 * {@link Tasks}.
-	 * <p>
-	 * TODO: Insert all instances of recurring the tasks.
-	 * </p>
+	 * Instances of a task. At present this table is read only. It contains one entry per non-recurring task (and task exception) and one entry per instance of
+	 * a recurring task. Instances of recurring tasks are expanded up to a limited horizon in the future, which is advanced periodically.
 	 * <p>
 	 * TODO: In later releases it's planned to provide a convenient interface to add, change or delete task instances via this URI.
 	 * </p>
@@ -1127,8 +1201,30 @@ public final class TaskContract
 
 		static final String CONTENT_URI_PATH = "instances";
 
+		static final String WHEN_URI_PATH = CONTENT_URI_PATH + "/when";
+
+		static final String OVERLAPPING_URI_PATH = CONTENT_URI_PATH + "/overlapping";
+
 		public static final String DEFAULT_SORT_ORDER = INSTANCE_DUE_SORTING;
 
+		/**
+		 * URI parameter to request the instances that overlap a specific time range. The value is the start of the range in milliseconds since the epoch
+		 * (inclusive). Must be used together with {@link #EXPAND_END}.
+		 * <p>
+		 * If present, the instances are computed on the fly from the recurrence sets of the tasks instead of being read from the instances table. The selection
+		 * may refer to task columns and {@link #TASK_ID} only, the sort order may refer to instance columns only and defaults to
+		 * {@link #DEFAULT_SORT_ORDER}. The ranges of {@link #getWhenUri(String, long...)} and {@link #getOverlappingUri(String, long...)} are applied to the
+		 * expanded instances. Instances that are not stored in the instances table have a negative {@link #_ID} that's stable across queries but can't be
+		 * used to access the instance.
+		 * </p>
+		 */
+		public static final String EXPAND_START = "expand_start";
+
+		/**
+		 * URI parameter to submit the end of the time range requested by {@link #EXPAND_START} in milliseconds since the epoch (exclusive).
+		 */
+		public static final String EXPAND_END = "expand_end";
+
 
 		/**
 		 * Get the instances content {@link Uri} using the given authority.
@@ -1142,6 +1238,64 @@ public final class TaskContract
 			return getUriFactory(authority).getUri(CONTENT_URI_PATH);
 		}
 
+
+		/**
+		 * Get a {@link Uri} that returns all instances that start or become due within any of the given time ranges.
+		 * 
+		 * @param authority
+		 *            The authority.
+		 * @param ranges
+		 *            Pairs of start (inclusive) and end (exclusive) timestamps in milliseconds since the epoch.
+		 * @return A {@link Uri}.
+		 */
+		public final static Uri getWhenUri(String authority, long... ranges)
+		{
+			return appendRanges(getUriFactory(authority).getUri(WHEN_URI_PATH), ranges);
+		}
+
+
+		/**
+		 * Get a {@link Uri} that returns all instances that overlap any of the given time ranges, i.e. that start or become due within the range or that
+		 * start before and become due after the range.
+		 * 
+		 * @param authority
+		 *            The authority.
+		 * @param ranges
+		 *            Pairs of start (inclusive) and end (exclusive) timestamps in milliseconds since the epoch.
+		 * @return A {@link Uri}.
+		 */
+		public final static Uri getOverlappingUri(String authority, long... ranges)
+		{
+			return appendRanges(getUriFactory(authority).getUri(OVERLAPPING_URI_PATH), ranges);
+		}
+
+
+		/**
+		 * Appends the start and end values of the given ranges to the given {@link Uri}. The path gets two more segments, one with a comma separated list of
+		 * all starts and one with a comma separated list of all ends.
+		 */
+		private static Uri appendRanges(Uri uri, long... ranges)
+		{
+			if (ranges == null || ranges.length == 0 || ranges.length % 2 != 0)
+			{
+				throw new IllegalArgumentException("ranges must contain pairs of start and end values");
+			}
+
+			StringBuilder starts = new StringBuilder(ranges.length * 7);
+			StringBuilder ends = new StringBuilder(ranges.length * 7);
+			for (int i = 0; i < ranges.length; i += 2)
+			{
+				if (i > 0)
+				{
+					starts.append(',');
+					ends.append(',');
+				}
+				starts.append(ranges[i]);
+				ends.append(ranges[i + 1]);
+			}
+			return uri.buildUpon().appendPath(starts.toString()).appendPath(ends.toString()).build();
+		}
+
 	}
 
 	/**
@@ -1639,6 +1793,8 @@ public final class TaskContract
 			uriFactory.addUri(Tasks.CONTENT_URI_PATH);
 			uriFactory.addUri(Tasks.SEARCH_URI_PATH);
 			uriFactory.addUri(Instances.CONTENT_URI_PATH);
+			uriFactory.addUri(Instances.WHEN_URI_PATH);
+			uriFactory.addUri(Instances.OVERLAPPING_URI_PATH);
 			uriFactory.addUri(Categories.CONTENT_URI_PATH);
 			uriFactory.addUri(Alarms.CONTENT_URI_PATH);
 			uriFactory.addUri(Properties.CONTENT_URI_PATH);
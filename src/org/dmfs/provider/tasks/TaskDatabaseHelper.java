@@ -23,10 +23,14 @@ import org.dmfs.provider.tasks.TaskContract.Property.Category;
 import org.dmfs.provider.tasks.TaskContract.TaskLists;
 import org.dmfs.provider.tasks.TaskContract.Tasks;
 
+import android.annotation.SuppressLint;
 import android.content.ContentValues;
 import android.content.Context;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Build;
 import android.util.Log;
 
 
@@ -60,7 +64,7 @@ public class TaskDatabaseHelper extends SQLiteOpenHelper
 	/**
 	 * The database version.
 	 */
-	static final int DATABASE_VERSION = 16;
+	static final int DATABASE_VERSION = 20;
 
 	/**
 	 * List of all tables we provide.
@@ -94,6 +98,8 @@ public class TaskDatabaseHelper extends SQLiteOpenHelper
 		public static final String ALARMS = "Alarms";
 
 		public static final String SYNCSTATE = "SyncState";
+
+		public static final String INSTANCE_INTERVALS = "Instance_Intervals";
 	}
 
 	/**
@@ -109,6 +115,28 @@ public class TaskDatabaseHelper extends SQLiteOpenHelper
 
 	}
 
+	/**
+	 * Columns of the internal R*Tree that indexes the time interval of each instance. The interval bounds are timestamps in milliseconds since the epoch. Since
+	 * R*Trees store their bounds as 32 bit floats, they are only approximations (rounded outwards) of the actual values.
+	 */
+	public interface InstanceIntervals
+	{
+		/**
+		 * The id of the instance.
+		 */
+		public static final String _ID = "_id";
+
+		/**
+		 * The start of the instance or its due date if it has no start.
+		 */
+		public static final String INTERVAL_START = "interval_start";
+
+		/**
+		 * The due date of the instance or its start if it has no due date.
+		 */
+		public static final String INTERVAL_END = "interval_end";
+	}
+
 	// @formatter:off
 	
 	/**
@@ -242,9 +270,85 @@ public class TaskDatabaseHelper extends SQLiteOpenHelper
 		  + TaskContract.Instances.INSTANCE_DUE + " INTEGER, "
 		  + TaskContract.Instances.INSTANCE_START_SORTING + " INTEGER, "
 		  + TaskContract.Instances.INSTANCE_DUE_SORTING + " INTEGER, "
-		  + TaskContract.Instances.INSTANCE_DURATION + " INTEGER);";
+		  + TaskContract.Instances.INSTANCE_DURATION + " INTEGER, "
+		  + TaskContract.Instances.INSTANCE_ORIGINAL_TIME + " INTEGER);";
+
+	/**
+	 * SQL command to create the index that finds the instances of a task by their original time. The default name of an index on the task id is already
+	 * taken, so this one gets a name of its own.
+	 */
+	private final static String SQL_CREATE_INSTANCE_ORIGINAL_TIME_INDEX =
+		"CREATE INDEX " + Tables.INSTANCES + "_" + TaskContract.Instances.TASK_ID + "_" + TaskContract.Instances.INSTANCE_ORIGINAL_TIME + "_idx ON "
+		+ Tables.INSTANCES + " (" + TaskContract.Instances.TASK_ID + ", " + TaskContract.Instances.INSTANCE_ORIGINAL_TIME + ");";
+
+
+	/**
+	 * SQL command to create the R*Tree that indexes the instance intervals.
+	 */
+	private final static String SQL_CREATE_INSTANCE_INTERVALS_TABLE =
+		"CREATE VIRTUAL TABLE " + Tables.INSTANCE_INTERVALS + " USING rtree ( "
+		+ InstanceIntervals._ID + ", "
+		+ InstanceIntervals.INTERVAL_START + ", "
+		+ InstanceIntervals.INTERVAL_END + ");";
+
+	/**
+	 * SQL expressions that return the interval bounds of the instance given by the prefix ("new." or "old." in triggers).
+	 */
+	private final static String INTERVAL_START_EXPRESSION = "min(coalesce(%1$s" + TaskContract.Instances.INSTANCE_START + ", %1$s" + TaskContract.Instances.INSTANCE_DUE
+		+ "), coalesce(%1$s" + TaskContract.Instances.INSTANCE_DUE + ", %1$s" + TaskContract.Instances.INSTANCE_START + "))";
+	private final static String INTERVAL_END_EXPRESSION = "max(coalesce(%1$s" + TaskContract.Instances.INSTANCE_START + ", %1$s" + TaskContract.Instances.INSTANCE_DUE
+		+ "), coalesce(%1$s" + TaskContract.Instances.INSTANCE_DUE + ", %1$s" + TaskContract.Instances.INSTANCE_START + "))";
+
+	/**
+	 * SQL command to copy the intervals of all existing instances into the R*Tree.
+	 */
+	private final static String SQL_INIT_INSTANCE_INTERVALS =
+		"INSERT INTO " + Tables.INSTANCE_INTERVALS + " SELECT "
+		+ TaskContract.Instances._ID + ", "
+		+ String.format(INTERVAL_START_EXPRESSION, "") + ", "
+		+ String.format(INTERVAL_END_EXPRESSION, "")
+		+ " FROM " + Tables.INSTANCES
+		+ " WHERE coalesce(" + TaskContract.Instances.INSTANCE_START + ", " + TaskContract.Instances.INSTANCE_DUE + ") NOT NULL;";
+
+	/**
+	 * SQL command to create a trigger that adds the interval of new instances to the R*Tree.
+	 */
+	private final static String SQL_CREATE_INSTANCE_INTERVALS_INSERT_TRIGGER =
+		"CREATE TRIGGER instance_intervals_insert_trigger AFTER INSERT ON " + Tables.INSTANCES
+		+ " WHEN coalesce(new." + TaskContract.Instances.INSTANCE_START + ", new." + TaskContract.Instances.INSTANCE_DUE + ") NOT NULL"
+		+ " BEGIN "
+		+ " INSERT INTO " + Tables.INSTANCE_INTERVALS + " VALUES (new." + TaskContract.Instances._ID + ", "
+		+ String.format(INTERVAL_START_EXPRESSION, "new.") + ", " + String.format(INTERVAL_END_EXPRESSION, "new.") + ");"
+		+ " END;";
+
+	/**
+	 * SQL command to create a trigger that updates the interval of modified instances in the R*Tree.
+	 */
+	private final static String SQL_CREATE_INSTANCE_INTERVALS_UPDATE_TRIGGER =
+		"CREATE TRIGGER instance_intervals_update_trigger AFTER UPDATE OF " + TaskContract.Instances.INSTANCE_START + ", " + TaskContract.Instances.INSTANCE_DUE
+		+ " ON " + Tables.INSTANCES
+		+ " BEGIN "
+		+ " DELETE FROM " + Tables.INSTANCE_INTERVALS + " WHERE " + InstanceIntervals._ID + " = old." + TaskContract.Instances._ID + ";"
+		+ " INSERT INTO " + Tables.INSTANCE_INTERVALS + " SELECT new." + TaskContract.Instances._ID + ", "
+		+ String.format(INTERVAL_START_EXPRESSION, "new.") + ", " + String.format(INTERVAL_END_EXPRESSION, "new.")
+		+ " WHERE coalesce(new." + TaskContract.Instances.INSTANCE_START + ", new." + TaskContract.Instances.INSTANCE_DUE + ") NOT NULL;"
+		+ " END;";
+
+	/**
+	 * SQL command to create a trigger that removes the interval of deleted instances from the R*Tree.
+	 */
+	private final static String SQL_CREATE_INSTANCE_INTERVALS_DELETE_TRIGGER =
+		"CREATE TRIGGER instance_intervals_delete_trigger AFTER DELETE ON " + Tables.INSTANCES
+		+ " BEGIN "
+		+ " DELETE FROM " + Tables.INSTANCE_INTERVALS + " WHERE " + InstanceIntervals._ID + " = old." + TaskContract.Instances._ID + ";"
+		+ " END;";
+
+	/**
+	 * SQL command to check whether the R*Tree exists.
+	 */
+	private final static String SQL_HAS_INSTANCE_INTERVALS = 
+		"SELECT count(*) FROM sqlite_master WHERE type = 'table' AND name = '" + Tables.INSTANCE_INTERVALS + "';";
 
-	
 	/**
 	 * SQL command to create a trigger to clean up data of removed tasks.
 	 */
@@ -530,7 +634,7 @@ public class TaskDatabaseHelper extends SQLiteOpenHelper
 			buffer.append(" UNIQUE ");
 		}
 		buffer.append("INDEX ");
-		buffer.append(table).append("_").append(fields[0]).append("_idx ON ");
+		buffer.append(indexName(table, fields[0])).append(" ON ");
 		buffer.append(table).append(" (");
 		buffer.append(fields[0]);
 		for (int i = 1; i < fields.length; i++)
@@ -543,13 +647,116 @@ public class TaskDatabaseHelper extends SQLiteOpenHelper
 
 	}
 
+	/**
+	 * Returns the name of an index created by {@link #createIndexString(String, boolean, String...)}.
+	 * 
+	 * @param table
+	 *            The table name.
+	 * @param field
+	 *            The first field of the index.
+	 * @return The name of the index.
+	 */
+	public final static String indexName(String table, String field)
+	{
+		return table + "_" + field + "_idx";
+	}
+
+	/**
+	 * Creates the indices that link the masters and exceptions of recurring tasks. They allow to find the exceptions of a master by its row id or sync id and
+	 * a master by its sync id without scanning the entire tasks table.
+	 * 
+	 * @param db
+	 *            The database.
+	 */
+	private static void createSeriesIndices(SQLiteDatabase db)
+	{
+		db.execSQL(createIndexString(Tables.TASKS, false, TaskContract.Tasks.ORIGINAL_INSTANCE_ID, TaskContract.Tasks.ORIGINAL_INSTANCE_TIME));
+		db.execSQL(createIndexString(Tables.TASKS, false, TaskContract.Tasks.ORIGINAL_INSTANCE_SYNC_ID));
+		db.execSQL(createIndexString(Tables.TASKS, false, TaskContract.Tasks._SYNC_ID));
+	}
+
+
+	/**
+	 * Creates the R*Tree of instance intervals, fills it with the intervals of all existing instances and creates the triggers that keep it in sync with the
+	 * instances table. Not all SQLite builds include the R*Tree module, if it's missing we continue without the R*Tree.
+	 * 
+	 * @param db
+	 *            The database.
+	 */
+	private static void createInstanceIntervals(SQLiteDatabase db)
+	{
+		try
+		{
+			db.execSQL(SQL_CREATE_INSTANCE_INTERVALS_TABLE);
+		}
+		catch (SQLiteException e)
+		{
+			Log.w(TAG, "R*Tree module not available, instance interval index disabled", e);
+			return;
+		}
+		db.execSQL(SQL_INIT_INSTANCE_INTERVALS);
+		db.execSQL(SQL_CREATE_INSTANCE_INTERVALS_INSERT_TRIGGER);
+		db.execSQL(SQL_CREATE_INSTANCE_INTERVALS_UPDATE_TRIGGER);
+		db.execSQL(SQL_CREATE_INSTANCE_INTERVALS_DELETE_TRIGGER);
+	}
+
+
+	/**
+	 * Returns whether the database contains the R*Tree of instance intervals.
+	 * 
+	 * @param db
+	 *            The database.
+	 * @return <code>true</code> if {@link Tables#INSTANCE_INTERVALS} exists, <code>false</code> otherwise.
+	 */
+	public static boolean hasInstanceIntervals(SQLiteDatabase db)
+	{
+		return DatabaseUtils.longForQuery(db, SQL_HAS_INSTANCE_INTERVALS, null) > 0;
+	}
+
 	private final OnDatabaseOperationListener mListener;
 
 
+	private final StorageProfile mStorageProfile;
+
+
 	TaskDatabaseHelper(Context context, OnDatabaseOperationListener listener)
+	{
+		this(context, listener, StorageProfile.BALANCED);
+	}
+
+
+	@SuppressLint("NewApi")
+	TaskDatabaseHelper(Context context, OnDatabaseOperationListener listener, StorageProfile storageProfile)
 	{
 		super(context, DATABASE_NAME, null, DATABASE_VERSION);
 		mListener = listener;
+		mStorageProfile = storageProfile;
+
+		if (Build.VERSION.SDK_INT >= 16)
+		{
+			// on older devices write-ahead logging is enabled in onOpen
+			setWriteAheadLoggingEnabled(true);
+		}
+	}
+
+
+	/**
+	 * Enables write-ahead logging on devices that support it and applies the {@link StorageProfile}. In WAL mode {@link SQLiteDatabase} keeps a pool of read
+	 * connections. Queries that are not executed within a transaction use one of these, so they don't have to wait for the transactions of sync adapters and
+	 * content operations and they don't block them either.
+	 */
+	@SuppressLint("NewApi")
+	@Override
+	public void onOpen(SQLiteDatabase db)
+	{
+		super.onOpen(db);
+
+		if (Build.VERSION.SDK_INT >= 11 && Build.VERSION.SDK_INT < 16 && !db.isReadOnly())
+		{
+			db.enableWriteAheadLogging();
+		}
+
+		mStorageProfile.apply(db);
 	}
 
 
@@ -585,6 +792,9 @@ public class TaskDatabaseHelper extends SQLiteOpenHelper
 		// create instances table and view
 		db.execSQL(SQL_CREATE_INSTANCES_TABLE);
 
+		// create the instance interval index
+		createInstanceIntervals(db);
+
 		// create categories table
 		db.execSQL(SQL_CREATE_CATEGORIES_TABLE);
 
@@ -612,9 +822,11 @@ public class TaskDatabaseHelper extends SQLiteOpenHelper
 			TaskContract.Instances.INSTANCE_DUE));
 		db.execSQL(createIndexString(Tables.INSTANCES, false, TaskContract.Instances.INSTANCE_START_SORTING));
 		db.execSQL(createIndexString(Tables.INSTANCES, false, TaskContract.Instances.INSTANCE_DUE_SORTING));
+		db.execSQL(SQL_CREATE_INSTANCE_ORIGINAL_TIME_INDEX);
 		db.execSQL(createIndexString(Tables.LISTS, false, TaskContract.TaskLists.ACCOUNT_NAME, // not sure if necessary
 			TaskContract.TaskLists.ACCOUNT_TYPE));
 		db.execSQL(createIndexString(Tables.TASKS, false, TaskContract.Tasks.STATUS, TaskContract.Tasks.LIST_ID, TaskContract.Tasks._SYNC_ID));
+		createSeriesIndices(db);
 		db.execSQL(createIndexString(Tables.PROPERTIES, false, TaskContract.Properties.MIMETYPE, TaskContract.Properties.TASK_ID));
 		db.execSQL(createIndexString(Tables.PROPERTIES, false, TaskContract.Properties.TASK_ID));
 		db.execSQL(createIndexString(Tables.CATEGORIES, false, TaskContract.Categories.ACCOUNT_NAME, TaskContract.Categories.ACCOUNT_TYPE,
@@ -779,6 +991,27 @@ public class TaskDatabaseHelper extends SQLiteOpenHelper
 			db.execSQL(createIndexString(Tables.INSTANCES, false, TaskContract.Instances.INSTANCE_DUE_SORTING));
 		}
 
+		if (oldVersion < 17)
+		{
+			// add the original time column to the instances, recurring tasks are expanded by the TaskProvider once the upgrade is complete
+			db.execSQL("ALTER TABLE " + Tables.INSTANCES + " ADD COLUMN " + TaskContract.Instances.INSTANCE_ORIGINAL_TIME + " INTEGER");
+			db.execSQL("UPDATE " + Tables.INSTANCES + " SET " + TaskContract.Instances.INSTANCE_ORIGINAL_TIME + " = coalesce((SELECT "
+				+ TaskContract.Tasks.ORIGINAL_INSTANCE_TIME + " FROM " + Tables.TASKS + " WHERE " + Tables.TASKS + "." + TaskContract.Tasks._ID + " = "
+				+ Tables.INSTANCES + "." + TaskContract.Instances.TASK_ID + "), " + TaskContract.Instances.INSTANCE_START + ", "
+				+ TaskContract.Instances.INSTANCE_DUE + ")");
+			db.execSQL(SQL_CREATE_INSTANCE_ORIGINAL_TIME_INDEX);
+		}
+
+		if (oldVersion < 18)
+		{
+			createInstanceIntervals(db);
+		}
+
+		if (oldVersion < 19)
+		{
+			createSeriesIndices(db);
+		}
+
 		// upgrade FTS
 		FTSDatabaseHelper.onUpgrade(db, oldVersion, newVersion);
 
@@ -23,6 +23,9 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Pattern;
 
 import org.dmfs.provider.tasks.TaskContract.Alarms;
 import org.dmfs.provider.tasks.TaskContract.Categories;
@@ -36,6 +39,7 @@ import org.dmfs.provider.tasks.TaskContract.TaskListColumns;
 import org.dmfs.provider.tasks.TaskContract.TaskListSyncColumns;
 import org.dmfs.provider.tasks.TaskContract.TaskLists;
 import org.dmfs.provider.tasks.TaskContract.Tasks;
+import org.dmfs.provider.tasks.TaskDatabaseHelper.InstanceIntervals;
 import org.dmfs.provider.tasks.TaskDatabaseHelper.OnDatabaseOperationListener;
 import org.dmfs.provider.tasks.TaskDatabaseHelper.Tables;
 import org.dmfs.provider.tasks.handler.PropertyHandler;
@@ -56,6 +60,8 @@ import org.dmfs.provider.tasks.processors.tasks.RelationProcessor;
 import org.dmfs.provider.tasks.processors.tasks.TaskExecutionProcessor;
 import org.dmfs.provider.tasks.processors.tasks.TaskInstancesProcessor;
 import org.dmfs.provider.tasks.processors.tasks.TaskValidatorProcessor;
+import org.dmfs.provider.tasks.recurrence.InstanceExpansionCursor;
+import org.dmfs.rfc5545.DateTime;
 
 import android.accounts.Account;
 import android.accounts.AccountManager;
@@ -89,8 +95,6 @@ import android.text.TextUtils;
 /**
  * The provider for tasks.
  * 
- * TODO: add support for recurring tasks
- * 
  * TODO: add support for reminders
  * 
  * TODO: add support for attendees
@@ -110,6 +114,8 @@ public final class TaskProvider extends SQLiteContentProvider implements OnAccou
 	private static final int TASK_ID = 102;
 	private static final int INSTANCES = 103;
 	private static final int INSTANCE_ID = 104;
+	private static final int INSTANCES_WHEN = 105;
+	private static final int INSTANCES_OVERLAPPING = 106;
 	private static final int CATEGORIES = 1001;
 	private static final int CATEGORY_ID = 1002;
 	private static final int PROPERTIES = 1003;
@@ -122,6 +128,60 @@ public final class TaskProvider extends SQLiteContentProvider implements OnAccou
 
 	private static final int OPERATIONS = 100000;
 
+	/**
+	 * The name of the meta-data element that contains the instance expansion horizon in days.
+	 */
+	private final static String META_DATA_INSTANCE_HORIZON = "org.dmfs.provider.tasks.INSTANCE_HORIZON_DAYS";
+
+	/**
+	 * The name of the meta-data element that contains the name of the {@link StorageProfile} to use.
+	 */
+	private final static String META_DATA_STORAGE_PROFILE = "org.dmfs.provider.tasks.STORAGE_PROFILE";
+
+	/**
+	 * The name of the meta-data element that contains the time budget of a database maintenance run in milliseconds.
+	 */
+	private final static String META_DATA_MAINTENANCE_BUDGET = "org.dmfs.provider.tasks.MAINTENANCE_BUDGET_MS";
+
+	/**
+	 * The name of the meta-data element that contains the time window in milliseconds to coalesce change notifications. Use 0 to send notifications
+	 * immediately.
+	 */
+	private final static String META_DATA_NOTIFICATION_WINDOW = "org.dmfs.provider.tasks.NOTIFICATION_WINDOW_MS";
+
+	/**
+	 * The name of the meta-data element that enables deferred full-text-search indexing. If <code>true</code> changed tasks are indexed in the background
+	 * instead of within the write transaction.
+	 */
+	private final static String META_DATA_DEFERRED_FTS_INDEXING = "org.dmfs.provider.tasks.DEFERRED_FTS_INDEXING";
+
+	/**
+	 * The time in milliseconds without any changes after which we run a database maintenance.
+	 */
+	private final static long MAINTENANCE_IDLE_DELAY = 5L * 60L * 1000L;
+
+	/**
+	 * The time in milliseconds after a change before pending full-text-search entries are indexed.
+	 */
+	private final static long FTS_INDEXING_DELAY = 1000L;
+
+	/**
+	 * The interval in milliseconds to push the instance expansion horizon forward.
+	 */
+	private final static long INSTANCE_EXPANSION_INTERVAL = 24L * 3600L * 1000L;
+
+	/**
+	 * The margin in milliseconds to add to ranges when querying the instance intervals.
+	 */
+	private final static long INSTANCE_INTERVAL_MARGIN = 24L * 3600L * 1000L;
+
+	/**
+	 * Matches the instance columns that are computed by the expansion. The selection of expanded instances is applied to the tasks, so it can't refer to them.
+	 */
+	private final static Pattern EXPANDED_INSTANCE_COLUMNS = Pattern.compile("\\b(" + Instances._ID + "|" + Instances.INSTANCE_START + "|"
+		+ Instances.INSTANCE_START_SORTING + "|" + Instances.INSTANCE_DUE + "|" + Instances.INSTANCE_DUE_SORTING + "|" + Instances.INSTANCE_DURATION + "|"
+		+ Instances.INSTANCE_ORIGINAL_TIME + ")\\b", Pattern.CASE_INSENSITIVE);
+
 	private final static Set<String> TASK_LIST_SYNC_COLUMNS = new HashSet<String>(Arrays.asList(TaskLists.SYNC_ADAPTER_COLUMNS));
 
 	/**
@@ -150,10 +210,91 @@ public final class TaskProvider extends SQLiteContentProvider implements OnAccou
 	Handler mAsyncHandler;
 
 	/**
-	 * An {@link ProviderOperationsLog} to track all changes within a transaction.
+	 * An {@link ProviderOperationsLog} to track all committed changes that have not been broadcast yet.
 	 */
 	private ProviderOperationsLog mOperationsLog = new ProviderOperationsLog();
 
+	/**
+	 * The {@link ProviderOperationsLog} of the current transaction of each thread. It's added to {@link #mOperationsLog} when the transaction has been
+	 * committed and dropped when it has been rolled back.
+	 */
+	private final ThreadLocal<ProviderOperationsLog> mPendingOperationsLog = new ThreadLocal<ProviderOperationsLog>()
+	{
+		@Override
+		protected ProviderOperationsLog initialValue()
+		{
+			return new ProviderOperationsLog();
+		}
+	};
+
+	/**
+	 * The horizon in milliseconds up to which recurring tasks are expanded.
+	 */
+	private long mInstanceHorizon = TaskInstancesProcessor.DEFAULT_HORIZON;
+
+	/**
+	 * Whether the database has an R*Tree of instance intervals or <code>null</code> if we didn't check yet.
+	 */
+	private volatile Boolean mHasInstanceIntervals;
+
+	/**
+	 * The {@link StorageProfile} of the database.
+	 */
+	private StorageProfile mStorageProfile = StorageProfile.BALANCED;
+
+	/**
+	 * The time budget of a database maintenance run in milliseconds.
+	 */
+	private long mMaintenanceBudget = DatabaseMaintenance.DEFAULT_BUDGET;
+
+	/**
+	 * The time window in milliseconds to coalesce change notifications.
+	 */
+	private long mNotificationWindow = NotificationDispatcher.DEFAULT_WINDOW;
+
+	/**
+	 * The {@link NotificationDispatcher} that sends the change notifications on the thread of {@link #mAsyncHandler}.
+	 */
+	private NotificationDispatcher mNotificationDispatcher;
+
+	/**
+	 * Whether changed tasks are indexed for the full-text-search in the background.
+	 */
+	private boolean mDeferredFtsIndexing;
+
+	/**
+	 * Whether {@link #mFtsIndexing} has been posted and not started yet.
+	 */
+	private final AtomicBoolean mFtsIndexingScheduled = new AtomicBoolean();
+
+	/**
+	 * Indexes all pending full-text-search entries.
+	 */
+	private final Runnable mFtsIndexing = new Runnable()
+	{
+		@Override
+		public void run()
+		{
+			// entries that are queued from now on need another run
+			mFtsIndexingScheduled.set(false);
+			ContentOperation.INDEX_FTS.fire(getContext(), null);
+		}
+	};
+
+	/**
+	 * Runs a database maintenance. It's posted to {@link #mAsyncHandler} whenever the provider has been idle for {@link #MAINTENANCE_IDLE_DELAY}.
+	 */
+	private final Runnable mMaintenance = new Runnable()
+	{
+		@Override
+		public void run()
+		{
+			ContentValues values = new ContentValues(1);
+			DatabaseMaintenance.addBudget(values, mMaintenanceBudget);
+			ContentOperation.MAINTENANCE.fire(getContext(), values);
+		}
+	};
+
 
 	@Override
 	public boolean onCreate()
@@ -162,11 +303,24 @@ public final class TaskProvider extends SQLiteContentProvider implements OnAccou
 
 		mAuthority = providerInfo.authority;
 
+		if (providerInfo.metaData != null && providerInfo.metaData.containsKey(META_DATA_INSTANCE_HORIZON))
+		{
+			mInstanceHorizon = providerInfo.metaData.getInt(META_DATA_INSTANCE_HORIZON) * 24L * 3600L * 1000L;
+		}
+
+		if (providerInfo.metaData != null)
+		{
+			mStorageProfile = StorageProfile.get(providerInfo.metaData.getString(META_DATA_STORAGE_PROFILE));
+			mMaintenanceBudget = providerInfo.metaData.getInt(META_DATA_MAINTENANCE_BUDGET, (int) DatabaseMaintenance.DEFAULT_BUDGET);
+			mNotificationWindow = providerInfo.metaData.getInt(META_DATA_NOTIFICATION_WINDOW, (int) NotificationDispatcher.DEFAULT_WINDOW);
+			mDeferredFtsIndexing = providerInfo.metaData.getBoolean(META_DATA_DEFERRED_FTS_INDEXING, false);
+		}
+
 		mTaskProcessors.add(new TaskValidatorProcessor());
 		mTaskProcessors.add(new AutoUpdateProcessor());
 		mTaskProcessors.add(new RelationProcessor());
-		mTaskProcessors.add(new TaskInstancesProcessor());
-		mTaskProcessors.add(new FtsProcessor());
+		mTaskProcessors.add(new TaskInstancesProcessor(mInstanceHorizon));
+		mTaskProcessors.add(new FtsProcessor(mDeferredFtsIndexing));
 		mTaskProcessors.add(new ChangeListProcessor());
 		mTaskProcessors.add(new TaskExecutionProcessor());
 
@@ -183,6 +337,8 @@ public final class TaskProvider extends SQLiteContentProvider implements OnAccou
 
 		mUriMatcher.addURI(mAuthority, TaskContract.Instances.CONTENT_URI_PATH, INSTANCES);
 		mUriMatcher.addURI(mAuthority, TaskContract.Instances.CONTENT_URI_PATH + "/#", INSTANCE_ID);
+		mUriMatcher.addURI(mAuthority, TaskContract.Instances.WHEN_URI_PATH + "/*/*", INSTANCES_WHEN);
+		mUriMatcher.addURI(mAuthority, TaskContract.Instances.OVERLAPPING_URI_PATH + "/*/*", INSTANCES_OVERLAPPING);
 
 		mUriMatcher.addURI(mAuthority, TaskContract.Properties.CONTENT_URI_PATH, PROPERTIES);
 		mUriMatcher.addURI(mAuthority, TaskContract.Properties.CONTENT_URI_PATH + "/#", PROPERTY_ID);
@@ -207,10 +363,25 @@ public final class TaskProvider extends SQLiteContentProvider implements OnAccou
 		thread.start();
 		mAsyncHandler = new Handler(thread.getLooper());
 
+		// content operations can block the background thread for minutes, so notifications are sent on a thread of their own
+		HandlerThread notificationThread = new HandlerThread("notificationHandler");
+		notificationThread.start();
+		mNotificationDispatcher = new NotificationDispatcher(getContext().getContentResolver(), new Handler(notificationThread.getLooper()),
+			mNotificationWindow);
+
 		AccountManager accountManager = AccountManager.get(getContext());
 		accountManager.addOnAccountsUpdatedListener(this, mAsyncHandler, true);
 
 		updateNotifications();
+		expandInstances();
+		scheduleMaintenance();
+		// index entries that are left over from the last run, even if indexing is no longer deferred
+		scheduleFtsIndexing();
+		if (FtsRebuilder.isPending(getContext().getSharedPreferences(ContentOperation.PREFS_NAME, Context.MODE_PRIVATE)))
+		{
+			// the process died during a rebuild, continue where it stopped
+			rebuildFts();
+		}
 
 		return result;
 	}
@@ -232,6 +403,22 @@ public final class TaskProvider extends SQLiteContentProvider implements OnAccou
 	}
 
 
+	@Override
+	protected boolean isAutoChunkingAllowed(Uri uri)
+	{
+		String param = uri.getQueryParameter(TaskContract.AUTO_CHUNK_BATCH);
+		return param != null && !"false".equals(param);
+	}
+
+
+	@Override
+	protected boolean isGroupCommitAllowed(Uri uri)
+	{
+		// content operations post jobs to the async handler, a retry of the group would run them twice
+		return ContentOperation.get(mUriMatcher.match(uri), OPERATIONS) == null;
+	}
+
+
 	/**
 	 * Return true if the URI indicates to a load extended properties with {@link TaskContract#LOAD_PROPERTIES}.
 	 * 
@@ -501,13 +688,17 @@ public final class TaskProvider extends SQLiteContentProvider implements OnAccou
 	@Override
 	public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder)
 	{
-		final SQLiteDatabase db = getDatabaseHelper().getWritableDatabase();
+		// queries run on the read connections of the database, see TaskDatabaseHelper#onOpen(SQLiteDatabase)
+		final SQLiteDatabase db = getDatabaseHelper().getReadableDatabase();
 		SQLiteQueryBuilder sqlBuilder = new SQLiteQueryBuilder();
 		// initialize appendWhere, this allows us to append all other selections with a preceding "AND"
 		sqlBuilder.appendWhere(" 1=1 ");
 		boolean isSyncAdapter = isCallerSyncAdapter(uri);
+		// the Uri to register the result for notifications, see postNotifyTask(long, Long)
+		Uri notificationUri = uri;
 
-		switch (mUriMatcher.match(uri))
+		int match = mUriMatcher.match(uri);
+		switch (match)
 		{
 			case SYNCSTATE_ID:
 				// the id is ignored, we only match by account type and name given in the Uri
@@ -559,6 +750,7 @@ public final class TaskProvider extends SQLiteContentProvider implements OnAccou
 					sqlBuilder.appendWhere(Tasks._DELETED);
 					sqlBuilder.appendWhere("=0");
 				}
+				notificationUri = selectList(sqlBuilder, uri, Tasks.getContentUri(mAuthority));
 				if (sortOrder == null || sortOrder.length() == 0)
 				{
 					sortOrder = TaskContract.Tasks.DEFAULT_SORT_ORDER;
@@ -589,7 +781,26 @@ public final class TaskProvider extends SQLiteContentProvider implements OnAccou
 				}
 				break;
 
+			case INSTANCES_WHEN:
+			case INSTANCES_OVERLAPPING:
+				if (uri.getQueryParameter(Instances.EXPAND_START) != null)
+				{
+					// expand the instances on the fly and filter them by the given time ranges
+					return queryExpandedInstances(db, uri, projection, selection, selectionArgs, sortOrder, instanceRanges(uri), match == INSTANCES_OVERLAPPING,
+						isSyncAdapter);
+				}
+				// restrict the result to the given time ranges and continue like a regular instances query
+				sqlBuilder.appendWhere(" AND ");
+				sqlBuilder.appendWhere(instanceRangeSelection(db, uri, match == INSTANCES_OVERLAPPING));
+
 			case INSTANCES:
+				if (uri.getQueryParameter(Instances.EXPAND_START) != null)
+				{
+					// expand the instances on the fly instead of reading the instances table
+					return queryExpandedInstances(db, uri, projection, selection, selectionArgs, sortOrder, null, true, isSyncAdapter);
+				}
+				// instances are notified per task, so range queries have to listen to the instances Uri
+				notificationUri = selectList(sqlBuilder, uri, Instances.getContentUri(mAuthority));
 				if (shouldLoadProperties(uri))
 				{
 					// extended properties were requested, therefore change to instance view that includes these properties
@@ -623,6 +834,8 @@ public final class TaskProvider extends SQLiteContentProvider implements OnAccou
 					sqlBuilder.setTables(Tables.INSTANCE_VIEW);
 				}
 				selectId(sqlBuilder, Instances._ID, uri);
+				// we don't know the task of the instance, so listen to all instances
+				notificationUri = Instances.getContentUri(mAuthority);
 				if (!isSyncAdapter)
 				{
 					// do not return deleted rows if caller is not a sync adapter
@@ -683,12 +896,246 @@ public final class TaskProvider extends SQLiteContentProvider implements OnAccou
 
 		if (c != null)
 		{
-			c.setNotificationUri(getContext().getContentResolver(), uri);
+			c.setNotificationUri(getContext().getContentResolver(), notificationUri);
 		}
 		return c;
 	}
 
 
+	/**
+	 * Restricts the given query to the task list in the {@link TaskContract#LIST_ID} parameter of the given {@link Uri}, if any.
+	 * 
+	 * @param sqlBuilder
+	 *            The {@link SQLiteQueryBuilder} of the query.
+	 * @param uri
+	 *            The {@link Uri} of the query.
+	 * @param defaultNotificationUri
+	 *            The notification {@link Uri} of a query that's not restricted to a list.
+	 * @return The {@link Uri} to register the result for notifications, that's the contents {@link Uri} of the list or the default {@link Uri}.
+	 */
+	private Uri selectList(SQLiteQueryBuilder sqlBuilder, Uri uri, Uri defaultNotificationUri)
+	{
+		String listId = uri.getQueryParameter(TaskContract.LIST_ID);
+		if (listId == null)
+		{
+			return defaultNotificationUri;
+		}
+
+		try
+		{
+			long id = Long.parseLong(listId);
+			sqlBuilder.appendWhere(" AND ");
+			sqlBuilder.appendWhere(Tasks.LIST_ID);
+			sqlBuilder.appendWhere("=" + id);
+			return Utils.listContentsUri(mAuthority, id);
+		}
+		catch (NumberFormatException e)
+		{
+			throw new IllegalArgumentException("invalid list id: " + uri);
+		}
+	}
+
+
+	/**
+	 * Returns a selection for all instances within the time ranges of the given {@link Instances#getWhenUri(String, long...)} or
+	 * {@link Instances#getOverlappingUri(String, long...)} {@link Uri}.
+	 * <p>
+	 * The selection selects the instance ids with a union of simple range queries on {@link Instances#INSTANCE_START_SORTING} and
+	 * {@link Instances#INSTANCE_DUE_SORTING}. Each of them is forced to use the respective index, so SQLite can't fall back to a full table scan.
+	 * </p>
+	 * <p>
+	 * Overlapping instances are looked up in the R*Tree of instance intervals, if the database has one. The R*Tree contains approximate timestamps, so it's
+	 * queried with a margin and the result is filtered by the exact sorting values.
+	 * </p>
+	 * 
+	 * @param db
+	 *            The database.
+	 * @param uri
+	 *            The {@link Uri}.
+	 * @param overlapping
+	 *            <code>true</code> to include instances that start before and become due after a range.
+	 * @return The selection.
+	 */
+	private String instanceRangeSelection(SQLiteDatabase db, Uri uri, boolean overlapping)
+	{
+		long[] ranges = instanceRanges(uri);
+
+		String startIndex = TaskDatabaseHelper.indexName(Tables.INSTANCES, Instances.INSTANCE_START_SORTING);
+		String dueIndex = TaskDatabaseHelper.indexName(Tables.INSTANCES, Instances.INSTANCE_DUE_SORTING);
+
+		// the sorting values are local instances, so convert the timestamps accordingly
+		TimeZone localTimeZone = TimeZone.getDefault();
+		boolean useIntervals = overlapping && hasInstanceIntervals(db);
+		StringBuilder selection = new StringBuilder(256);
+		StringBuilder exactSelection = new StringBuilder(128);
+		selection.append(Instances._ID).append(" IN (");
+		for (int i = 0, count = ranges.length; i < count; i += 2)
+		{
+			long start = new DateTime(localTimeZone, ranges[i]).getInstance();
+			long end = new DateTime(localTimeZone, ranges[i + 1]).getInstance();
+
+			if (i > 0)
+			{
+				selection.append(" UNION ");
+				exactSelection.append(" OR ");
+			}
+
+			if (useIntervals)
+			{
+				// all instances whose interval intersects the range, the margin covers all-day instances and the local time offset
+				selection.append("SELECT ").append(InstanceIntervals._ID).append(" FROM ").append(Tables.INSTANCE_INTERVALS);
+				selection.append(" WHERE ").append(InstanceIntervals.INTERVAL_START).append(" < ").append(endTimestamp + INSTANCE_INTERVAL_MARGIN);
+				selection.append(" AND ").append(InstanceIntervals.INTERVAL_END).append(" >= ").append(startTimestamp - INSTANCE_INTERVAL_MARGIN);
+
+				exactSelection.append("coalesce(").append(Instances.INSTANCE_START_SORTING).append(", ").append(Instances.INSTANCE_DUE_SORTING)
+					.append(") < ").append(end);
+				exactSelection.append(" AND coalesce(").append(Instances.INSTANCE_DUE_SORTING).append(", ").append(Instances.INSTANCE_START_SORTING)
+					.append(") >= ").append(start);
+			}
+			else
+			{
+				// instances that start within the range
+				selection.append("SELECT ").append(Instances._ID).append(" FROM ").append(Tables.INSTANCES).append(" INDEXED BY ").append(startIndex);
+				selection.append(" WHERE ").append(Instances.INSTANCE_START_SORTING).append(" >= ").append(start);
+				selection.append(" AND ").append(Instances.INSTANCE_START_SORTING).append(" < ").append(end);
+
+				// instances that become due within the range
+				selection.append(" UNION SELECT ").append(Instances._ID).append(" FROM ").append(Tables.INSTANCES).append(" INDEXED BY ").append(dueIndex);
+				selection.append(" WHERE ").append(Instances.INSTANCE_DUE_SORTING).append(" >= ").append(start);
+				selection.append(" AND ").append(Instances.INSTANCE_DUE_SORTING).append(" < ").append(end);
+
+				if (overlapping)
+				{
+					// instances that start before and become due after the range
+					selection.append(" UNION SELECT ").append(Instances._ID).append(" FROM ").append(Tables.INSTANCES).append(" INDEXED BY ").append(dueIndex);
+					selection.append(" WHERE ").append(Instances.INSTANCE_DUE_SORTING).append(" >= ").append(end);
+					selection.append(" AND ").append(Instances.INSTANCE_START_SORTING).append(" < ").append(start);
+				}
+			}
+		}
+		selection.append(")");
+		if (useIntervals)
+		{
+			selection.append(" AND (").append(exactSelection).append(")");
+		}
+		return selection.toString();
+	}
+
+
+	/**
+	 * Returns the time ranges of an {@link Instances#getWhenUri(String, long...)} or {@link Instances#getOverlappingUri(String, long...)}.
+	 * 
+	 * @return An array with pairs of start (inclusive) and end (exclusive) timestamps.
+	 */
+	private static long[] instanceRanges(Uri uri)
+	{
+		List<String> segments = uri.getPathSegments();
+		String[] starts = segments.get(segments.size() - 2).split(",");
+		String[] ends = segments.get(segments.size() - 1).split(",");
+		if (starts.length != ends.length)
+		{
+			throw new IllegalArgumentException("number of range starts and ends doesn't match: " + uri);
+		}
+
+		long[] result = new long[starts.length * 2];
+		try
+		{
+			for (int i = 0, count = starts.length; i < count; ++i)
+			{
+				result[i * 2] = Long.parseLong(starts[i]);
+				result[i * 2 + 1] = Long.parseLong(ends[i]);
+			}
+		}
+		catch (NumberFormatException e)
+		{
+			throw new IllegalArgumentException("invalid instance range: " + uri);
+		}
+		return result;
+	}
+
+
+	/**
+	 * Returns whether the database has an R*Tree of instance intervals. The result is cached.
+	 */
+	private boolean hasInstanceIntervals(SQLiteDatabase db)
+	{
+		if (mHasInstanceIntervals == null)
+		{
+			mHasInstanceIntervals = TaskDatabaseHelper.hasInstanceIntervals(db);
+		}
+		return mHasInstanceIntervals;
+	}
+
+
+	/**
+	 * Returns the instances of all tasks matching the given selection within the time range given by the {@link Instances#EXPAND_START} and
+	 * {@link Instances#EXPAND_END} parameters of the given {@link Uri}. The instances are expanded on the fly, see {@link InstanceExpansionCursor}.
+	 * <p>
+	 * The selection is applied to the tasks, so it may refer to task columns and {@link Instances#TASK_ID} only. The result is sorted in memory, so the sort
+	 * order may refer to instance columns only. It defaults to {@link Instances#DEFAULT_SORT_ORDER}.
+	 * </p>
+	 * 
+	 * @param ranges
+	 *            Pairs of start and end timestamps the instances must match in addition or <code>null</code>.
+	 * @param overlapping
+	 *            <code>true</code> to return the instances that overlap any of the ranges, <code>false</code> to return the instances that start or become
+	 *            due within any of the ranges.
+	 */
+	private Cursor queryExpandedInstances(SQLiteDatabase db, Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder,
+		long[] ranges, boolean overlapping, boolean isSyncAdapter)
+	{
+		if (sortOrder == null || sortOrder.length() == 0)
+		{
+			sortOrder = TaskContract.Instances.DEFAULT_SORT_ORDER;
+		}
+
+		if (selection != null && EXPANDED_INSTANCE_COLUMNS.matcher(selection).find())
+		{
+			throw new IllegalArgumentException("the selection of expanded instances can't refer to instance columns other than " + Instances.TASK_ID + ": "
+				+ selection);
+		}
+
+		String startParam = uri.getQueryParameter(Instances.EXPAND_START);
+		String endParam = uri.getQueryParameter(Instances.EXPAND_END);
+		if (endParam == null)
+		{
+			throw new IllegalArgumentException(Instances.EXPAND_START + " requires " + Instances.EXPAND_END + ": " + uri);
+		}
+
+		long start;
+		long end;
+		try
+		{
+			start = Long.parseLong(startParam);
+			end = Long.parseLong(endParam);
+		}
+		catch (NumberFormatException e)
+		{
+			throw new IllegalArgumentException("invalid instance range: " + uri);
+		}
+
+		SQLiteQueryBuilder sqlBuilder = new SQLiteQueryBuilder();
+		// the selection is applied to the tasks, the task id is the only instance column it can refer to
+		sqlBuilder.setTables("(SELECT *, " + Tasks._ID + " AS " + Instances.TASK_ID + " FROM " + Tables.TASKS_VIEW + ")");
+		// a task can't have any instances in the range if it starts after the end of the range, unless it has RDATEs which may be earlier than the start
+		sqlBuilder.appendWhere("(coalesce(" + Tasks.DTSTART + ", " + Tasks.DUE + ") < " + end + " OR " + Tasks.RDATE + " NOT NULL)");
+		if (!isSyncAdapter)
+		{
+			// do not return deleted rows if caller is not a sync adapter
+			sqlBuilder.appendWhere(" AND ");
+			sqlBuilder.appendWhere(Tasks._DELETED);
+			sqlBuilder.appendWhere("=0");
+		}
+
+		Uri notificationUri = selectList(sqlBuilder, uri, Instances.getContentUri(mAuthority));
+
+		Cursor c = new InstanceExpansionCursor(db, sqlBuilder.query(db, null, selection, selectionArgs, null, null, null), projection, start, end, ranges,
+			overlapping, sortOrder);
+		c.setNotificationUri(getContext().getContentResolver(), notificationUri);
+		return c;
+	}
+
+
 	@Override
 	public int deleteInTransaction(final SQLiteDatabase db, Uri uri, String selection, String[] selectionArgs, final boolean isSyncAdapter)
 	{
@@ -696,7 +1143,8 @@ public final class TaskProvider extends SQLiteContentProvider implements OnAccou
 		String accountName = getAccountName(uri);
 		String accountType = getAccountType(uri);
 
-		switch (mUriMatcher.match(uri))
+		int match = mUriMatcher.match(uri);
+		switch (match)
 		{
 			case SYNCSTATE_ID:
 				// the id is ignored, we only match by account type and name given in the Uri
@@ -739,7 +1187,7 @@ public final class TaskProvider extends SQLiteContentProvider implements OnAccou
 					{
 						final ListAdapter list = new CursorContentValuesListAdapter(ListAdapter._ID.getFrom(cursor), cursor, new ContentValues());
 
-						ProviderOperation.DELETE.execute(db, mListProcessors, list, isSyncAdapter, mOperationsLog, mAuthority);
+						ProviderOperation.DELETE.execute(db, mListProcessors, list, isSyncAdapter, mPendingOperationsLog.get(), mAuthority);
 						count++;
 					}
 				}
@@ -779,7 +1227,8 @@ public final class TaskProvider extends SQLiteContentProvider implements OnAccou
 					{
 						final TaskAdapter task = new CursorContentValuesTaskAdapter(cursor, new ContentValues());
 
-						ProviderOperation.DELETE.execute(db, mTaskProcessors, task, isSyncAdapter, mOperationsLog, mAuthority);
+						ProviderOperation.DELETE.execute(db, mTaskProcessors, task, isSyncAdapter, mPendingOperationsLog.get(), mAuthority);
+						postNotifyTask(task.id(), task.valueOf(TaskAdapter.LIST_ID));
 						count++;
 					}
 				}
@@ -820,6 +1269,7 @@ public final class TaskProvider extends SQLiteContentProvider implements OnAccou
 						{
 							PropertyHandler handler = PropertyHandlerFactory.get(mimeType);
 							count += handler.delete(db, taskId, propertyId, cursor, isSyncAdapter);
+							postNotifyTask(db, taskId);
 						}
 					}
 				}
@@ -834,11 +1284,11 @@ public final class TaskProvider extends SQLiteContentProvider implements OnAccou
 				throw new IllegalArgumentException("Unknown URI " + uri);
 		}
 
-		if (count > 0)
+		// the tasks of task and property Uris have been notified one by one, notifying the tasks Uri would notify every task cursor
+		if (count > 0 && match != TASKS && match != TASK_ID && match != PROPERTIES && match != PROPERTY_ID)
 		{
 			postNotifyUri(uri);
-			postNotifyUri(Instances.getContentUri(mAuthority));
-			postNotifyUri(Tasks.getContentUri(mAuthority));
+			postNotifyAllTasks();
 		}
 		return count;
 	}
@@ -853,7 +1303,8 @@ public final class TaskProvider extends SQLiteContentProvider implements OnAccou
 		String accountName = getAccountName(uri);
 		String accountType = getAccountType(uri);
 
-		switch (mUriMatcher.match(uri))
+		int match = mUriMatcher.match(uri);
+		switch (match)
 		{
 			case SYNCSTATE:
 			{
@@ -877,7 +1328,7 @@ public final class TaskProvider extends SQLiteContentProvider implements OnAccou
 				list.set(ListAdapter.ACCOUNT_NAME, accountName);
 				list.set(ListAdapter.ACCOUNT_TYPE, accountType);
 
-				ProviderOperation.INSERT.execute(db, mListProcessors, list, isSyncAdapter, mOperationsLog, mAuthority);
+				ProviderOperation.INSERT.execute(db, mListProcessors, list, isSyncAdapter, mPendingOperationsLog.get(), mAuthority);
 
 				rowId = list.id();
 				result_uri = TaskContract.TaskLists.getContentUri(mAuthority);
@@ -887,13 +1338,12 @@ public final class TaskProvider extends SQLiteContentProvider implements OnAccou
 			case TASKS:
 				final TaskAdapter task = new ContentValuesTaskAdapter(values);
 
-				ProviderOperation.INSERT.execute(db, mTaskProcessors, task, isSyncAdapter, mOperationsLog, mAuthority);
+				ProviderOperation.INSERT.execute(db, mTaskProcessors, task, isSyncAdapter, mPendingOperationsLog.get(), mAuthority);
 
 				rowId = task.id();
 				result_uri = TaskContract.Tasks.getContentUri(mAuthority);
 
-				postNotifyUri(Instances.getContentUri(mAuthority));
-				postNotifyUri(Tasks.getContentUri(mAuthority));
+				postNotifyTask(rowId, task.valueOf(TaskAdapter.LIST_ID));
 
 				break;
 
@@ -921,8 +1371,7 @@ public final class TaskProvider extends SQLiteContentProvider implements OnAccou
 				result_uri = TaskContract.Properties.getContentUri(mAuthority);
 				if (rowId >= 0)
 				{
-					postNotifyUri(Tasks.getContentUri(mAuthority));
-					postNotifyUri(Instances.getContentUri(mAuthority));
+					postNotifyTask(db, taskId);
 				}
 				break;
 
@@ -934,7 +1383,11 @@ public final class TaskProvider extends SQLiteContentProvider implements OnAccou
 		{
 			result_uri = ContentUris.withAppendedId(result_uri, rowId);
 			postNotifyUri(result_uri);
-			postNotifyUri(uri);
+			if (match != TASKS)
+			{
+				// the task has been notified already, the tasks Uri would notify every task cursor
+				postNotifyUri(uri);
+			}
 			return result_uri;
 		}
 		throw new SQLException("Failed to insert row into " + uri);
@@ -947,7 +1400,8 @@ public final class TaskProvider extends SQLiteContentProvider implements OnAccou
 		final boolean isSyncAdapter)
 	{
 		int count = 0;
-		switch (mUriMatcher.match(uri))
+		int match = mUriMatcher.match(uri);
+		switch (match)
 		{
 			case SYNCSTATE_ID:
 				// the id is ignored, we only match by account type and name given in the Uri
@@ -1002,7 +1456,7 @@ public final class TaskProvider extends SQLiteContentProvider implements OnAccou
 						// we need this, because the processors may change the values
 						final ListAdapter list = new CursorContentValuesListAdapter(listId, cursor, cursor.getCount() > 1 ? new ContentValues(values) : values);
 
-						ProviderOperation.UPDATE.execute(db, mListProcessors, list, isSyncAdapter, mOperationsLog, mAuthority);
+						ProviderOperation.UPDATE.execute(db, mListProcessors, list, isSyncAdapter, mPendingOperationsLog.get(), mAuthority);
 						count++;
 					}
 				}
@@ -1028,8 +1482,17 @@ public final class TaskProvider extends SQLiteContentProvider implements OnAccou
 						// clone task values if we have more than one task to update
 						// we need this, because the processors may change the values
 						final TaskAdapter task = new CursorContentValuesTaskAdapter(cursor, cursor.getCount() > 1 ? new ContentValues(values) : values);
+						final Long oldListId = task.oldValueOf(TaskAdapter.LIST_ID);
 
-						ProviderOperation.UPDATE.execute(db, mTaskProcessors, task, isSyncAdapter, mOperationsLog, mAuthority);
+						ProviderOperation.UPDATE.execute(db, mTaskProcessors, task, isSyncAdapter, mPendingOperationsLog.get(), mAuthority);
+
+						Long listId = task.valueOf(TaskAdapter.LIST_ID);
+						postNotifyTask(task.id(), listId);
+						if (oldListId != null && !oldListId.equals(listId))
+						{
+							// the task has been moved, notify the old list too
+							postNotifyUri(Utils.listContentsUri(mAuthority, oldListId));
+						}
 						count++;
 					}
 				}
@@ -1037,12 +1500,6 @@ public final class TaskProvider extends SQLiteContentProvider implements OnAccou
 				{
 					cursor.close();
 				}
-
-				if (count > 0)
-				{
-					postNotifyUri(Instances.getContentUri(mAuthority));
-					postNotifyUri(Tasks.getContentUri(mAuthority));
-				}
 				break;
 			}
 
@@ -1082,6 +1539,7 @@ public final class TaskProvider extends SQLiteContentProvider implements OnAccou
 						{
 							PropertyHandler handler = PropertyHandlerFactory.get(mimeType);
 							count += handler.update(db, taskId, propertyId, values, cursor, isSyncAdapter);
+							postNotifyTask(db, taskId);
 						}
 					}
 				}
@@ -1128,9 +1586,9 @@ public final class TaskProvider extends SQLiteContentProvider implements OnAccou
 			keys = values.keySet();
 		}
 
-		if (!TASK_LIST_SYNC_COLUMNS.containsAll(keys))
+		if (!TASK_LIST_SYNC_COLUMNS.containsAll(keys) && match != TASKS)
 		{
-			// send notifications, because non-sync columns have been updated
+			// send notifications, because non-sync columns have been updated, updated tasks have been notified one by one already
 			postNotifyUri(uri);
 		}
 
@@ -1138,6 +1596,57 @@ public final class TaskProvider extends SQLiteContentProvider implements OnAccou
 	}
 
 
+	/**
+	 * Posts the notification {@link Uri}s of a changed task. That's the {@link Uri} of the task, a descendant of the instances {@link Uri} and the contents
+	 * {@link Uri} of its task list. This way a change notifies the cursors of all tasks or all instances, but only the list scoped cursors of the task's own
+	 * list.
+	 * 
+	 * @param taskId
+	 *            The id of the task.
+	 * @param listId
+	 *            The id of the task list or <code>null</code> if it's unknown, in which case all list scoped cursors are notified.
+	 */
+	private void postNotifyTask(long taskId, Long listId)
+	{
+		postNotifyUri(ContentUris.withAppendedId(Tasks.getContentUri(mAuthority), taskId));
+		postNotifyUri(Utils.instancesOfTaskUri(mAuthority, taskId));
+		postNotifyUri(listId == null ? Utils.listContentsUri(mAuthority) : Utils.listContentsUri(mAuthority, listId));
+	}
+
+
+	/**
+	 * Posts the notification {@link Uri}s of a changed task, see {@link #postNotifyTask(long, Long)}. The task list is loaded from the database.
+	 */
+	private void postNotifyTask(SQLiteDatabase db, long taskId)
+	{
+		Long listId = null;
+		Cursor c = db.query(Tables.TASKS, new String[] { Tasks.LIST_ID }, Tasks._ID + "=" + taskId, null, null, null, null);
+		try
+		{
+			if (c.moveToFirst())
+			{
+				listId = c.getLong(0);
+			}
+		}
+		finally
+		{
+			c.close();
+		}
+		postNotifyTask(taskId, listId);
+	}
+
+
+	/**
+	 * Posts the notification {@link Uri}s of all tasks and instances, including all list scoped cursors.
+	 */
+	private void postNotifyAllTasks()
+	{
+		postNotifyUri(Tasks.getContentUri(mAuthority));
+		postNotifyUri(Instances.getContentUri(mAuthority));
+		postNotifyUri(Utils.listContentsUri(mAuthority));
+	}
+
+
 	/**
 	 * Update task due and task start notifications.
 	 */
@@ -1155,6 +1664,52 @@ public final class TaskProvider extends SQLiteContentProvider implements OnAccou
 	}
 
 
+	/**
+	 * Schedule a database maintenance. Any pending maintenance is postponed, so it runs only after the provider has been idle for
+	 * {@link #MAINTENANCE_IDLE_DELAY}.
+	 */
+	private void scheduleMaintenance()
+	{
+		mAsyncHandler.removeCallbacks(mMaintenance);
+		mAsyncHandler.postDelayed(mMaintenance, MAINTENANCE_IDLE_DELAY);
+	}
+
+
+	/**
+	 * Schedule the indexing of pending full-text-search entries. The indexing is not postponed if it has been scheduled already, so a steady flow of changes
+	 * doesn't keep the entries pending forever.
+	 */
+	private void scheduleFtsIndexing()
+	{
+		if (mFtsIndexingScheduled.compareAndSet(false, true))
+		{
+			mAsyncHandler.postDelayed(mFtsIndexing, FTS_INDEXING_DELAY);
+		}
+	}
+
+
+	/**
+	 * Push the expansion horizon of recurring tasks forward. This is repeated once a day for as long as the provider is alive.
+	 */
+	private void expandInstances()
+	{
+		mAsyncHandler.post(new Runnable()
+		{
+
+			@Override
+			public void run()
+			{
+				ContentValues values = new ContentValues(1);
+				TaskInstancesProcessor.addHorizon(values, mInstanceHorizon);
+				ContentOperation.EXPAND_INSTANCES.fire(getContext(), values);
+
+				// run again tomorrow
+				mAsyncHandler.postDelayed(this, INSTANCE_EXPANSION_INTERVAL);
+			}
+		});
+	}
+
+
 	/**
 	 * Validate the given category values.
 	 * 
@@ -1214,6 +1769,8 @@ public final class TaskProvider extends SQLiteContentProvider implements OnAccou
 			case TASK_ID:
 				return ContentResolver.CURSOR_ITEM_BASE_TYPE + "/org.dmfs.tasks." + Tasks.CONTENT_URI_PATH;
 			case INSTANCES:
+			case INSTANCES_WHEN:
+			case INSTANCES_OVERLAPPING:
 				return ContentResolver.CURSOR_DIR_BASE_TYPE + "/org.dmfs.tasks." + Instances.CONTENT_URI_PATH;
 			default:
 				throw new IllegalArgumentException("Unsupported URI: " + uri);
@@ -1225,12 +1782,21 @@ public final class TaskProvider extends SQLiteContentProvider implements OnAccou
 	protected void onEndTransaction(boolean callerIsSyncAdapter)
 	{
 		super.onEndTransaction(callerIsSyncAdapter);
-		Intent providerChangedIntent = new Intent(Intent.ACTION_PROVIDER_CHANGED, TaskContract.getContentUri(mAuthority));
-		if (!mOperationsLog.isEmpty())
+		if (mOperationsLog.isEmpty())
+		{
+			// nothing to report
+			return;
+		}
+
+		updateNotifications();
+		scheduleMaintenance();
+		if (mDeferredFtsIndexing)
 		{
-			updateNotifications();
+			scheduleFtsIndexing();
 		}
+
 		// add the change log to the broadcast
+		Intent providerChangedIntent = new Intent(Intent.ACTION_PROVIDER_CHANGED, TaskContract.getContentUri(mAuthority));
 		providerChangedIntent.putExtras(mOperationsLog.toBundle(true));
 		getContext().sendBroadcast(providerChangedIntent);
 	};
@@ -1239,7 +1805,7 @@ public final class TaskProvider extends SQLiteContentProvider implements OnAccou
 	@Override
 	public SQLiteOpenHelper getDatabaseHelper(Context context)
 	{
-		TaskDatabaseHelper helper = new TaskDatabaseHelper(context, this);
+		TaskDatabaseHelper helper = new TaskDatabaseHelper(context, this, mStorageProfile);
 
 		return helper;
 	}
@@ -1258,17 +1824,43 @@ public final class TaskProvider extends SQLiteContentProvider implements OnAccou
 	@Override
 	public void onDatabaseUpdate(SQLiteDatabase db, int oldVersion, int newVersion)
 	{
-		if (oldVersion < 15)
+		if (oldVersion < 17)
 		{
+			// the sorting values changed in version 15 and recurring tasks are expanded since version 17, rebuild all instances
 			mAsyncHandler.post(new Runnable()
 			{
 				@Override
 				public void run()
 				{
-					ContentOperation.UPDATE_TIMEZONE.fire(getContext(), null);
+					ContentValues values = new ContentValues(1);
+					TaskInstancesProcessor.addHorizon(values, mInstanceHorizon);
+					ContentOperation.REBUILD_INSTANCES.fire(getContext(), values);
 				}
 			});
 		}
+
+		if (oldVersion < 8)
+		{
+			// the FTS tables have been created empty, index the existing tasks in the background
+			FtsRebuilder.request(getContext().getSharedPreferences(ContentOperation.PREFS_NAME, Context.MODE_PRIVATE));
+			rebuildFts();
+		}
+	}
+
+
+	/**
+	 * Continue a pending rebuild of the full-text-search index in the background.
+	 */
+	private void rebuildFts()
+	{
+		mAsyncHandler.post(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				ContentOperation.REBUILD_FTS.fire(getContext(), null);
+			}
+		});
 	}
 
 
@@ -1279,6 +1871,35 @@ public final class TaskProvider extends SQLiteContentProvider implements OnAccou
 	}
 
 
+	@Override
+	protected void notifyChange(Uri uri, boolean syncToNetwork)
+	{
+		mNotificationDispatcher.post(uri, syncToNetwork);
+	}
+
+
+	@Override
+	protected void onTransactionCommitted(SQLiteDatabase db)
+	{
+		NGramCache.get(db).commit();
+		ProviderOperationsLog pendingLog = mPendingOperationsLog.get();
+		if (!pendingLog.isEmpty())
+		{
+			mOperationsLog.addAll(pendingLog);
+			pendingLog.clear();
+		}
+	}
+
+
+	@Override
+	protected void onTransactionRolledBack(SQLiteDatabase db)
+	{
+		NGramCache.get(db).rollback();
+		// the operations of a rolled back transaction never happened
+		mPendingOperationsLog.get().clear();
+	}
+
+
 	/**
 	 * Returns a {@link ProviderInfo} object for this provider.
 	 * 
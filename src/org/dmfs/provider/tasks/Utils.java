@@ -31,10 +31,12 @@ import org.dmfs.provider.tasks.TaskDatabaseHelper.Tables;
 
 import android.accounts.Account;
 import android.content.ContentResolver;
+import android.content.ContentUris;
 import android.content.Context;
 import android.content.Intent;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
 
 
 /**
@@ -45,6 +47,78 @@ import android.database.sqlite.SQLiteDatabase;
  */
 public class Utils
 {
+	/**
+	 * The path of the notification {@link Uri}s of the contents of single task lists. These {@link Uri}s are not part of the contract, they're only used to
+	 * notify cursors of list scoped queries.
+	 */
+	private final static String LIST_CONTENTS_PATH = "list_contents";
+
+	/**
+	 * The path segment of the notification {@link Uri}s of the instances of single tasks.
+	 */
+	private final static String INSTANCES_OF_TASK_PATH = "task";
+
+
+	/**
+	 * Returns the notification {@link Uri} of the tasks and instances of the given task list.
+	 *
+	 * @param authority
+	 *            The authority of the provider.
+	 * @param listId
+	 *            The id of the task list.
+	 * @return A notification {@link Uri}.
+	 */
+	public static Uri listContentsUri(String authority, long listId)
+	{
+		return ContentUris.withAppendedId(listContentsUri(authority), listId);
+	}
+
+
+	/**
+	 * Returns the parent of all {@link #listContentsUri(String, long)}s. Notify this {@link Uri} to notify the cursors of all list scoped queries.
+	 *
+	 * @param authority
+	 *            The authority of the provider.
+	 * @return A notification {@link Uri}.
+	 */
+	public static Uri listContentsUri(String authority)
+	{
+		return new Uri.Builder().scheme(ContentResolver.SCHEME_CONTENT).authority(authority).appendPath(LIST_CONTENTS_PATH).build();
+	}
+
+
+	/**
+	 * Returns the notification {@link Uri} of the instances of the given task. It's a descendant of the instances {@link Uri}, so it notifies all instance
+	 * cursors that are registered on {@link Instances#getContentUri(String)}.
+	 *
+	 * @param authority
+	 *            The authority of the provider.
+	 * @param taskId
+	 *            The id of the task.
+	 * @return A notification {@link Uri}.
+	 */
+	public static Uri instancesOfTaskUri(String authority, long taskId)
+	{
+		return ContentUris.withAppendedId(Instances.getContentUri(authority).buildUpon().appendPath(INSTANCES_OF_TASK_PATH).build(), taskId);
+	}
+
+
+	/**
+	 * Notifies the observers of all instances, including the cursors of list scoped queries.
+	 *
+	 * @param context
+	 *            A {@link Context}.
+	 * @param authority
+	 *            The authority of the provider.
+	 */
+	public static void notifyAllInstances(Context context, String authority)
+	{
+		ContentResolver cr = context.getContentResolver();
+		cr.notifyChange(Instances.getContentUri(authority), null, false);
+		cr.notifyChange(listContentsUri(authority), null, false);
+	}
+
+
 	public static void sendActionProviderChangedBroadCast(Context context, String authority)
 	{
 		// TODO: Using the TaskContract content uri results in a "Unknown URI content" error message. Using the Tasks content uri instead will break the
@@ -120,6 +194,7 @@ public class Utils
 		cr.notifyChange(TaskLists.getContentUri(authority), null);
 		cr.notifyChange(Tasks.getContentUri(authority), null);
 		cr.notifyChange(Instances.getContentUri(authority), null);
+		cr.notifyChange(listContentsUri(authority), null);
 
 		Utils.sendActionProviderChangedBroadCast(context, authority);
 	}
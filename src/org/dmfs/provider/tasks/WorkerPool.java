@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2015 Marten Gajda <marten@dmfs.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.dmfs.provider.tasks;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * A pool of low priority worker threads that compute results for a single consumer thread. The workers hand their results to the consumer through a bounded
+ * queue, so they can't get too far ahead of it.
+ * <p>
+ * Every job results in exactly one call of {@link #take()} returning, either with the result of a job or with the {@link Throwable} that the job has thrown.
+ * So a consumer that takes one result per submitted job never blocks forever, even if a job fails with an {@link Error}. Results are returned in the order
+ * in which the jobs complete.
+ * </p>
+ *
+ * @param <T>
+ *            The type of the results.
+ *
+ * @author Marten Gajda <marten@dmfs.org>
+ */
+public final class WorkerPool<T>
+{
+	private final ExecutorService mExecutor;
+	private final BlockingQueue<Outcome<T>> mResults;
+
+
+	/**
+	 * Creates a {@link WorkerPool} with the given number of workers.
+	 *
+	 * @param name
+	 *            The name prefix of the worker threads.
+	 * @param threadCount
+	 *            The number of worker threads.
+	 */
+	public WorkerPool(String name, int threadCount)
+	{
+		mExecutor = Executors.newFixedThreadPool(threadCount, new WorkerThreadFactory(name));
+		mResults = new ArrayBlockingQueue<Outcome<T>>(threadCount * 2);
+	}
+
+
+	/**
+	 * Runs the given job on one of the workers. Its result has to be retrieved with {@link #take()}.
+	 *
+	 * @param job
+	 *            The job to run.
+	 */
+	public void submit(final Callable<T> job)
+	{
+		mExecutor.execute(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				Outcome<T> outcome;
+				try
+				{
+					outcome = new Outcome<T>(job.call(), null);
+				}
+				catch (Throwable e)
+				{
+					// hand any error to the consumer, otherwise it would wait for this result forever
+					outcome = new Outcome<T>(null, e);
+				}
+
+				try
+				{
+					mResults.put(outcome);
+				}
+				catch (InterruptedException e)
+				{
+					// the pool has been shut down
+					Thread.currentThread().interrupt();
+				}
+			}
+		});
+	}
+
+
+	/**
+	 * Returns the result of the next job that completes. This blocks until a job has completed.
+	 *
+	 * @return The result of the job.
+	 * @throws RuntimeException
+	 *             If the job has thrown an exception, checked exceptions are wrapped.
+	 * @throws Error
+	 *             If the job has thrown an {@link Error}.
+	 * @throws IllegalStateException
+	 *             If the calling thread has been interrupted.
+	 */
+	public T take()
+	{
+		Outcome<T> outcome;
+		try
+		{
+			outcome = mResults.take();
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("interrupted while waiting for a worker");
+		}
+
+		if (outcome.error instanceof RuntimeException)
+		{
+			throw (RuntimeException) outcome.error;
+		}
+		if (outcome.error instanceof Error)
+		{
+			throw (Error) outcome.error;
+		}
+		if (outcome.error != null)
+		{
+			throw new RuntimeException("worker failed", outcome.error);
+		}
+		return outcome.result;
+	}
+
+
+	/**
+	 * Stops all workers. Jobs that have not been started yet are dropped, running jobs are interrupted.
+	 */
+	public void shutdown()
+	{
+		mExecutor.shutdownNow();
+	}
+
+	/**
+	 * The result of a job or the {@link Throwable} it has thrown.
+	 */
+	private final static class Outcome<T>
+	{
+		final T result;
+		final Throwable error;
+
+
+		Outcome(T result, Throwable error)
+		{
+			this.result = result;
+			this.error = error;
+		}
+	}
+
+	/**
+	 * A {@link ThreadFactory} for low priority daemon workers.
+	 */
+	private final static class WorkerThreadFactory implements ThreadFactory
+	{
+		private final String mName;
+		private final AtomicInteger mCount = new AtomicInteger();
+
+
+		WorkerThreadFactory(String name)
+		{
+			mName = name;
+		}
+
+
+		@Override
+		public Thread newThread(Runnable runnable)
+		{
+			Thread thread = new Thread(runnable, mName + "-" + mCount.incrementAndGet());
+			thread.setDaemon(true);
+			thread.setPriority(Thread.MIN_PRIORITY);
+			return thread;
+		}
+	}
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2015 Marten Gajda <marten@dmfs.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.dmfs.provider.tasks;
+
+import android.os.SystemClock;
+
+
+/**
+ * Decides when a long running batch should yield its transaction and how long it should sleep afterwards.
+ * <p>
+ * The policy tracks the threads that wait to begin a transaction and how long the short transactions of single inserts, updates and deletes take. A batch
+ * should yield once a thread has been waiting for more than {@link #LATENCY_BUDGET} milliseconds or once its transaction has been open for more than
+ * {@link #MAX_TRANSACTION_TIME} milliseconds. After yielding it sleeps just long enough for the waiting threads to run their transactions, and not at all if
+ * nobody is waiting.
+ * </p>
+ *
+ * @author Marten Gajda <marten@dmfs.org>
+ */
+final class YieldPolicy
+{
+	/**
+	 * The time in milliseconds a thread should wait at most for a batch to yield.
+	 */
+	private final static long LATENCY_BUDGET = 250;
+
+	/**
+	 * The time in milliseconds after which a transaction yields to threads we don't know of (like content operations).
+	 */
+	private final static long MAX_TRANSACTION_TIME = 2000;
+
+	/**
+	 * The minimum time in milliseconds between two attempts to yield. A yield fails if nobody is actually waiting for the database lock.
+	 */
+	private final static long RETRY_INTERVAL = 100;
+
+	/**
+	 * The maximum time in milliseconds to sleep after yielding.
+	 */
+	private final static long MAX_SLEEP = 4000;
+
+	/**
+	 * The weight of a new sample in the average transaction time, in percent.
+	 */
+	private final static int SAMPLE_WEIGHT = 20;
+
+	/**
+	 * The number of threads waiting to begin a transaction.
+	 */
+	private int mWaiters;
+
+	/**
+	 * The time when the oldest waiting thread started to wait, only valid if {@link #mWaiters} is larger than 0.
+	 */
+	private long mWaitingSince;
+
+	/**
+	 * The average time of a single operation transaction in milliseconds.
+	 */
+	private long mAverageTransactionTime;
+
+
+	/**
+	 * Call this before a thread begins a transaction. Every call must be followed by a call to {@link #stopWaiting()}.
+	 */
+	public synchronized void startWaiting()
+	{
+		if (mWaiters++ == 0)
+		{
+			mWaitingSince = SystemClock.elapsedRealtime();
+		}
+	}
+
+
+	/**
+	 * Call this once a thread has begun its transaction (or failed to do so).
+	 */
+	public synchronized void stopWaiting()
+	{
+		// if other threads are still waiting we keep the start time, so continuous contention is treated like one long wait
+		--mWaiters;
+	}
+
+
+	/**
+	 * Call this when a single operation transaction has been finished.
+	 *
+	 * @param transactionStart
+	 *            The time when the transaction began in milliseconds of {@link SystemClock#elapsedRealtime()}.
+	 */
+	public synchronized void transactionFinished(long transactionStart)
+	{
+		long duration = SystemClock.elapsedRealtime() - transactionStart;
+		mAverageTransactionTime = (mAverageTransactionTime * (100 - SAMPLE_WEIGHT) + duration * SAMPLE_WEIGHT) / 100;
+	}
+
+
+	/**
+	 * Returns whether a batch should yield its transaction now.
+	 *
+	 * @param transactionStart
+	 *            The time when the current transaction of the batch began.
+	 * @param lastAttempt
+	 *            The time of the last attempt to yield that didn't yield.
+	 * @return <code>true</code> if the batch should yield.
+	 */
+	public synchronized boolean shouldYield(long transactionStart, long lastAttempt)
+	{
+		long now = SystemClock.elapsedRealtime();
+		if (now - lastAttempt < RETRY_INTERVAL)
+		{
+			return false;
+		}
+		return mWaiters > 0 && now - mWaitingSince >= LATENCY_BUDGET || now - transactionStart >= MAX_TRANSACTION_TIME;
+	}
+
+
+	/**
+	 * Returns the time to sleep after yielding.
+	 *
+	 * @return The time in milliseconds.
+	 */
+	public synchronized long sleepAfterYield()
+	{
+		if (mWaiters == 0)
+		{
+			// nobody we know of is waiting, the thread we yielded to will get the lock anyway
+			return 0;
+		}
+		// give each waiting thread enough time to run an average transaction
+		return Math.min(MAX_SLEEP, 2 * mAverageTransactionTime * mWaiters);
+	}
+}
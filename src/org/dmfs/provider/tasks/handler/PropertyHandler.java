@@ -18,6 +18,7 @@
 package org.dmfs.provider.tasks.handler;
 
 import org.dmfs.provider.tasks.FTSDatabaseHelper;
+import org.dmfs.provider.tasks.StatementCache;
 import org.dmfs.provider.tasks.TaskContract.Properties;
 import org.dmfs.provider.tasks.TaskDatabaseHelper.Tables;
 
@@ -75,7 +76,7 @@ public abstract class PropertyHandler
 	 */
 	public long insert(SQLiteDatabase db, long taskId, ContentValues values, boolean isSyncAdapter)
 	{
-		return db.insert(Tables.PROPERTIES, "", values);
+		return StatementCache.get(db).insert(Tables.PROPERTIES, "", values);
 	}
 
 
@@ -52,7 +52,21 @@ public abstract class AbstractTaskAdapter implements TaskAdapter
 	@Override
 	public boolean recurrenceUpdated()
 	{
-		return isUpdated(RRULE) || isUpdated(DTSTART) || isUpdated(DUE) || isUpdated(DURATION) || isUpdated(RDATE) || isUpdated(EXDATE);
+		return recurrenceRuleUpdated() || recurrenceDatesUpdated();
+	}
+
+
+	@Override
+	public boolean recurrenceRuleUpdated()
+	{
+		return isUpdated(RRULE) || isUpdated(DTSTART) || isUpdated(DUE) || isUpdated(DURATION);
+	}
+
+
+	@Override
+	public boolean recurrenceDatesUpdated()
+	{
+		return isUpdated(RDATE) || isUpdated(EXDATE);
 	}
 
 
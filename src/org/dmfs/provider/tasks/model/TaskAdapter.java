@@ -72,6 +72,11 @@ public interface TaskAdapter extends EntityAdapter<TaskAdapter>
 	 */
 	public final static StringFieldAdapter<TaskAdapter> ORIGINAL_INSTANCE_SYNC_ID = new StringFieldAdapter<TaskAdapter>(Tasks.ORIGINAL_INSTANCE_SYNC_ID);
 
+	/**
+	 * Adapter for the original instance time of a task.
+	 */
+	public final static LongFieldAdapter<TaskAdapter> ORIGINAL_INSTANCE_TIME = new LongFieldAdapter<TaskAdapter>(Tasks.ORIGINAL_INSTANCE_TIME);
+
 	/**
 	 * Adapter for the all day flag of a task.
 	 */
@@ -335,6 +340,27 @@ public interface TaskAdapter extends EntityAdapter<TaskAdapter>
 	public boolean recurrenceUpdated();
 
 
+	/**
+	 * Returns whether the recurrence rule or any of the values it's anchored at has been modified through this adapter. This returns true if any of
+	 * {@link TaskContract.TaskColumns#DTSTART}, {@link TaskContract.TaskColumns#DUE},{@link TaskContract.TaskColumns#DURATION} or
+	 * {@link TaskContract.TaskColumns#RRULE} has been modified. If this returns <code>false</code> all instances of the task remain valid, unless
+	 * {@link #recurrenceDatesUpdated()} returns <code>true</code>.
+	 * 
+	 * @return <code>true</code> if the recurrence rule or its anchor has changed, <code>false</code> otherwise.
+	 */
+	public boolean recurrenceRuleUpdated();
+
+
+	/**
+	 * Returns whether the explicit recurrence dates have been modified through this adapter. This returns true if
+	 * {@link TaskContract.TaskColumns#RDATE} or {@link TaskContract.TaskColumns#EXDATE} has been modified. Such changes only add or remove individual
+	 * instances.
+	 * 
+	 * @return <code>true</code> if the RDATEs or EXDATEs have changed, <code>false</code> otherwise.
+	 */
+	public boolean recurrenceDatesUpdated();
+
+
 	/***
 	 * Creates a {@link TaskAdapter} for a new task initialized with the values of this task (except for _ID).
 	 * 
@@ -100,24 +100,69 @@ public class ChangeListProcessor extends AbstractEntityProcessor<TaskAdapter>
 			deletedMasterId = moveTask(db, task, oldList, newList, null, false);
 		}
 
-		if (task.isRecurring() || task.valueOf(TaskAdapter.ORIGINAL_INSTANCE_ID) != null)
+		if (newMasterId != null && (task.isRecurring() || task.valueOf(TaskAdapter.ORIGINAL_INSTANCE_ID) != null))
 		{
 			// This task is recurring and may have exceptions or it's an exception itself. Move all (other) exceptions to the new list.
-			Cursor c = db.query(TaskDatabaseHelper.Tables.TASKS, null, TaskContract.Tasks.ORIGINAL_INSTANCE_ID + "=" + newMasterId + " and "
-				+ TaskContract.Tasks._ID + "!=" + task.id(), null, null, null, null);
-			try
+			moveExceptions(db, newMasterId, task.id(), oldList, newList, deletedMasterId);
+		}
+
+	}
+
+
+	/**
+	 * Moves all exceptions of the given master task (except for the given one) to the new list. This does the same as
+	 * {@link #moveTask(SQLiteDatabase, TaskAdapter, long, long, Long, boolean)} but for all exceptions at once.
+	 * 
+	 * @param db
+	 *            The {@link SQLiteDatabase}.
+	 * @param masterId
+	 *            The row id of the master task.
+	 * @param skipId
+	 *            The row id of an exception that has been moved already.
+	 * @param oldList
+	 *            The id of the old list.
+	 * @param newList
+	 *            The id of the new list.
+	 * @param deletedOriginalId
+	 *            The id of the deleted copy of the master task or <code>null</code>.
+	 */
+	private void moveExceptions(SQLiteDatabase db, long masterId, long skipId, long oldList, long newList, Long deletedOriginalId)
+	{
+		String selection = TaskContract.Tasks.ORIGINAL_INSTANCE_ID + "=" + masterId + " and " + TaskContract.Tasks._ID + "!=" + skipId;
+
+		// create deleted copies of all exceptions that have been synced, they are linked to the deleted copy of the master
+		StringBuilder columns = new StringBuilder(512);
+		Cursor c = db.rawQuery("SELECT * FROM " + TaskDatabaseHelper.Tables.TASKS + " LIMIT 0", null);
+		try
+		{
+			for (String column : c.getColumnNames())
 			{
-				while (c.moveToNext())
+				if (!TaskContract.Tasks._ID.equals(column) && !TaskContract.Tasks.LIST_ID.equals(column)
+					&& !TaskContract.Tasks.ORIGINAL_INSTANCE_ID.equals(column) && !TaskContract.Tasks._DELETED.equals(column))
 				{
-					moveTask(db, new CursorContentValuesTaskAdapter(c, new ContentValues(16)), oldList, newList, deletedMasterId, true);
+					columns.append(column).append(", ");
 				}
 			}
-			finally
-			{
-				c.close();
-			}
 		}
-
+		finally
+		{
+			c.close();
+		}
+		db.execSQL("INSERT INTO " + TaskDatabaseHelper.Tables.TASKS + " (" + columns + TaskContract.Tasks.LIST_ID + ", " + TaskContract.Tasks.ORIGINAL_INSTANCE_ID
+			+ ", " + TaskContract.Tasks._DELETED + ") SELECT " + columns + oldList + ", " + deletedOriginalId + ", 1 FROM " + TaskDatabaseHelper.Tables.TASKS
+			+ " WHERE " + selection + " and (" + TaskContract.Tasks._SYNC_ID + " not null or " + TaskContract.Tasks.ORIGINAL_INSTANCE_SYNC_ID
+			+ " not null or " + TaskContract.Tasks.SYNC_VERSION + " not null)");
+
+		// clear all sync fields to convert the existing exceptions to new tasks
+		ContentValues values = new ContentValues(16);
+		for (String column : TaskContract.Tasks.SYNC_ADAPTER_COLUMNS)
+		{
+			values.putNull(column);
+		}
+		values.put(TaskContract.Tasks._DIRTY, 1);
+		values.put(TaskContract.Tasks.LIST_ID, newList);
+		values.putNull(TaskContract.Tasks.ORIGINAL_INSTANCE_SYNC_ID);
+		db.update(TaskDatabaseHelper.Tables.TASKS, values, selection, null);
 	}
 
 
@@ -26,22 +26,62 @@ import android.database.sqlite.SQLiteDatabase;
 
 /**
  * A {@link TaskProcessor} to update the fast text search table when inserting or updating a task.
+ * <p>
+ * In deferred mode the changed entries are only marked as pending, so they can be indexed in the background by
+ * {@link org.dmfs.provider.tasks.ContentOperation#INDEX_FTS}. That keeps the write transactions short.
+ * </p>
  * 
  * @author Marten Gajda <marten@dmfs.org>
  */
 public class FtsProcessor extends AbstractEntityProcessor<TaskAdapter>
 {
+	/**
+	 * Whether to defer indexing.
+	 */
+	private final boolean mDeferred;
+
+
+	public FtsProcessor()
+	{
+		this(false);
+	}
+
+
+	/**
+	 * Create a new {@link FtsProcessor}.
+	 * 
+	 * @param deferred
+	 *            <code>true</code> to mark changed entries as pending instead of indexing them right away.
+	 */
+	public FtsProcessor(boolean deferred)
+	{
+		mDeferred = deferred;
+	}
+
 
 	@Override
 	public void afterInsert(SQLiteDatabase db, TaskAdapter task, boolean isSyncAdapter)
 	{
-		FTSDatabaseHelper.updateTaskFTSEntries(db, task);
+		updateEntries(db, task);
 	}
 
 
 	@Override
 	public void afterUpdate(SQLiteDatabase db, TaskAdapter task, boolean isSyncAdapter)
 	{
-		FTSDatabaseHelper.updateTaskFTSEntries(db, task);
+		updateEntries(db, task);
+	}
+
+
+	private void updateEntries(SQLiteDatabase db, TaskAdapter task)
+	{
+		if (mDeferred)
+		{
+			FTSDatabaseHelper.queueTaskFTSEntries(db, task);
+		}
+		else
+		{
+			FTSDatabaseHelper.updateTaskFTSEntries(db, task);
+		}
 	}
 }
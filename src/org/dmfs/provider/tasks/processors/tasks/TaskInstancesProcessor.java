@@ -12,38 +12,64 @@
  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
  * See the License for the specific language governing permissions and
  * limitations under the License.
- * 
+ *
  */
 
 package org.dmfs.provider.tasks.processors.tasks;
 
-import java.sql.RowId;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 import java.util.TimeZone;
+import java.util.TreeSet;
 
+import org.dmfs.provider.tasks.StatementCache;
 import org.dmfs.provider.tasks.TaskContract;
 import org.dmfs.provider.tasks.TaskContract.Instances;
 import org.dmfs.provider.tasks.TaskDatabaseHelper.Tables;
+import org.dmfs.provider.tasks.model.ContentValuesTaskAdapter;
 import org.dmfs.provider.tasks.model.TaskAdapter;
 import org.dmfs.provider.tasks.model.adapters.BooleanFieldAdapter;
+import org.dmfs.provider.tasks.model.adapters.LongFieldAdapter;
 import org.dmfs.provider.tasks.processors.AbstractEntityProcessor;
+import org.dmfs.provider.tasks.recurrence.TaskInstanceIterator;
 import org.dmfs.rfc5545.DateTime;
 import org.dmfs.rfc5545.Duration;
 
 import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
-import android.net.Uri;
 
 
 /**
  * A processor that creates or updates any instance values for a task.
  * <p/>
- * TODO: At present this does not support recurrence.
- * 
+ * Recurring tasks are expanded into one row per instance. To keep the instances table finite only instances within a configurable horizon around the current
+ * time are stored. The first instance of a recurring task is always stored. {@link #expandInstances(SQLiteDatabase, TaskAdapter, long)} can be used to push
+ * the horizon forward.
+ *
  * @author Marten Gajda <marten@dmfs.org>
  */
 public class TaskInstancesProcessor extends AbstractEntityProcessor<TaskAdapter>
 {
 
+	/**
+	 * The default expansion horizon in milliseconds (one year).
+	 */
+	public final static long DEFAULT_HORIZON = 365L * 24L * 3600L * 1000L;
+
+	/**
+	 * The maximum number of instances we insert for a single task in one go.
+	 */
+	private final static int MAX_INSTANCES = 1000;
+
+	/**
+	 * The maximum number of changed RDATEs and EXDATEs we handle incrementally. If more dates change, we rebuild all instances.
+	 */
+	private final static int MAX_INCREMENTAL_CHANGES = 16;
+
 	/**
 	 * This is a field adapter for a pseudo column to indicate that the instances may need an update, even if no relevant value has changed. This is useful to
 	 * force an update of the sorting values when the local timezone has been changed.
@@ -51,10 +77,20 @@ public class TaskInstancesProcessor extends AbstractEntityProcessor<TaskAdapter>
 	private final static BooleanFieldAdapter<TaskAdapter> UPDATE_REQUESTED = new BooleanFieldAdapter<TaskAdapter>(
 		"org.dmfs.tasks.TaskInstanceProcessor.UPDATE_REQUESTED");
 
+	/**
+	 * This is a field adapter for a pseudo column that carries the expansion horizon in milliseconds.
+	 */
+	private final static LongFieldAdapter<TaskAdapter> HORIZON = new LongFieldAdapter<TaskAdapter>("org.dmfs.tasks.TaskInstanceProcessor.HORIZON");
+
+	/**
+	 * The expansion horizon in milliseconds. Instances that are more than this in the past or in the future are not stored.
+	 */
+	private final long mHorizon;
+
 
 	/**
 	 * Add a pseudo column to the given {@link ContentValues} to request an instances update, even if no time value has changed.
-	 * 
+	 *
 	 * @param values
 	 *            The {@link ContentValues} to add the pseudo column to.
 	 */
@@ -64,10 +100,57 @@ public class TaskInstancesProcessor extends AbstractEntityProcessor<TaskAdapter>
 	}
 
 
+	/**
+	 * Add a pseudo column to the given {@link ContentValues} that contains the expansion horizon.
+	 *
+	 * @param values
+	 *            The {@link ContentValues} to add the pseudo column to.
+	 * @param horizon
+	 *            The horizon in milliseconds.
+	 */
+	public static void addHorizon(ContentValues values, long horizon)
+	{
+		HORIZON.setIn(values, horizon);
+	}
+
+
+	/**
+	 * Returns the expansion horizon stored in the given {@link ContentValues} by {@link #addHorizon(ContentValues, long)}.
+	 *
+	 * @param values
+	 *            The {@link ContentValues}, may be <code>null</code>.
+	 * @return The horizon in milliseconds or {@link #DEFAULT_HORIZON} if the values don't contain a horizon.
+	 */
+	public static long horizonOf(ContentValues values)
+	{
+		Long horizon = values == null ? null : HORIZON.getFrom(values);
+		return horizon == null ? DEFAULT_HORIZON : horizon;
+	}
+
+
+	public TaskInstancesProcessor()
+	{
+		this(DEFAULT_HORIZON);
+	}
+
+
+	/**
+	 * Create a new {@link TaskInstancesProcessor} with the given expansion horizon.
+	 *
+	 * @param horizon
+	 *            The expansion horizon in milliseconds.
+	 */
+	public TaskInstancesProcessor(long horizon)
+	{
+		mHorizon = horizon;
+	}
+
+
 	@Override
 	public void afterInsert(SQLiteDatabase db, TaskAdapter task, boolean isSyncAdapter)
 	{
 		createInstances(db, task);
+		removeOverriddenInstance(db, task);
 	}
 
 
@@ -86,8 +169,14 @@ public class TaskInstancesProcessor extends AbstractEntityProcessor<TaskAdapter>
 	@Override
 	public void afterUpdate(SQLiteDatabase db, TaskAdapter task, boolean isSyncAdapter)
 	{
-		if (!task.isUpdated(TaskAdapter.DTSTART) && !task.isUpdated(TaskAdapter.DUE) && !task.isUpdated(TaskAdapter.DURATION)
-			&& !task.getState(UPDATE_REQUESTED))
+		if (task.isUpdated(TaskAdapter.ORIGINAL_INSTANCE_ID) || task.isUpdated(TaskAdapter.ORIGINAL_INSTANCE_TIME))
+		{
+			// this task became an exception, moved to another instance or is no longer an exception
+			removeOverriddenInstance(db, task);
+			restoreOverriddenInstance(db, task.oldValueOf(TaskAdapter.ORIGINAL_INSTANCE_ID), task.oldValueOf(TaskAdapter.ORIGINAL_INSTANCE_TIME));
+		}
+
+		if (!task.recurrenceUpdated() && !task.isUpdated(TaskAdapter.ORIGINAL_INSTANCE_TIME) && !task.getState(UPDATE_REQUESTED))
 		{
 			// date values didn't change and update not requested
 			return;
@@ -96,14 +185,24 @@ public class TaskInstancesProcessor extends AbstractEntityProcessor<TaskAdapter>
 	}
 
 
+	@Override
+	public void afterDelete(SQLiteDatabase db, TaskAdapter task, boolean isSyncAdapter)
+	{
+		// if the exception has been removed for good, the master has to take over again
+		restoreOverriddenInstance(db, task.valueOf(TaskAdapter.ORIGINAL_INSTANCE_ID), task.valueOf(TaskAdapter.ORIGINAL_INSTANCE_TIME));
+	}
+
+
 	/**
 	 * Create new {@link ContentValues} for insertion into the instances table.
-	 * 
+	 *
 	 * @param task
 	 *            The {@link TaskAdapter} of the task that's about to be inserted.
+	 * @param instance
+	 *            The original time of the instance or <code>null</code> for non-recurring tasks.
 	 * @return {@link ContentValues} of the instance of this task.
 	 */
-	private ContentValues generateInstanceValues(TaskAdapter task)
+	public static ContentValues generateInstanceValues(TaskAdapter task, DateTime instance)
 	{
 		ContentValues instanceValues = new ContentValues();
 
@@ -112,6 +211,34 @@ public class TaskInstancesProcessor extends AbstractEntityProcessor<TaskAdapter>
 		DateTime due = task.valueOf(TaskAdapter.DUE);
 		Duration duration = task.valueOf(TaskAdapter.DURATION);
 
+		if (instance != null)
+		{
+			// move the task to the given instance, keeping the distance between start and due
+			if (dtstart != null)
+			{
+				if (due != null)
+				{
+					due = shift(instance, due.getTimestamp() - dtstart.getTimestamp());
+				}
+				dtstart = instance;
+			}
+			else
+			{
+				due = instance;
+			}
+			instanceValues.put(Instances.INSTANCE_ORIGINAL_TIME, instance.getTimestamp());
+		}
+		else
+		{
+			Long originalTime = task.valueOf(TaskAdapter.ORIGINAL_INSTANCE_TIME);
+			if (originalTime == null)
+			{
+				DateTime anchor = TaskInstanceIterator.anchorOf(task);
+				originalTime = anchor == null ? null : anchor.getTimestamp();
+			}
+			instanceValues.put(Instances.INSTANCE_ORIGINAL_TIME, originalTime);
+		}
+
 		TimeZone localTz = TimeZone.getDefault();
 
 		if (dtstart != null)
@@ -169,33 +296,458 @@ public class TaskInstancesProcessor extends AbstractEntityProcessor<TaskAdapter>
 
 
 	/**
-	 * Creates new instances for the given task {@link ContentValues}.
-	 * <p>
-	 * TODO: expand recurrence
-	 * </p>
-	 * 
-	 * @param uri
-	 *            The {@link Uri} used when inserting the task.
-	 * @param values
-	 *            The {@link ContentValues} of the task.
-	 * @param rowId
-	 *            The new {@link RowId} of the task.
+	 * Returns a {@link DateTime} that's the given number of milliseconds after the given {@link DateTime}. All-day values stay all-day values.
+	 */
+	private static DateTime shift(DateTime dateTime, long millis)
+	{
+		if (dateTime.isAllDay())
+		{
+			return new DateTime(DateTime.UTC, dateTime.getTimestamp() + millis).toAllDay();
+		}
+		return new DateTime(dateTime.getTimeZone(), dateTime.getTimestamp() + millis);
+	}
+
+
+	/**
+	 * Creates new instances for the given task. Recurring tasks are expanded up to the horizon.
+	 *
+	 * @param db
+	 *            The {@link SQLiteDatabase}.
+	 * @param task
+	 *            The {@link TaskAdapter} of the task.
 	 */
 	private void createInstances(SQLiteDatabase db, TaskAdapter task)
 	{
-		ContentValues instanceValues = generateInstanceValues(task);
+		StatementCache statements = StatementCache.get(db);
+		for (ContentValues instanceValues : generateInstances(task, exceptionTimes(db, task.id()), System.currentTimeMillis(), mHorizon))
+		{
+			statements.insert(Tables.INSTANCES, null, instanceValues);
+		}
+	}
 
-		// set rowID of current Task
-		instanceValues.put(Instances.TASK_ID, task.id());
 
-		db.insert(Tables.INSTANCES, null, instanceValues);
+	/**
+	 * Returns the {@link ContentValues} of all instances of the given task that are to be stored in the instances table. Recurring tasks are expanded up to
+	 * the given horizon. This doesn't access the database, so it can be called from any thread.
+	 *
+	 * @param task
+	 *            The {@link TaskAdapter} of the task.
+	 * @param exceptions
+	 *            The original times of all exceptions of the task, may be <code>null</code>.
+	 * @param now
+	 *            The current time in milliseconds since the epoch.
+	 * @param horizon
+	 *            The expansion horizon in milliseconds.
+	 * @return A {@link List} of {@link ContentValues}, one for each instance, including the {@link Instances#TASK_ID}.
+	 */
+	public static List<ContentValues> generateInstances(TaskAdapter task, long[] exceptions, long now, long horizon)
+	{
+		List<ContentValues> result = new ArrayList<ContentValues>();
+		if (!task.isRecurring() || TaskInstanceIterator.anchorOf(task) == null)
+		{
+			result.add(instanceValues(task, null));
+			return result;
+		}
+
+		TaskInstanceIterator iterator = new TaskInstanceIterator(task, exceptions, now + horizon);
+		if (!iterator.hasNext())
+		{
+			// all instances have been excluded
+			return result;
+		}
+
+		// always insert the first instance, so the task is never invisible
+		result.add(instanceValues(task, iterator.next()));
+
+		iterator.fastForward(now - horizon);
+		while (result.size() < MAX_INSTANCES && iterator.hasNext())
+		{
+			DateTime instance = iterator.next();
+			if (instance.getTimestamp() > now + horizon)
+			{
+				break;
+			}
+			result.add(instanceValues(task, instance));
+		}
+		return result;
 	}
 
 
 	private void updateInstances(SQLiteDatabase db, TaskAdapter task)
 	{
-		ContentValues instanceValues = generateInstanceValues(task);
+		boolean wasRecurring = task.oldValueOf(TaskAdapter.RRULE) != null || task.oldValueOf(TaskAdapter.RDATE) != null;
+		if (!task.isRecurring() && !wasRecurring)
+		{
+			// a single instance, just update it in place
+			ContentValues instanceValues = generateInstanceValues(task, null);
+
+			db.update(Tables.INSTANCES, instanceValues, TaskContract.Instances.TASK_ID + " = " + task.id(), null);
+			return;
+		}
+
+		if (task.isRecurring() && wasRecurring && !task.recurrenceRuleUpdated() && !task.isUpdated(TaskAdapter.ORIGINAL_INSTANCE_TIME)
+			&& !task.getState(UPDATE_REQUESTED) && updateRecurrenceDates(db, task))
+		{
+			// only RDATEs or EXDATEs have changed and the affected instances have been updated
+			return;
+		}
+
+		// the recurrence set has changed, rebuild all instances
+		db.delete(Tables.INSTANCES, TaskContract.Instances.TASK_ID + " = " + task.id(), null);
+		createInstances(db, task);
+	}
+
+
+	/**
+	 * Updates the instances of a recurring task of which only the RDATEs or EXDATEs have changed. Instead of rebuilding the entire series this inserts or
+	 * removes only the instances of the dates that have been added or removed.
+	 *
+	 * @param db
+	 *            The {@link SQLiteDatabase}.
+	 * @param task
+	 *            The {@link TaskAdapter} of the updated task.
+	 * @return <code>false</code> if too many dates have changed, in which case nothing has been updated and the caller should rebuild all instances.
+	 */
+	private boolean updateRecurrenceDates(SQLiteDatabase db, TaskAdapter task)
+	{
+		DateTime anchor = TaskInstanceIterator.anchorOf(task);
+		if (anchor == null)
+		{
+			return false;
+		}
+
+		Set<Long> changedTimes = new TreeSet<Long>();
+		addDifference(changedTimes, TaskInstanceIterator.normalizeDates(anchor, task.oldValueOf(TaskAdapter.RDATE)),
+			TaskInstanceIterator.normalizeDates(anchor, task.valueOf(TaskAdapter.RDATE)));
+		addDifference(changedTimes, TaskInstanceIterator.normalizeDates(anchor, task.oldValueOf(TaskAdapter.EXDATE)),
+			TaskInstanceIterator.normalizeDates(anchor, task.valueOf(TaskAdapter.EXDATE)));
+
+		if (changedTimes.size() > MAX_INCREMENTAL_CHANGES)
+		{
+			return false;
+		}
+
+		long[] exceptions = exceptionTimes(db, task.id());
+		long until = Math.max(System.currentTimeMillis() + mHorizon, lastInstanceTime(db, task.id()));
+
+		for (long originalTime : changedTimes)
+		{
+			// check if the changed date is an instance of the new recurrence set
+			TaskInstanceIterator iterator = new TaskInstanceIterator(task, exceptions, originalTime);
+			iterator.fastForward(originalTime);
+			DateTime instance = iterator.hasNext() ? iterator.next() : null;
+
+			if (instance != null && instance.getTimestamp() == originalTime)
+			{
+				if (originalTime <= until && !hasInstance(db, task.id(), originalTime))
+				{
+					insertInstance(db, task, instance);
+				}
+			}
+			else
+			{
+				db.delete(Tables.INSTANCES, Instances.TASK_ID + " = " + task.id() + " and " + Instances.INSTANCE_ORIGINAL_TIME + " = " + originalTime, null);
+			}
+		}
+		return true;
+	}
+
+
+	/**
+	 * Adds the timestamps of all dates that are in only one of the given arrays to the given {@link Set}.
+	 */
+	private static void addDifference(Set<Long> result, DateTime[] oldDates, DateTime[] newDates)
+	{
+		Set<Long> oldTimes = timestamps(oldDates);
+		Set<Long> newTimes = timestamps(newDates);
+		for (Long timestamp : oldTimes)
+		{
+			if (!newTimes.contains(timestamp))
+			{
+				result.add(timestamp);
+			}
+		}
+		for (Long timestamp : newTimes)
+		{
+			if (!oldTimes.contains(timestamp))
+			{
+				result.add(timestamp);
+			}
+		}
+	}
 
-		db.update(Tables.INSTANCES, instanceValues, TaskContract.Instances.TASK_ID + " = " + task.id(), null);
+
+	private static Set<Long> timestamps(DateTime[] dates)
+	{
+		Set<Long> result = new HashSet<Long>();
+		if (dates != null)
+		{
+			for (DateTime date : dates)
+			{
+				result.add(date.getTimestamp());
+			}
+		}
+		return result;
+	}
+
+
+	/**
+	 * Returns whether the given task has an instance with the given original time.
+	 */
+	private static boolean hasInstance(SQLiteDatabase db, long taskId, long originalTime)
+	{
+		Cursor c = db.query(Tables.INSTANCES, new String[] { Instances._ID }, Instances.TASK_ID + " = " + taskId + " and "
+			+ Instances.INSTANCE_ORIGINAL_TIME + " = " + originalTime, null, null, null, null, "1");
+		try
+		{
+			return c.moveToFirst();
+		}
+		finally
+		{
+			c.close();
+		}
+	}
+
+
+	/**
+	 * Inserts all instances of the given recurring task that are not later than the given time and that haven't been inserted yet. The expansion continues
+	 * after the last stored instance. Series that have ended before that instance or before the time up to which all tasks have already been expanded are
+	 * skipped without expanding their recurrence set.
+	 *
+	 * @param db
+	 *            The {@link SQLiteDatabase}.
+	 * @param task
+	 *            The {@link TaskAdapter} of a recurring task.
+	 * @param expanded
+	 *            The time up to which all recurring tasks have been expanded before in milliseconds since the epoch or {@link Long#MIN_VALUE} if that's not
+	 *            known.
+	 * @param until
+	 *            The timestamp of the last instance to insert in milliseconds since the epoch.
+	 * @return The number of instances that have been inserted.
+	 */
+	public static int expandInstances(SQLiteDatabase db, TaskAdapter task, long expanded, long until)
+	{
+		long seriesEnd = TaskInstanceIterator.seriesEnd(task);
+		if (seriesEnd == Long.MIN_VALUE)
+		{
+			// no anchor, no instances
+			return 0;
+		}
+
+		long lastInstance;
+		int instanceCount;
+		Cursor c = db.query(Tables.INSTANCES, new String[] { "max(" + Instances.INSTANCE_ORIGINAL_TIME + ")", "count(*)" }, Instances.TASK_ID + " = "
+			+ task.id(), null, null, null, null);
+		try
+		{
+			c.moveToFirst();
+			lastInstance = c.isNull(0) ? Long.MIN_VALUE : c.getLong(0);
+			instanceCount = c.getInt(1);
+		}
+		finally
+		{
+			c.close();
+		}
+
+		if (lastInstance >= until || lastInstance >= seriesEnd)
+		{
+			// nothing to do
+			return 0;
+		}
+
+		if (seriesEnd <= expanded && instanceCount < MAX_INSTANCES)
+		{
+			// the series ended before the last expansion, which wasn't limited by MAX_INSTANCES, so there is nothing left to insert
+			return 0;
+		}
+
+		TaskInstanceIterator iterator = new TaskInstanceIterator(task, exceptionTimes(db, task.id()), until);
+		iterator.fastForward(lastInstance == Long.MIN_VALUE ? Long.MIN_VALUE : lastInstance + 1);
+		return insertInstances(db, task, iterator, until, MAX_INSTANCES);
+	}
+
+
+	/**
+	 * Inserts the instances returned by the given iterator until an instance is later than <code>until</code> or the limit has been reached.
+	 */
+	private static int insertInstances(SQLiteDatabase db, TaskAdapter task, TaskInstanceIterator iterator, long until, int limit)
+	{
+		int count = 0;
+		while (count < limit && iterator.hasNext())
+		{
+			DateTime instance = iterator.next();
+			if (instance.getTimestamp() > until)
+			{
+				break;
+			}
+			insertInstance(db, task, instance);
+			++count;
+		}
+		return count;
+	}
+
+
+	private static void insertInstance(SQLiteDatabase db, TaskAdapter task, DateTime instance)
+	{
+		StatementCache.get(db).insert(Tables.INSTANCES, null, instanceValues(task, instance));
+	}
+
+
+	/**
+	 * Returns the {@link ContentValues} of the given instance including the {@link Instances#TASK_ID}.
+	 */
+	private static ContentValues instanceValues(TaskAdapter task, DateTime instance)
+	{
+		ContentValues instanceValues = generateInstanceValues(task, instance);
+		instanceValues.put(Instances.TASK_ID, task.id());
+		return instanceValues;
+	}
+
+
+	/**
+	 * Removes the instance of a recurring master task that is overridden by the given exception.
+	 */
+	private static void removeOverriddenInstance(SQLiteDatabase db, TaskAdapter task)
+	{
+		Long masterId = task.valueOf(TaskAdapter.ORIGINAL_INSTANCE_ID);
+		Long originalTime = task.valueOf(TaskAdapter.ORIGINAL_INSTANCE_TIME);
+		if (masterId == null || originalTime == null)
+		{
+			// not an exception
+			return;
+		}
+
+		db.delete(Tables.INSTANCES, Instances.TASK_ID + " = " + masterId + " and " + Instances.INSTANCE_ORIGINAL_TIME + " = " + originalTime, null);
+	}
+
+
+	/**
+	 * Re-inserts the instance of a recurring master task at the given original time after the exception that has overridden it has been removed or moved to
+	 * another instance. Nothing is inserted if another exception overrides the same instance, if the time is not an instance of the master (anymore) or if
+	 * it's beyond the expansion horizon.
+	 */
+	private void restoreOverriddenInstance(SQLiteDatabase db, Long masterId, Long originalTime)
+	{
+		if (masterId == null || originalTime == null)
+		{
+			// the task was not an exception
+			return;
+		}
+
+		long[] exceptions = exceptionTimes(db, masterId);
+		for (long exception : exceptions)
+		{
+			if (exception == originalTime)
+			{
+				// the instance is still overridden, this includes exceptions that have only been marked as deleted
+				return;
+			}
+		}
+
+		if (hasInstance(db, masterId, originalTime))
+		{
+			return;
+		}
+
+		TaskAdapter master = loadTask(db, masterId);
+		DateTime anchor = master == null ? null : TaskInstanceIterator.anchorOf(master);
+		if (anchor == null)
+		{
+			return;
+		}
+
+		if (!master.isRecurring())
+		{
+			if (anchor.getTimestamp() == originalTime)
+			{
+				insertInstance(db, master, null);
+			}
+			return;
+		}
+
+		if (originalTime > Math.max(System.currentTimeMillis() + mHorizon, lastInstanceTime(db, masterId)))
+		{
+			// the instance will be inserted when the horizon reaches it
+			return;
+		}
+
+		TaskInstanceIterator iterator = new TaskInstanceIterator(master, exceptions, originalTime);
+		iterator.fastForward(originalTime);
+		DateTime instance = iterator.hasNext() ? iterator.next() : null;
+		if (instance != null && instance.getTimestamp() == originalTime)
+		{
+			insertInstance(db, master, instance);
+		}
+	}
+
+
+	/**
+	 * Loads the task with the given id.
+	 *
+	 * @return A {@link TaskAdapter} or <code>null</code> if there is no such task.
+	 */
+	private static TaskAdapter loadTask(SQLiteDatabase db, long taskId)
+	{
+		Cursor c = db.query(Tables.TASKS, null, TaskContract.Tasks._ID + " = " + taskId, null, null, null, null);
+		try
+		{
+			if (!c.moveToFirst())
+			{
+				return null;
+			}
+			ContentValues values = new ContentValues(c.getColumnCount());
+			DatabaseUtils.cursorRowToContentValues(c, values);
+			return new ContentValuesTaskAdapter(taskId, values);
+		}
+		finally
+		{
+			c.close();
+		}
+	}
+
+
+	/**
+	 * Returns the original times of all exceptions of the given master task.
+	 */
+	private static long[] exceptionTimes(SQLiteDatabase db, long masterId)
+	{
+		Cursor c = db.query(Tables.TASKS, new String[] { TaskContract.Tasks.ORIGINAL_INSTANCE_TIME }, TaskContract.Tasks.ORIGINAL_INSTANCE_ID + " = "
+			+ masterId + " and " + TaskContract.Tasks.ORIGINAL_INSTANCE_TIME + " not null", null, null, null, null);
+		try
+		{
+			long[] result = new long[c.getCount()];
+			int i = 0;
+			while (c.moveToNext())
+			{
+				result[i++] = c.getLong(0);
+			}
+			return result;
+		}
+		finally
+		{
+			c.close();
+		}
+	}
+
+
+	/**
+	 * Returns the original time of the last instance of the given task or {@link Long#MIN_VALUE} if there is none.
+	 */
+	private static long lastInstanceTime(SQLiteDatabase db, long taskId)
+	{
+		Cursor c = db.query(Tables.INSTANCES, new String[] { "max(" + Instances.INSTANCE_ORIGINAL_TIME + ")" }, Instances.TASK_ID + " = " + taskId, null,
+			null, null, null);
+		try
+		{
+			if (c.moveToFirst() && !c.isNull(0))
+			{
+				return c.getLong(0);
+			}
+			return Long.MIN_VALUE;
+		}
+		finally
+		{
+			c.close();
+		}
 	}
 }
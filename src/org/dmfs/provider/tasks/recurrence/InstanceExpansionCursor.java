@@ -0,0 +1,793 @@
+/*
+ * Copyright (C) 2015 Marten Gajda <marten@dmfs.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.dmfs.provider.tasks.recurrence;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.dmfs.provider.tasks.TaskContract.Instances;
+import org.dmfs.provider.tasks.TaskContract.Tasks;
+import org.dmfs.provider.tasks.TaskDatabaseHelper.Tables;
+import org.dmfs.provider.tasks.model.CursorContentValuesTaskAdapter;
+import org.dmfs.provider.tasks.model.TaskAdapter;
+import org.dmfs.provider.tasks.processors.tasks.TaskInstancesProcessor;
+import org.dmfs.rfc5545.DateTime;
+import org.dmfs.rfc5545.Duration;
+
+import android.content.ContentValues;
+import android.database.AbstractCursor;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+
+/**
+ * A {@link Cursor} that returns the instances of a set of tasks within a specific time range. The instances are computed on the fly from the recurrence sets of
+ * the tasks, nothing is read from or written to the instances table.
+ * <p>
+ * The instances are expanded when the cursor is accessed for the first time. Only the task row and the original time of each instance are kept, the instance
+ * values are computed when a row is read. The rows are sorted by {@link Instances#INSTANCE_START} or, if a task has no start,
+ * {@link Instances#INSTANCE_DUE}, unless a sort order is given. The sort order may refer to the instance columns only, since that's what the rows are sorted
+ * by in memory.
+ * </p>
+ * <p>
+ * Instances that are stored in the instances table have their regular {@link Instances#_ID}. Instances beyond the expansion horizon get a negative id that
+ * is derived from the task id and the original time, so it's stable across queries. Such ids can't be used to build instance {@link android.net.Uri}s.
+ * </p>
+ *
+ * @author Marten Gajda <marten@dmfs.org>
+ */
+public final class InstanceExpansionCursor extends AbstractCursor
+{
+	/**
+	 * The columns that are computed for each instance.
+	 */
+	private final static String[] INSTANCE_COLUMNS = { Instances._ID, Instances.TASK_ID, Instances.INSTANCE_START, Instances.INSTANCE_START_SORTING,
+		Instances.INSTANCE_DUE, Instances.INSTANCE_DUE_SORTING, Instances.INSTANCE_DURATION, Instances.INSTANCE_ORIGINAL_TIME };
+
+	/**
+	 * The maximum number of masters to load the exceptions of in one query.
+	 */
+	private final static int MAX_MASTERS_PER_QUERY = 256;
+
+	/**
+	 * The number of bits of the original time in seconds in the id of an instance that's not stored.
+	 */
+	private final static int VIRTUAL_ID_TIME_BITS = 34;
+
+	/**
+	 * Matches a single term of a sort order.
+	 */
+	private final static Pattern SORT_TERM = Pattern.compile("\\s*(\\w+)(?:\\s+(ASC|DESC))?\\s*", Pattern.CASE_INSENSITIVE);
+
+	private final static Comparator<InstanceSource> SOURCE_COMPARATOR = new Comparator<InstanceSource>()
+	{
+		@Override
+		public int compare(InstanceSource lhs, InstanceSource rhs)
+		{
+			long l = lhs.next.getTimestamp();
+			long r = rhs.next.getTimestamp();
+			return l < r ? -1 : (l == r ? lhs.taskPosition - rhs.taskPosition : 1);
+		}
+	};
+
+	private final SQLiteDatabase mDb;
+
+	/**
+	 * The tasks to expand. The cursor must contain all task columns.
+	 */
+	private final Cursor mTasks;
+
+	private final long mStart;
+	private final long mEnd;
+
+	/**
+	 * Pairs of start and end timestamps the instances have to match in addition or <code>null</code>.
+	 */
+	private final long[] mRanges;
+
+	/**
+	 * Whether the instances have to overlap one of {@link #mRanges} or have to start or become due within one of them.
+	 */
+	private final boolean mOverlapping;
+
+	private final String[] mColumns;
+
+	/**
+	 * The source of each column. Values &gt;= 0 are indices into {@link #mTasks}, negative values <code>-1-n</code> refer to the n-th element of
+	 * {@link #INSTANCE_COLUMNS}.
+	 */
+	private final int[] mColumnSources;
+
+	/**
+	 * The indices into {@link #INSTANCE_COLUMNS} to sort the rows by or <code>null</code> to keep the order of the expansion.
+	 */
+	private final int[] mSortColumns;
+
+	/**
+	 * Whether the respective element of {@link #mSortColumns} is sorted in descending order.
+	 */
+	private final boolean[] mSortDescending;
+
+	/**
+	 * The ids of the stored instances by task id and original time.
+	 */
+	private Map<Long, Map<Long, Long>> mInstanceIds;
+
+	/**
+	 * The position of the task of each row in {@link #mTasks} or <code>null</code> if the instances have not been expanded yet.
+	 */
+	private int[] mRowTasks;
+
+	/**
+	 * The original time of each row.
+	 */
+	private DateTime[] mRowInstances;
+
+	private int mRowCount;
+
+	/**
+	 * The row of the cached instance values or -1.
+	 */
+	private int mCachedRow = -1;
+	private ContentValues mCachedValues;
+
+
+	/**
+	 * Creates a cursor that expands the instances of the given tasks within the given range.
+	 *
+	 * @param db
+	 *            The database, used to load the exceptions of recurring tasks.
+	 * @param tasks
+	 *            A {@link Cursor} with all columns of the tasks to expand. This cursor is closed when this cursor is closed.
+	 * @param projection
+	 *            The columns to return or <code>null</code> to return all instance and task columns.
+	 * @param start
+	 *            The start of the range in milliseconds since the epoch (inclusive).
+	 * @param end
+	 *            The end of the range in milliseconds since the epoch (exclusive).
+	 */
+	public InstanceExpansionCursor(SQLiteDatabase db, Cursor tasks, String[] projection, long start, long end)
+	{
+		this(db, tasks, projection, start, end, null, true, null);
+	}
+
+
+	/**
+	 * Creates a cursor that expands the instances of the given tasks within the given range and returns only those that match any of the given ranges.
+	 *
+	 * @param db
+	 *            The database, used to load the exceptions of recurring tasks.
+	 * @param tasks
+	 *            A {@link Cursor} with all columns of the tasks to expand. This cursor is closed when this cursor is closed.
+	 * @param projection
+	 *            The columns to return or <code>null</code> to return all instance and task columns.
+	 * @param start
+	 *            The start of the range in milliseconds since the epoch (inclusive).
+	 * @param end
+	 *            The end of the range in milliseconds since the epoch (exclusive).
+	 * @param ranges
+	 *            Pairs of start (inclusive) and end (exclusive) timestamps or <code>null</code> to return all instances within the range.
+	 * @param overlapping
+	 *            <code>true</code> to return the instances that overlap any of the ranges, <code>false</code> to return the instances that start or become
+	 *            due within any of the ranges.
+	 * @param sortOrder
+	 *            A comma separated list of instance columns, each optionally followed by <code>ASC</code> or <code>DESC</code>, or <code>null</code> to keep
+	 *            the order of the expansion.
+	 * @throws IllegalArgumentException
+	 *             if the sort order refers to anything but instance columns, the tasks cursor is closed in that case.
+	 */
+	public InstanceExpansionCursor(SQLiteDatabase db, Cursor tasks, String[] projection, long start, long end, long[] ranges, boolean overlapping,
+		String sortOrder)
+	{
+		mDb = db;
+		mTasks = tasks;
+		mStart = start;
+		mEnd = end;
+		mRanges = ranges;
+		mOverlapping = overlapping;
+
+		if (projection == null)
+		{
+			// all instance columns and all task columns, except for the task _ID which would hide the instance _ID
+			List<String> columns = new ArrayList<String>(Arrays.asList(INSTANCE_COLUMNS));
+			for (String column : tasks.getColumnNames())
+			{
+				if (!columns.contains(column))
+				{
+					columns.add(column);
+				}
+			}
+			projection = columns.toArray(new String[columns.size()]);
+		}
+
+		mColumns = projection;
+		mColumnSources = new int[projection.length];
+		List<String> instanceColumns = Arrays.asList(INSTANCE_COLUMNS);
+		for (int i = 0, count = projection.length; i < count; ++i)
+		{
+			int instanceColumn = instanceColumns.indexOf(projection[i]);
+			if (instanceColumn >= 0)
+			{
+				mColumnSources[i] = -1 - instanceColumn;
+			}
+			else
+			{
+				mColumnSources[i] = tasks.getColumnIndexOrThrow(projection[i]);
+			}
+		}
+
+		if (sortOrder == null || sortOrder.trim().length() == 0)
+		{
+			mSortColumns = null;
+			mSortDescending = null;
+		}
+		else
+		{
+			String[] terms = sortOrder.split(",");
+			mSortColumns = new int[terms.length];
+			mSortDescending = new boolean[terms.length];
+			for (int i = 0, count = terms.length; i < count; ++i)
+			{
+				Matcher matcher = SORT_TERM.matcher(terms[i]);
+				int column = matcher.matches() ? instanceColumns.indexOf(matcher.group(1)) : -1;
+				if (column < 0)
+				{
+					tasks.close();
+					throw new IllegalArgumentException("expanded instances can be sorted by instance columns only: " + sortOrder);
+				}
+				mSortColumns[i] = column;
+				mSortDescending[i] = "DESC".equalsIgnoreCase(matcher.group(2));
+			}
+		}
+	}
+
+
+	@Override
+	public String[] getColumnNames()
+	{
+		return mColumns;
+	}
+
+
+	@Override
+	public int getCount()
+	{
+		expand();
+		return mRowCount;
+	}
+
+
+	@Override
+	public boolean onMove(int oldPosition, int newPosition)
+	{
+		expand();
+		return mTasks.moveToPosition(mRowTasks[newPosition]);
+	}
+
+
+	@Override
+	public String getString(int column)
+	{
+		int source = mColumnSources[column];
+		return source >= 0 ? mTasks.getString(source) : instanceValues().getAsString(INSTANCE_COLUMNS[-1 - source]);
+	}
+
+
+	@Override
+	public short getShort(int column)
+	{
+		int source = mColumnSources[column];
+		return source >= 0 ? mTasks.getShort(source) : (short) getInstanceLong(source);
+	}
+
+
+	@Override
+	public int getInt(int column)
+	{
+		int source = mColumnSources[column];
+		return source >= 0 ? mTasks.getInt(source) : (int) getInstanceLong(source);
+	}
+
+
+	@Override
+	public long getLong(int column)
+	{
+		int source = mColumnSources[column];
+		return source >= 0 ? mTasks.getLong(source) : getInstanceLong(source);
+	}
+
+
+	@Override
+	public float getFloat(int column)
+	{
+		int source = mColumnSources[column];
+		return source >= 0 ? mTasks.getFloat(source) : getInstanceLong(source);
+	}
+
+
+	@Override
+	public double getDouble(int column)
+	{
+		int source = mColumnSources[column];
+		return source >= 0 ? mTasks.getDouble(source) : getInstanceLong(source);
+	}
+
+
+	@Override
+	public boolean isNull(int column)
+	{
+		int source = mColumnSources[column];
+		return source >= 0 ? mTasks.isNull(source) : instanceValues().get(INSTANCE_COLUMNS[-1 - source]) == null;
+	}
+
+
+	@Override
+	public void close()
+	{
+		super.close();
+		mTasks.close();
+	}
+
+
+	@Override
+	public void deactivate()
+	{
+		super.deactivate();
+		mTasks.deactivate();
+	}
+
+
+	private long getInstanceLong(int source)
+	{
+		Long value = instanceValues().getAsLong(INSTANCE_COLUMNS[-1 - source]);
+		return value == null ? 0 : value;
+	}
+
+
+	/**
+	 * Returns the instance values of the current row. The task cursor must point to the task of the current row.
+	 */
+	private ContentValues instanceValues()
+	{
+		int row = getPosition();
+		if (row != mCachedRow)
+		{
+			mCachedValues = instanceValues(row);
+			mCachedRow = row;
+		}
+		return mCachedValues;
+	}
+
+
+	/**
+	 * Computes the instance values of the given row. The task cursor must point to the task of that row.
+	 */
+	private ContentValues instanceValues(int row)
+	{
+		TaskAdapter task = new CursorContentValuesTaskAdapter(mTasks, null);
+		ContentValues values = TaskInstancesProcessor.generateInstanceValues(task, task.isRecurring() ? mRowInstances[row] : null);
+		long taskId = task.id();
+		values.put(Instances.TASK_ID, taskId);
+
+		Long originalTime = values.getAsLong(Instances.INSTANCE_ORIGINAL_TIME);
+		Map<Long, Long> taskInstanceIds = mInstanceIds.get(taskId);
+		Long id = taskInstanceIds == null ? null : taskInstanceIds.get(originalTime);
+		if (id == null && originalTime != null)
+		{
+			// not stored, derive a negative id that doesn't collide with stored instances
+			id = -1 - (taskId << VIRTUAL_ID_TIME_BITS | (originalTime / 1000 & ((1L << VIRTUAL_ID_TIME_BITS) - 1)));
+		}
+		values.put(Instances._ID, id);
+		return values;
+	}
+
+
+	/**
+	 * Expands the instances of all tasks, if not done yet.
+	 */
+	private void expand()
+	{
+		if (mRowTasks != null)
+		{
+			return;
+		}
+
+		Map<Long, long[]> exceptions = loadExceptions();
+
+		// prepare one instance source per task that has at least one instance in the range
+		PriorityQueue<InstanceSource> queue = new PriorityQueue<InstanceSource>(Math.max(1, mTasks.getCount()), SOURCE_COMPARATOR);
+		mTasks.moveToPosition(-1);
+		while (mTasks.moveToNext())
+		{
+			TaskAdapter task = new CursorContentValuesTaskAdapter(mTasks, null);
+			if (TaskInstanceIterator.anchorOf(task) == null)
+			{
+				// tasks without dates don't have instances in any range
+				continue;
+			}
+
+			InstanceSource source = new InstanceSource(mTasks.getPosition(), new TaskInstanceIterator(task, exceptions.get(task.id()), mEnd), spanOf(task));
+			if (source.moveToFirst(mStart, mEnd))
+			{
+				queue.add(source);
+			}
+		}
+
+		// merge all sources
+		int[] rowTasks = new int[Math.max(16, queue.size())];
+		DateTime[] rowInstances = new DateTime[rowTasks.length];
+		int rowCount = 0;
+		InstanceSource source;
+		while ((source = queue.poll()) != null)
+		{
+			if (rowCount == rowTasks.length)
+			{
+				// grow the arrays, note that Arrays.copyOf is not available on API level 8
+				int[] newRowTasks = new int[rowCount * 2];
+				System.arraycopy(rowTasks, 0, newRowTasks, 0, rowCount);
+				rowTasks = newRowTasks;
+				DateTime[] newRowInstances = new DateTime[rowCount * 2];
+				System.arraycopy(rowInstances, 0, newRowInstances, 0, rowCount);
+				rowInstances = newRowInstances;
+			}
+			if (matchesRanges(source.next.getTimestamp(), source.span))
+			{
+				rowTasks[rowCount] = source.taskPosition;
+				rowInstances[rowCount] = source.next;
+				++rowCount;
+			}
+
+			if (source.moveToNext(mStart, mEnd))
+			{
+				queue.add(source);
+			}
+		}
+
+		mRowTasks = rowTasks;
+		mRowInstances = rowInstances;
+		mRowCount = rowCount;
+
+		mInstanceIds = loadInstanceIds();
+
+		if (mSortColumns != null)
+		{
+			sortRows();
+		}
+	}
+
+
+	/**
+	 * Sorts the rows by {@link #mSortColumns}. Like SQLite, <code>null</code> values are sorted first in ascending order. Rows with equal values keep the
+	 * order of the expansion.
+	 */
+	private void sortRows()
+	{
+		final int rowCount = mRowCount;
+		final int sortColumnCount = mSortColumns.length;
+
+		// compute the sort keys once, the comparator would compute them over and over again
+		final Long[][] keys = new Long[rowCount][sortColumnCount];
+		for (int row = 0; row < rowCount; ++row)
+		{
+			mTasks.moveToPosition(mRowTasks[row]);
+			ContentValues values = instanceValues(row);
+			for (int i = 0; i < sortColumnCount; ++i)
+			{
+				keys[row][i] = values.getAsLong(INSTANCE_COLUMNS[mSortColumns[i]]);
+			}
+		}
+
+		Integer[] order = new Integer[rowCount];
+		for (int row = 0; row < rowCount; ++row)
+		{
+			order[row] = row;
+		}
+
+		// Arrays.sort is stable for objects
+		Arrays.sort(order, new Comparator<Integer>()
+		{
+			@Override
+			public int compare(Integer lhs, Integer rhs)
+			{
+				Long[] l = keys[lhs];
+				Long[] r = keys[rhs];
+				for (int i = 0; i < sortColumnCount; ++i)
+				{
+					int result = l[i] == null ? (r[i] == null ? 0 : -1) : (r[i] == null ? 1 : l[i].compareTo(r[i]));
+					if (result != 0)
+					{
+						return mSortDescending[i] ? -result : result;
+					}
+				}
+				return 0;
+			}
+		});
+
+		int[] rowTasks = new int[rowCount];
+		DateTime[] rowInstances = new DateTime[rowCount];
+		for (int row = 0; row < rowCount; ++row)
+		{
+			rowTasks[row] = mRowTasks[order[row]];
+			rowInstances[row] = mRowInstances[order[row]];
+		}
+		mRowTasks = rowTasks;
+		mRowInstances = rowInstances;
+		mCachedRow = -1;
+	}
+
+
+	/**
+	 * Loads the ids of the stored instances of all tasks in the result, mapped by task id and original time.
+	 */
+	private Map<Long, Map<Long, Long>> loadInstanceIds()
+	{
+		Map<Long, Map<Long, Long>> result = new HashMap<Long, Map<Long, Long>>();
+
+		Set<Long> taskIds = new HashSet<Long>();
+		int idColumn = mTasks.getColumnIndexOrThrow(Tasks._ID);
+		for (int row = 0; row < mRowCount; ++row)
+		{
+			mTasks.moveToPosition(mRowTasks[row]);
+			taskIds.add(mTasks.getLong(idColumn));
+		}
+
+		List<Long> ids = new ArrayList<Long>(taskIds);
+		for (int first = 0, count = ids.size(); first < count; first += MAX_MASTERS_PER_QUERY)
+		{
+			loadInstanceIds(ids.subList(first, Math.min(count, first + MAX_MASTERS_PER_QUERY)), result);
+		}
+		return result;
+	}
+
+
+	/**
+	 * Loads the ids of the stored instances of the given tasks into the given {@link Map}.
+	 */
+	private void loadInstanceIds(List<Long> taskIds, Map<Long, Map<Long, Long>> result)
+	{
+		StringBuilder selection = new StringBuilder(taskIds.size() * 8 + 64);
+		selection.append(Instances.TASK_ID).append(" in (");
+		for (int i = 0, count = taskIds.size(); i < count; ++i)
+		{
+			if (i > 0)
+			{
+				selection.append(',');
+			}
+			selection.append(taskIds.get(i));
+		}
+		selection.append(")");
+
+		Cursor c = mDb.query(Tables.INSTANCES, new String[] { Instances.TASK_ID, Instances.INSTANCE_ORIGINAL_TIME, Instances._ID }, selection.toString(), null,
+			null, null, null);
+		try
+		{
+			while (c.moveToNext())
+			{
+				Long taskId = c.getLong(0);
+				Map<Long, Long> taskInstanceIds = result.get(taskId);
+				if (taskInstanceIds == null)
+				{
+					taskInstanceIds = new HashMap<Long, Long>();
+					result.put(taskId, taskInstanceIds);
+				}
+				taskInstanceIds.put(c.isNull(1) ? null : c.getLong(1), c.getLong(2));
+			}
+		}
+		finally
+		{
+			c.close();
+		}
+	}
+
+
+	/**
+	 * Returns whether an instance that starts at the given time and lasts for the given span matches {@link #mRanges}.
+	 */
+	private boolean matchesRanges(long instanceStart, long span)
+	{
+		if (mRanges == null)
+		{
+			return true;
+		}
+
+		long instanceEnd = instanceStart + span;
+		for (int i = 0, count = mRanges.length; i < count; i += 2)
+		{
+			long start = mRanges[i];
+			long end = mRanges[i + 1];
+			if (mOverlapping)
+			{
+				if (instanceStart < end && instanceEnd >= start)
+				{
+					return true;
+				}
+			}
+			else if (instanceStart >= start && instanceStart < end || instanceEnd >= start && instanceEnd < end)
+			{
+				// the instance starts or becomes due within the range
+				return true;
+			}
+		}
+		return false;
+	}
+
+
+	/**
+	 * Loads the original times of the exceptions of all recurring tasks in {@link #mTasks}, mapped by the id of their master task.
+	 */
+	private Map<Long, long[]> loadExceptions()
+	{
+		Map<Long, long[]> result = new HashMap<Long, long[]>();
+
+		// collect the ids of all masters, the exceptions of other tasks are never used
+		List<Long> masterIds = new ArrayList<Long>();
+		mTasks.moveToPosition(-1);
+		while (mTasks.moveToNext())
+		{
+			TaskAdapter task = new CursorContentValuesTaskAdapter(mTasks, null);
+			if (task.isRecurring())
+			{
+				masterIds.add(task.id());
+			}
+		}
+
+		for (int first = 0, count = masterIds.size(); first < count; first += MAX_MASTERS_PER_QUERY)
+		{
+			loadExceptions(masterIds.subList(first, Math.min(count, first + MAX_MASTERS_PER_QUERY)), result);
+		}
+		return result;
+	}
+
+
+	/**
+	 * Loads the original times of the exceptions of the given masters into the given {@link Map}.
+	 */
+	private void loadExceptions(List<Long> masterIds, Map<Long, long[]> result)
+	{
+		StringBuilder selection = new StringBuilder(masterIds.size() * 8 + 64);
+		selection.append(Tasks.ORIGINAL_INSTANCE_ID).append(" in (");
+		for (int i = 0, count = masterIds.size(); i < count; ++i)
+		{
+			if (i > 0)
+			{
+				selection.append(',');
+			}
+			selection.append(masterIds.get(i));
+		}
+		selection.append(") and ").append(Tasks.ORIGINAL_INSTANCE_TIME).append(" not null");
+
+		Cursor c = mDb.query(Tables.TASKS, new String[] { Tasks.ORIGINAL_INSTANCE_ID, Tasks.ORIGINAL_INSTANCE_TIME }, selection.toString(), null, null, null,
+			null);
+		try
+		{
+			while (c.moveToNext())
+			{
+				Long masterId = c.getLong(0);
+				long[] times = result.get(masterId);
+				if (times == null)
+				{
+					times = new long[] { c.getLong(1) };
+				}
+				else
+				{
+					long[] newTimes = new long[times.length + 1];
+					System.arraycopy(times, 0, newTimes, 0, times.length);
+					newTimes[times.length] = c.getLong(1);
+					times = newTimes;
+				}
+				result.put(masterId, times);
+			}
+		}
+		finally
+		{
+			c.close();
+		}
+	}
+
+
+	/**
+	 * Returns the time between the start and the due date of each instance of the given task in milliseconds.
+	 */
+	private static long spanOf(TaskAdapter task)
+	{
+		DateTime dtstart = task.valueOf(TaskAdapter.DTSTART);
+		if (dtstart == null)
+		{
+			return 0;
+		}
+
+		DateTime due = task.valueOf(TaskAdapter.DUE);
+		if (due != null)
+		{
+			return due.getTimestamp() - dtstart.getTimestamp();
+		}
+
+		Duration duration = task.valueOf(TaskAdapter.DURATION);
+		if (duration != null)
+		{
+			return dtstart.addDuration(duration).getTimestamp() - dtstart.getTimestamp();
+		}
+		return 0;
+	}
+
+	/**
+	 * The instances of a single task.
+	 */
+	private final static class InstanceSource
+	{
+		final int taskPosition;
+		final TaskInstanceIterator iterator;
+		final long span;
+		DateTime next;
+
+
+		InstanceSource(int taskPosition, TaskInstanceIterator iterator, long span)
+		{
+			this.taskPosition = taskPosition;
+			this.iterator = iterator;
+			this.span = span;
+		}
+
+
+		/**
+		 * Moves to the first instance that overlaps the given range.
+		 *
+		 * @return <code>false</code> if there is no such instance.
+		 */
+		boolean moveToFirst(long start, long end)
+		{
+			iterator.fastForward(start - span);
+			return moveToNext(start, end);
+		}
+
+
+		/**
+		 * Moves to the next instance that overlaps the given range.
+		 *
+		 * @return <code>false</code> if there is no such instance.
+		 */
+		boolean moveToNext(long start, long end)
+		{
+			while (iterator.hasNext())
+			{
+				DateTime instance = iterator.next();
+				long timestamp = instance.getTimestamp();
+				if (timestamp >= end)
+				{
+					break;
+				}
+				if (timestamp + span >= start)
+				{
+					next = instance;
+					return true;
+				}
+			}
+			next = null;
+			return false;
+		}
+	}
+}
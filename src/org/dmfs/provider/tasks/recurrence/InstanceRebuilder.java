@@ -0,0 +1,343 @@
+/*
+ * Copyright (C) 2015 Marten Gajda <marten@dmfs.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.dmfs.provider.tasks.recurrence;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+import org.dmfs.provider.tasks.TaskContract.Instances;
+import org.dmfs.provider.tasks.TaskContract.Tasks;
+import org.dmfs.provider.tasks.TaskDatabaseHelper.Tables;
+import org.dmfs.provider.tasks.WorkerPool;
+import org.dmfs.provider.tasks.model.ContentValuesTaskAdapter;
+import org.dmfs.provider.tasks.processors.tasks.TaskInstancesProcessor;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+
+
+/**
+ * Rebuilds the instances of all tasks. The tasks are read in pages of {@link #TASKS_PER_TRANSACTION} tasks. The instances of each page are expanded by a pool
+ * of worker threads while the calling thread is the only one that writes to the database. The workers hand their results to the writer through a
+ * {@link WorkerPool}, so they can't get too far ahead of it.
+ * <p>
+ * Each page is read, expanded and written within a single transaction, so concurrent changes to a task can't be overwritten with outdated instances. Other
+ * threads get access to the database between the pages.
+ * </p>
+ *
+ * @author Marten Gajda <marten@dmfs.org>
+ */
+public final class InstanceRebuilder
+{
+	/**
+	 * The number of tasks that are rebuilt within a single transaction.
+	 */
+	private final static int TASKS_PER_TRANSACTION = 256;
+
+	/**
+	 * The number of tasks a worker expands in one go.
+	 */
+	private final static int TASKS_PER_JOB = 16;
+
+	/**
+	 * The task columns that are required to expand the instances.
+	 */
+	private final static String[] TASK_PROJECTION = { Tasks._ID, Tasks.DTSTART, Tasks.DUE, Tasks.DURATION, Tasks.TZ, Tasks.IS_ALLDAY, Tasks.RRULE,
+		Tasks.RDATE, Tasks.EXDATE, Tasks.ORIGINAL_INSTANCE_TIME };
+
+	/**
+	 * The instance columns in the order of the insert statement.
+	 */
+	private final static String[] INSTANCE_COLUMNS = { Instances.TASK_ID, Instances.INSTANCE_START, Instances.INSTANCE_START_SORTING, Instances.INSTANCE_DUE,
+		Instances.INSTANCE_DUE_SORTING, Instances.INSTANCE_DURATION, Instances.INSTANCE_ORIGINAL_TIME };
+
+	private final SQLiteDatabase mDb;
+	private final long mHorizon;
+	private final int mThreadCount;
+
+
+	/**
+	 * Creates an {@link InstanceRebuilder} that uses one worker per available processor.
+	 *
+	 * @param db
+	 *            The {@link SQLiteDatabase}.
+	 * @param horizon
+	 *            The expansion horizon in milliseconds.
+	 */
+	public InstanceRebuilder(SQLiteDatabase db, long horizon)
+	{
+		this(db, horizon, Runtime.getRuntime().availableProcessors());
+	}
+
+
+	/**
+	 * Creates an {@link InstanceRebuilder} with the given number of workers.
+	 *
+	 * @param db
+	 *            The {@link SQLiteDatabase}.
+	 * @param horizon
+	 *            The expansion horizon in milliseconds.
+	 * @param threadCount
+	 *            The number of worker threads.
+	 */
+	public InstanceRebuilder(SQLiteDatabase db, long horizon, int threadCount)
+	{
+		mDb = db;
+		mHorizon = horizon;
+		mThreadCount = Math.max(1, threadCount);
+	}
+
+
+	/**
+	 * Replaces the instances of all tasks. This blocks until all tasks have been processed.
+	 *
+	 * @return The number of instances that have been inserted.
+	 */
+	public int rebuild()
+	{
+		WorkerPool<List<ContentValues>> workers = new WorkerPool<List<ContentValues>>("InstanceRebuilder", mThreadCount);
+
+		SQLiteStatement insert = mDb.compileStatement(insertStatement());
+		SQLiteStatement delete = mDb.compileStatement("DELETE FROM " + Tables.INSTANCES + " WHERE " + Instances.TASK_ID + " BETWEEN ? AND ?");
+
+		long now = System.currentTimeMillis();
+		long lastId = -1;
+		int taskCount = 0;
+		int instanceCount = 0;
+		try
+		{
+			List<ContentValues> page;
+			do
+			{
+				mDb.beginTransaction();
+				try
+				{
+					page = loadTasks(lastId);
+					if (!page.isEmpty())
+					{
+						long firstId = page.get(0).getAsLong(Tasks._ID);
+						lastId = page.get(page.size() - 1).getAsLong(Tasks._ID);
+
+						// the page contains all tasks in [firstId, lastId], so we can remove their instances at once
+						delete.bindLong(1, firstId);
+						delete.bindLong(2, lastId);
+						delete.execute();
+
+						instanceCount += rebuildPage(workers, insert, page, loadExceptions(firstId, lastId), now);
+						taskCount += page.size();
+					}
+					mDb.setTransactionSuccessful();
+				}
+				finally
+				{
+					mDb.endTransaction();
+				}
+				Log.v("TaskProvider", "rebuilt instances of " + taskCount + " tasks");
+			}
+			while (page.size() == TASKS_PER_TRANSACTION);
+		}
+		finally
+		{
+			workers.shutdown();
+			insert.close();
+			delete.close();
+		}
+		return instanceCount;
+	}
+
+
+	/**
+	 * Expands the given page of tasks on the workers and inserts the instances as soon as they arrive.
+	 *
+	 * @return The number of inserted instances.
+	 */
+	private int rebuildPage(WorkerPool<List<ContentValues>> workers, SQLiteStatement insert, List<ContentValues> page, Map<Long, long[]> exceptions, long now)
+	{
+		int jobCount = 0;
+		for (int i = 0, count = page.size(); i < count; i += TASKS_PER_JOB)
+		{
+			workers.submit(new ExpansionJob(page.subList(i, Math.min(i + TASKS_PER_JOB, count)), exceptions, now, mHorizon));
+			++jobCount;
+		}
+
+		int instanceCount = 0;
+		for (int i = 0; i < jobCount; ++i)
+		{
+			// this throws if the job failed, which aborts the rebuild
+			List<ContentValues> instances = workers.take();
+			for (ContentValues instanceValues : instances)
+			{
+				bindInstance(insert, instanceValues);
+				insert.executeInsert();
+			}
+			instanceCount += instances.size();
+		}
+		return instanceCount;
+	}
+
+
+	/**
+	 * Loads the next {@link #TASKS_PER_TRANSACTION} tasks with an id larger than the given one.
+	 */
+	private List<ContentValues> loadTasks(long lastId)
+	{
+		List<ContentValues> result = new ArrayList<ContentValues>(TASKS_PER_TRANSACTION);
+		Cursor c = mDb.query(Tables.TASKS, TASK_PROJECTION, Tasks._ID + " > ?", new String[] { Long.toString(lastId) }, null, null, Tasks._ID,
+			Integer.toString(TASKS_PER_TRANSACTION));
+		try
+		{
+			while (c.moveToNext())
+			{
+				ContentValues values = new ContentValues(TASK_PROJECTION.length);
+				DatabaseUtils.cursorRowToContentValues(c, values);
+				result.add(values);
+			}
+		}
+		finally
+		{
+			c.close();
+		}
+		return result;
+	}
+
+
+	/**
+	 * Loads the original times of the exceptions of all master tasks with an id in the given range.
+	 */
+	private Map<Long, long[]> loadExceptions(long firstId, long lastId)
+	{
+		Map<Long, long[]> result = new HashMap<Long, long[]>();
+		Cursor c = mDb.query(Tables.TASKS, new String[] { Tasks.ORIGINAL_INSTANCE_ID, Tasks.ORIGINAL_INSTANCE_TIME }, Tasks.ORIGINAL_INSTANCE_ID
+			+ " BETWEEN ? AND ? and " + Tasks.ORIGINAL_INSTANCE_TIME + " not null", new String[] { Long.toString(firstId), Long.toString(lastId) }, null,
+			null, Tasks.ORIGINAL_INSTANCE_ID);
+		try
+		{
+			long masterId = -1;
+			long[] times = new long[16];
+			int count = 0;
+			while (c.moveToNext())
+			{
+				long id = c.getLong(0);
+				if (id != masterId && count > 0)
+				{
+					result.put(masterId, trim(times, count));
+					count = 0;
+				}
+				masterId = id;
+				if (count == times.length)
+				{
+					long[] newTimes = new long[count * 2];
+					System.arraycopy(times, 0, newTimes, 0, count);
+					times = newTimes;
+				}
+				times[count++] = c.getLong(1);
+			}
+			if (count > 0)
+			{
+				result.put(masterId, trim(times, count));
+			}
+		}
+		finally
+		{
+			c.close();
+		}
+		return result;
+	}
+
+
+	private static long[] trim(long[] values, int count)
+	{
+		long[] result = new long[count];
+		System.arraycopy(values, 0, result, 0, count);
+		return result;
+	}
+
+
+	private static String insertStatement()
+	{
+		StringBuilder sql = new StringBuilder(256);
+		sql.append("INSERT INTO ").append(Tables.INSTANCES).append(" (");
+		for (int i = 0; i < INSTANCE_COLUMNS.length; ++i)
+		{
+			sql.append(i == 0 ? "" : ", ").append(INSTANCE_COLUMNS[i]);
+		}
+		sql.append(") VALUES (");
+		for (int i = 0; i < INSTANCE_COLUMNS.length; ++i)
+		{
+			sql.append(i == 0 ? "?" : ", ?");
+		}
+		return sql.append(")").toString();
+	}
+
+
+	private static void bindInstance(SQLiteStatement statement, ContentValues instanceValues)
+	{
+		for (int i = 0; i < INSTANCE_COLUMNS.length; ++i)
+		{
+			Long value = instanceValues.getAsLong(INSTANCE_COLUMNS[i]);
+			if (value == null)
+			{
+				statement.bindNull(i + 1);
+			}
+			else
+			{
+				statement.bindLong(i + 1, value);
+			}
+		}
+	}
+
+	/**
+	 * Expands the instances of a couple of tasks.
+	 */
+	private final static class ExpansionJob implements Callable<List<ContentValues>>
+	{
+		private final List<ContentValues> mTasks;
+		private final Map<Long, long[]> mExceptions;
+		private final long mNow;
+		private final long mHorizon;
+
+
+		ExpansionJob(List<ContentValues> tasks, Map<Long, long[]> exceptions, long now, long horizon)
+		{
+			mTasks = tasks;
+			mExceptions = exceptions;
+			mNow = now;
+			mHorizon = horizon;
+		}
+
+
+		@Override
+		public List<ContentValues> call()
+		{
+			List<ContentValues> instances = new ArrayList<ContentValues>(mTasks.size());
+			for (ContentValues values : mTasks)
+			{
+				long id = values.getAsLong(Tasks._ID);
+				instances.addAll(TaskInstancesProcessor.generateInstances(new ContentValuesTaskAdapter(id, values), mExceptions.get(id), mNow, mHorizon));
+			}
+			return instances;
+		}
+	}
+}
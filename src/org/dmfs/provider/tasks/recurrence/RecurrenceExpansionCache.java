@@ -0,0 +1,191 @@
+/*
+ * Copyright (C) 2015 Marten Gajda <marten@dmfs.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.dmfs.provider.tasks.recurrence;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.dmfs.rfc5545.DateTime;
+import org.dmfs.rfc5545.recur.RecurrenceRule;
+import org.dmfs.rfc5545.recur.RecurrenceRuleIterator;
+
+
+/**
+ * A cache of the expanded instances of recurrence rules. Many tasks share the same rule, start and time zone, so bulk operations like rebuilding all instances
+ * can reuse the instance times instead of iterating the same rule over and over again.
+ * <p>
+ * The cache is keyed by the normalized rule, the start and the time zone and holds at most {@link #MAX_ENTRIES} expansions. The least recently used expansion
+ * is evicted first.
+ * </p>
+ *
+ * @author Marten Gajda <marten@dmfs.org>
+ */
+public final class RecurrenceExpansionCache
+{
+	/**
+	 * The maximum number of expansions in the cache.
+	 */
+	private final static int MAX_ENTRIES = 64;
+
+	/**
+	 * The maximum number of instances of a single expansion. Larger expansions are not cached.
+	 */
+	private final static int MAX_INSTANCES = 4096;
+
+	private final static Map<String, Expansion> sCache = new LinkedHashMap<String, Expansion>(MAX_ENTRIES, 0.75f, true)
+	{
+		private static final long serialVersionUID = 1L;
+
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Expansion> eldest)
+		{
+			return size() > MAX_ENTRIES;
+		}
+	};
+
+
+	private RecurrenceExpansionCache()
+	{
+	}
+
+
+	/**
+	 * Returns the timestamps of all instances of the given rule up to the given time. The result may contain instances after <code>until</code>.
+	 *
+	 * @param rule
+	 *            The {@link RecurrenceRule} to expand.
+	 * @param start
+	 *            The start of the recurrence.
+	 * @param until
+	 *            The timestamp of the last instance the caller is interested in.
+	 * @return A sorted array of timestamps or <code>null</code> if the expansion can't be cached. In the latter case the caller has to iterate the rule
+	 *         itself.
+	 */
+	public static long[] expand(RecurrenceRule rule, DateTime start, long until)
+	{
+		if (!start.isAllDay() && start.isFloating())
+		{
+			// we can't restore floating instances from timestamps
+			return null;
+		}
+
+		String key = key(rule, start);
+		synchronized (sCache)
+		{
+			Expansion expansion = sCache.get(key);
+			if (expansion != null && (expansion.complete || expansion.until >= until))
+			{
+				return expansion.timestamps;
+			}
+		}
+
+		Expansion expansion = compute(rule, start, until);
+		if (expansion == null)
+		{
+			return null;
+		}
+
+		synchronized (sCache)
+		{
+			sCache.put(key, expansion);
+		}
+		return expansion.timestamps;
+	}
+
+
+	/**
+	 * Removes all expansions from the cache.
+	 */
+	public static void clear()
+	{
+		synchronized (sCache)
+		{
+			sCache.clear();
+		}
+	}
+
+
+	private static String key(RecurrenceRule rule, DateTime start)
+	{
+		return rule.toString() + "|" + start.getTimestamp() + "|" + (start.isAllDay() ? "" : start.getTimeZone().getID());
+	}
+
+
+	/**
+	 * Expands the given rule up to the given time. Returns <code>null</code> if there are more than {@link #MAX_INSTANCES} instances.
+	 */
+	private static Expansion compute(RecurrenceRule rule, DateTime start, long until)
+	{
+		RecurrenceRuleIterator iterator = rule.iterator(start);
+		long[] timestamps = new long[64];
+		int count = 0;
+		while (iterator.hasNext())
+		{
+			long timestamp = iterator.nextDateTime().getTimestamp();
+			if (timestamp > until)
+			{
+				return new Expansion(trim(timestamps, count), until, false);
+			}
+
+			if (count == MAX_INSTANCES)
+			{
+				return null;
+			}
+
+			if (count == timestamps.length)
+			{
+				long[] newTimestamps = new long[count * 2];
+				System.arraycopy(timestamps, 0, newTimestamps, 0, count);
+				timestamps = newTimestamps;
+			}
+			timestamps[count++] = timestamp;
+		}
+		return new Expansion(trim(timestamps, count), until, true);
+	}
+
+
+	private static long[] trim(long[] timestamps, int count)
+	{
+		long[] result = new long[count];
+		System.arraycopy(timestamps, 0, result, 0, count);
+		return result;
+	}
+
+	/**
+	 * The instances of a rule up to a specific time.
+	 */
+	private final static class Expansion
+	{
+		final long[] timestamps;
+		final long until;
+
+		/**
+		 * Whether the rule has no instances after the last element of {@link #timestamps}.
+		 */
+		final boolean complete;
+
+
+		Expansion(long[] timestamps, long until, boolean complete)
+		{
+			this.timestamps = timestamps;
+			this.until = until;
+			this.complete = complete;
+		}
+	}
+}
@@ -0,0 +1,452 @@
+/*
+ * Copyright (C) 2015 Marten Gajda <marten@dmfs.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.dmfs.provider.tasks.recurrence;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.NoSuchElementException;
+
+import org.dmfs.provider.tasks.model.TaskAdapter;
+import org.dmfs.rfc5545.DateTime;
+import org.dmfs.rfc5545.recur.RecurrenceRule;
+import org.dmfs.rfc5545.recur.RecurrenceRuleIterator;
+
+
+/**
+ * Iterates the original times of all instances of a task in chronological order. The recurrence set is anchored at the start date of the task or, if the task
+ * doesn't have a start date, at its due date.
+ * <p>
+ * The iterator merges the anchor itself, the instances of the {@link TaskAdapter#RRULE} (if any) and the {@link TaskAdapter#RDATE}s (if any) and skips all
+ * {@link TaskAdapter#EXDATE}s and any additional exceptions that have been passed to the constructor. Duplicate instances are returned only once.
+ * </p>
+ * <p>
+ * Note that the recurrence set might be infinite, so callers must always stop iterating at some point.
+ * </p>
+ *
+ * @author Marten Gajda <marten@dmfs.org>
+ */
+public final class TaskInstanceIterator
+{
+	private final static long ONE_DAY = 24L * 3600L * 1000L;
+
+	private final static Comparator<DateTime> DATETIME_COMPARATOR = new Comparator<DateTime>()
+	{
+		@Override
+		public int compare(DateTime lhs, DateTime rhs)
+		{
+			long l = lhs.getTimestamp();
+			long r = rhs.getTimestamp();
+			return l < r ? -1 : (l == r ? 0 : 1);
+		}
+	};
+
+	/**
+	 * The first instance of the recurrence set.
+	 */
+	private final DateTime mAnchor;
+
+	/**
+	 * The iterator of the recurrence rule or <code>null</code> if there is no rule or the instances of the rule have been taken from the
+	 * {@link RecurrenceExpansionCache}.
+	 */
+	private final RecurrenceRuleIterator mRuleIterator;
+
+	/**
+	 * The cached timestamps of the rule instances or <code>null</code>.
+	 */
+	private final long[] mRuleInstances;
+
+	/**
+	 * The sorted RDATEs, converted to the time zone of the anchor.
+	 */
+	private final DateTime[] mRDates;
+
+	/**
+	 * The sorted timestamps of all excluded instances, EXDATEs are converted like the RDATEs.
+	 */
+	private final long[] mExceptions;
+
+	private int mRDateIndex;
+	private int mRuleIndex;
+	private boolean mAnchorReturned;
+	private DateTime mNextRuleInstance;
+	private DateTime mNext;
+	private long mLastTimestamp = Long.MIN_VALUE;
+
+
+	/**
+	 * Creates a {@link TaskInstanceIterator} for the given task.
+	 *
+	 * @param task
+	 *            The {@link TaskAdapter} of the task to iterate.
+	 * @param exceptions
+	 *            Timestamps of instances to skip in addition to the EXDATEs of the task (e.g. the original times of recurrence exceptions), may be
+	 *            <code>null</code>.
+	 */
+	public TaskInstanceIterator(TaskAdapter task, long[] exceptions)
+	{
+		this(task, exceptions, Long.MAX_VALUE);
+	}
+
+
+	/**
+	 * Creates a {@link TaskInstanceIterator} for the given task that returns at least all instances up to the given time. The instances of the recurrence rule
+	 * are taken from the {@link RecurrenceExpansionCache} if possible, in which case the iterator may end after the first instance following
+	 * <code>until</code>.
+	 *
+	 * @param task
+	 *            The {@link TaskAdapter} of the task to iterate.
+	 * @param exceptions
+	 *            Timestamps of instances to skip in addition to the EXDATEs of the task (e.g. the original times of recurrence exceptions), may be
+	 *            <code>null</code>.
+	 * @param until
+	 *            The timestamp of the last instance the caller is interested in or {@link Long#MAX_VALUE} to iterate all instances.
+	 */
+	public TaskInstanceIterator(TaskAdapter task, long[] exceptions, long until)
+	{
+		this(anchorOf(task), task.valueOf(TaskAdapter.RRULE), task.valueOf(TaskAdapter.RDATE), task.valueOf(TaskAdapter.EXDATE), exceptions, until);
+	}
+
+
+	/**
+	 * Creates a {@link TaskInstanceIterator} for the given recurrence set.
+	 *
+	 * @param anchor
+	 *            The first instance of the recurrence set, must not be <code>null</code>.
+	 * @param rule
+	 *            The {@link RecurrenceRule} or <code>null</code>.
+	 * @param rdates
+	 *            The RDATEs or <code>null</code>.
+	 * @param exdates
+	 *            The EXDATEs or <code>null</code>.
+	 * @param exceptions
+	 *            Timestamps of additional instances to skip or <code>null</code>.
+	 */
+	public TaskInstanceIterator(DateTime anchor, RecurrenceRule rule, DateTime[] rdates, DateTime[] exdates, long[] exceptions)
+	{
+		this(anchor, rule, rdates, exdates, exceptions, Long.MAX_VALUE);
+	}
+
+
+	private TaskInstanceIterator(DateTime anchor, RecurrenceRule rule, DateTime[] rdates, DateTime[] exdates, long[] exceptions, long until)
+	{
+		if (anchor == null)
+		{
+			throw new IllegalArgumentException("a recurrence set needs a start or due date");
+		}
+
+		mAnchor = anchor;
+		mRuleInstances = rule == null || until == Long.MAX_VALUE ? null : RecurrenceExpansionCache.expand(rule, anchor, until);
+		mRuleIterator = rule == null || mRuleInstances != null ? null : rule.iterator(anchor);
+		mRDates = normalizeDates(anchor, rdates);
+
+		// EXDATEs have to match the instances, so they are normalized just like the RDATEs
+		DateTime[] normalizedExDates = normalizeDates(anchor, exdates);
+		int exdateCount = normalizedExDates.length;
+		int exceptionCount = exceptions == null ? 0 : exceptions.length;
+		long[] allExceptions = new long[exdateCount + exceptionCount];
+		for (int i = 0; i < exdateCount; ++i)
+		{
+			allExceptions[i] = normalizedExDates[i].getTimestamp();
+		}
+		if (exceptionCount > 0)
+		{
+			System.arraycopy(exceptions, 0, allExceptions, exdateCount, exceptionCount);
+		}
+		Arrays.sort(allExceptions);
+		mExceptions = allExceptions;
+	}
+
+
+	/**
+	 * Returns the date that anchors the recurrence set of the given task. That's the start date or, if the task has no start date, the due date.
+	 *
+	 * @param task
+	 *            A {@link TaskAdapter}.
+	 * @return The anchor {@link DateTime} or <code>null</code> if the task has neither a start nor a due date.
+	 */
+	public static DateTime anchorOf(TaskAdapter task)
+	{
+		DateTime dtstart = task.valueOf(TaskAdapter.DTSTART);
+		return dtstart != null ? dtstart : task.valueOf(TaskAdapter.DUE);
+	}
+
+
+	/**
+	 * Returns a time that no instance of the given task is later than, without iterating the instances. This is exact for tasks without a recurrence rule
+	 * and an upper bound for rules with an UNTIL part. Rules without UNTIL may not end at all, so the result is {@link Long#MAX_VALUE} for them.
+	 *
+	 * @param task
+	 *            A {@link TaskAdapter}.
+	 * @return The timestamp in milliseconds since the epoch or {@link Long#MAX_VALUE} if it's not known.
+	 */
+	public static long seriesEnd(TaskAdapter task)
+	{
+		DateTime anchor = anchorOf(task);
+		if (anchor == null)
+		{
+			return Long.MIN_VALUE;
+		}
+
+		long result = anchor.getTimestamp();
+
+		RecurrenceRule rule = task.valueOf(TaskAdapter.RRULE);
+		if (rule != null)
+		{
+			DateTime until = rule.getUntil();
+			if (until == null)
+			{
+				return Long.MAX_VALUE;
+			}
+			// a floating or all-day UNTIL of a task with a time zone has no absolute time, give it a day of margin
+			result = Math.max(result, until.getTimestamp() + (until.isFloating() && !anchor.isFloating() ? ONE_DAY : 0));
+		}
+
+		DateTime[] rdates = normalizeDates(anchor, task.valueOf(TaskAdapter.RDATE));
+		if (rdates.length > 0)
+		{
+			result = Math.max(result, rdates[rdates.length - 1].getTimestamp());
+		}
+		return result;
+	}
+
+
+	/**
+	 * Returns whether there is another instance.
+	 *
+	 * @return <code>true</code> if {@link #next()} will return another instance, <code>false</code> otherwise.
+	 */
+	public boolean hasNext()
+	{
+		if (mNext == null)
+		{
+			mNext = fetchNext();
+		}
+		return mNext != null;
+	}
+
+
+	/**
+	 * Returns the original time of the next instance.
+	 *
+	 * @return The {@link DateTime} of the next instance.
+	 * @throws NoSuchElementException
+	 *             if there are no more instances.
+	 */
+	public DateTime next()
+	{
+		if (!hasNext())
+		{
+			throw new NoSuchElementException("no more instances");
+		}
+		DateTime result = mNext;
+		mNext = null;
+		return result;
+	}
+
+
+	/**
+	 * Skips all instances before the given timestamp. This doesn't iterate the skipped instances one by one. Cached rule instances and RDATEs are searched
+	 * binary, the rule iterator, if any, is fast forwarded by the rule itself.
+	 *
+	 * @param timestamp
+	 *            The timestamp in milliseconds since the epoch of the first instance to return.
+	 */
+	public void fastForward(long timestamp)
+	{
+		if (timestamp == Long.MIN_VALUE || timestamp <= mLastTimestamp + 1)
+		{
+			// nothing to skip
+			return;
+		}
+
+		if (mNext != null && mNext.getTimestamp() < timestamp)
+		{
+			mNext = null;
+		}
+
+		if (mNextRuleInstance != null && mNextRuleInstance.getTimestamp() < timestamp)
+		{
+			mNextRuleInstance = null;
+		}
+
+		if (mRuleInstances != null)
+		{
+			mRuleIndex = Math.max(mRuleIndex, insertionPoint(Arrays.binarySearch(mRuleInstances, timestamp)));
+		}
+		else if (mRuleIterator != null && mNextRuleInstance == null)
+		{
+			mRuleIterator.fastForward(timestamp);
+		}
+
+		while (mRDateIndex < mRDates.length && mRDates[mRDateIndex].getTimestamp() < timestamp)
+		{
+			mRDateIndex++;
+		}
+
+		if (mAnchor.getTimestamp() < timestamp)
+		{
+			mAnchorReturned = true;
+		}
+
+		// all candidates before the given time are gone, make sure none of them is returned
+		mLastTimestamp = timestamp - 1;
+	}
+
+
+	/**
+	 * Returns the index of the first element that is not less than the key from the result of {@link Arrays#binarySearch(long[], long)}.
+	 */
+	private static int insertionPoint(int searchResult)
+	{
+		return searchResult >= 0 ? searchResult : -searchResult - 1;
+	}
+
+
+	/**
+	 * Returns the next instance that is not excluded or <code>null</code> if there are no more instances.
+	 */
+	private DateTime fetchNext()
+	{
+		DateTime candidate;
+		while ((candidate = nextCandidate()) != null)
+		{
+			long timestamp = candidate.getTimestamp();
+			if (timestamp <= mLastTimestamp)
+			{
+				// we've already returned this one
+				continue;
+			}
+			mLastTimestamp = timestamp;
+
+			if (Arrays.binarySearch(mExceptions, timestamp) < 0)
+			{
+				return candidate;
+			}
+		}
+		return null;
+	}
+
+
+	/**
+	 * Returns the earliest of the anchor, the next rule instance and the next RDATE and advances the respective source.
+	 */
+	private DateTime nextCandidate()
+	{
+		if (mNextRuleInstance == null)
+		{
+			if (mRuleIterator != null && mRuleIterator.hasNext())
+			{
+				mNextRuleInstance = mRuleIterator.nextDateTime();
+			}
+			else if (mRuleInstances != null && mRuleIndex < mRuleInstances.length)
+			{
+				mNextRuleInstance = toDateTime(mRuleInstances[mRuleIndex++]);
+			}
+		}
+
+		DateTime result = null;
+		int source = -1;
+
+		if (!mAnchorReturned)
+		{
+			result = mAnchor;
+			source = 0;
+		}
+
+		if (mNextRuleInstance != null && (result == null || mNextRuleInstance.getTimestamp() < result.getTimestamp()))
+		{
+			result = mNextRuleInstance;
+			source = 1;
+		}
+
+		if (mRDateIndex < mRDates.length && (result == null || mRDates[mRDateIndex].getTimestamp() < result.getTimestamp()))
+		{
+			result = mRDates[mRDateIndex];
+			source = 2;
+		}
+
+		switch (source)
+		{
+			case 0:
+				mAnchorReturned = true;
+				break;
+			case 1:
+				mNextRuleInstance = null;
+				break;
+			case 2:
+				mRDateIndex++;
+				break;
+		}
+		return result;
+	}
+
+
+	/**
+	 * Returns a {@link DateTime} for the given timestamp in the time zone of the anchor.
+	 */
+	private DateTime toDateTime(long timestamp)
+	{
+		if (mAnchor.isAllDay())
+		{
+			return new DateTime(DateTime.UTC, timestamp).toAllDay();
+		}
+		return new DateTime(mAnchor.getTimeZone(), timestamp);
+	}
+
+
+	/**
+	 * Converts the given RDATEs or EXDATEs to the time zone of the anchor and sorts them. The timestamps of the result match the original times of the
+	 * respective instances.
+	 *
+	 * @param anchor
+	 *            The anchor of the recurrence set.
+	 * @param dates
+	 *            The RDATEs or EXDATEs, may be <code>null</code>.
+	 * @return The normalized dates, never <code>null</code>.
+	 */
+	public static DateTime[] normalizeDates(DateTime anchor, DateTime[] dates)
+	{
+		if (dates == null || dates.length == 0)
+		{
+			return new DateTime[0];
+		}
+
+		DateTime[] result = new DateTime[dates.length];
+		for (int i = 0, count = dates.length; i < count; ++i)
+		{
+			DateTime date = dates[i];
+			if (anchor.isAllDay())
+			{
+				result[i] = date.isAllDay() ? date : date.toAllDay();
+			}
+			else if (date.isAllDay())
+			{
+				// an all-day date for a timed task, take the time of the anchor
+				result[i] = new DateTime(anchor.getTimeZone(), date.getYear(), date.getMonth(), date.getDayOfMonth(), anchor.getHours(),
+					anchor.getMinutes(), anchor.getSeconds());
+			}
+			else
+			{
+				result[i] = new DateTime(anchor.getTimeZone(), date.getTimestamp());
+			}
+		}
+		Arrays.sort(result, DATETIME_COMPARATOR);
+		return result;
+	}
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2015 Marten Gajda <marten@dmfs.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.dmfs.provider.tasks;
+
+import java.util.ArrayList;
+
+import org.dmfs.provider.tasks.TaskContract.Tasks;
+
+import android.content.ContentProviderOperation;
+import android.database.Cursor;
+import android.os.Build;
+import android.os.SystemClock;
+
+
+/**
+ * Tests that queries are not blocked by a large batch running on another thread. This requires write-ahead logging, so the test does nothing before API
+ * level 11.
+ *
+ * @author Marten Gajda <marten@dmfs.org>
+ */
+public class ConcurrentQueryTest extends TaskProviderTestCase
+{
+	/**
+	 * The number of inserts in the batch, enough to keep the batch busy for a while.
+	 */
+	private final static int BATCH_SIZE = 5000;
+
+	/**
+	 * The time in milliseconds a query may take while the batch is running. Without read connections a query would wait for the batch to yield, which it
+	 * does after {@link YieldPolicy} waited for 250 ms at the earliest.
+	 */
+	private final static long MAX_QUERY_TIME = 200;
+
+	private volatile Exception mBatchError;
+
+
+	public void testQueryDuringBatch() throws Exception
+	{
+		if (Build.VERSION.SDK_INT < 11)
+		{
+			// no write-ahead logging
+			return;
+		}
+
+		final ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>(BATCH_SIZE);
+		for (int i = 0; i < BATCH_SIZE; ++i)
+		{
+			operations.add(ContentProviderOperation.newInsert(Tasks.getContentUri(AUTHORITY)).withValue(Tasks.LIST_ID, mListId)
+				.withValue(Tasks.TITLE, "task " + i).build());
+		}
+
+		Thread batch = new Thread()
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					mResolver.applyBatch(AUTHORITY, operations);
+				}
+				catch (Exception e)
+				{
+					mBatchError = e;
+				}
+			}
+		};
+		batch.start();
+
+		// give the batch some time to begin its transaction
+		Thread.sleep(100);
+
+		int queries = 0;
+		long maxQueryTime = 0;
+		while (batch.isAlive())
+		{
+			long start = SystemClock.elapsedRealtime();
+			Cursor c = mResolver.query(Tasks.getContentUri(AUTHORITY), new String[] { Tasks._ID }, Tasks.LIST_ID + " = " + mListId, null, null);
+			c.getCount();
+			c.close();
+			long queryTime = SystemClock.elapsedRealtime() - start;
+
+			if (batch.isAlive())
+			{
+				// the query ran while the batch was running
+				maxQueryTime = Math.max(maxQueryTime, queryTime);
+				++queries;
+			}
+		}
+		batch.join();
+
+		assertNull(mBatchError);
+		assertTrue("the batch finished before a query could run", queries > 0);
+		assertTrue("a query took " + maxQueryTime + " ms while the batch was running", maxQueryTime <= MAX_QUERY_TIME);
+	}
+}
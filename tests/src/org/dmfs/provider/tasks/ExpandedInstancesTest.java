@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2015 Marten Gajda <marten@dmfs.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.dmfs.provider.tasks;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.dmfs.provider.tasks.TaskContract.Instances;
+import org.dmfs.provider.tasks.TaskContract.Tasks;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+
+
+/**
+ * Tests for instance queries with {@link Instances#EXPAND_START}.
+ *
+ * @author Marten Gajda <marten@dmfs.org>
+ */
+public class ExpandedInstancesTest extends TaskProviderTestCase
+{
+	private final static long ONE_HOUR = 3600L * 1000L;
+
+	private final static long ONE_DAY = 24L * ONE_HOUR;
+
+	/**
+	 * 20150101T100000Z
+	 */
+	private final static long ANCHOR = 1420106400000L;
+
+	private final static String[] PROJECTION = { Instances._ID, Instances.TASK_ID, Instances.INSTANCE_ORIGINAL_TIME };
+
+
+	public void testRDateBeforeStart()
+	{
+		ContentValues values = task(ANCHOR, ANCHOR + ONE_HOUR, null);
+		values.put(Tasks.RDATE, "20141225T100000Z");
+		long id = insertTask(values);
+
+		// the range ends before the start of the task
+		Cursor c = query(ANCHOR - 10 * ONE_DAY, ANCHOR - 5 * ONE_DAY, null);
+		try
+		{
+			assertEquals(1, c.getCount());
+			c.moveToFirst();
+			assertEquals(id, c.getLong(1));
+			assertEquals(ANCHOR - 7 * ONE_DAY, c.getLong(2));
+		}
+		finally
+		{
+			c.close();
+		}
+	}
+
+
+	public void testDefaultSortOrder()
+	{
+		// the first task starts first but becomes due last
+		long first = insertTask(task(ANCHOR, ANCHOR + 5 * ONE_HOUR, "FREQ=DAILY;COUNT=3"));
+		long second = insertTask(task(ANCHOR + ONE_HOUR, ANCHOR + 2 * ONE_HOUR, "FREQ=DAILY;COUNT=3"));
+
+		assertTaskOrder(query(ANCHOR, ANCHOR + 10 * ONE_DAY, null), second, first, second, first, second, first);
+	}
+
+
+	public void testDescendingSortOrder()
+	{
+		long first = insertTask(task(ANCHOR, ANCHOR + 5 * ONE_HOUR, "FREQ=DAILY;COUNT=2"));
+		long second = insertTask(task(ANCHOR + ONE_HOUR, ANCHOR + 2 * ONE_HOUR, "FREQ=DAILY;COUNT=2"));
+
+		assertTaskOrder(query(ANCHOR, ANCHOR + 10 * ONE_DAY, Instances.INSTANCE_START + " DESC"), second, first, second, first);
+	}
+
+
+	public void testTaskColumnSortOrderIsRejected()
+	{
+		insertTask(task(ANCHOR, ANCHOR + ONE_HOUR, "FREQ=DAILY;COUNT=2"));
+		try
+		{
+			query(ANCHOR, ANCHOR + 10 * ONE_DAY, Tasks.TITLE).close();
+			fail("sorting by a task column should be rejected");
+		}
+		catch (IllegalArgumentException e)
+		{
+			// expected
+		}
+	}
+
+
+	public void testIdsAreUniqueAndStable()
+	{
+		insertTask(task(ANCHOR, ANCHOR + ONE_HOUR, "FREQ=DAILY;COUNT=5"));
+		insertTask(task(ANCHOR, ANCHOR + ONE_HOUR, "FREQ=DAILY;COUNT=5"));
+
+		long[] ids = ids(query(ANCHOR, ANCHOR + 10 * ONE_DAY, null));
+		assertEquals(10, ids.length);
+
+		Set<Long> unique = new HashSet<Long>();
+		for (long id : ids)
+		{
+			assertTrue(id != 0);
+			unique.add(id);
+		}
+		assertEquals(ids.length, unique.size());
+
+		long[] requeried = ids(query(ANCHOR, ANCHOR + 10 * ONE_DAY, null));
+		for (int i = 0; i < ids.length; ++i)
+		{
+			assertEquals(ids[i], requeried[i]);
+		}
+	}
+
+
+	private Cursor query(long start, long end, String sortOrder)
+	{
+		Uri uri = Instances.getContentUri(AUTHORITY).buildUpon().appendQueryParameter(Instances.EXPAND_START, String.valueOf(start))
+			.appendQueryParameter(Instances.EXPAND_END, String.valueOf(end)).build();
+		return mResolver.query(uri, PROJECTION, Tasks.LIST_ID + " = " + mListId, null, sortOrder);
+	}
+
+
+	private static ContentValues task(long start, long due, String rrule)
+	{
+		ContentValues values = new ContentValues();
+		values.put(Tasks.TITLE, "task");
+		values.put(Tasks.DTSTART, start);
+		values.put(Tasks.DUE, due);
+		values.put(Tasks.TZ, "UTC");
+		values.put(Tasks.IS_ALLDAY, 0);
+		if (rrule != null)
+		{
+			values.put(Tasks.RRULE, rrule);
+		}
+		return values;
+	}
+
+
+	private static void assertTaskOrder(Cursor c, long... taskIds)
+	{
+		try
+		{
+			assertEquals(taskIds.length, c.getCount());
+			for (long taskId : taskIds)
+			{
+				assertTrue(c.moveToNext());
+				assertEquals(taskId, c.getLong(1));
+			}
+		}
+		finally
+		{
+			c.close();
+		}
+	}
+
+
+	private static long[] ids(Cursor c)
+	{
+		try
+		{
+			long[] result = new long[c.getCount()];
+			while (c.moveToNext())
+			{
+				assertFalse(c.isNull(0));
+				result[c.getPosition()] = c.getLong(0);
+			}
+			return result;
+		}
+		finally
+		{
+			c.close();
+		}
+	}
+}
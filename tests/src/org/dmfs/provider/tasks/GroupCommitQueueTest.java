@@ -0,0 +1,312 @@
+/*
+ * Copyright (C) 2015 Marten Gajda <marten@dmfs.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.dmfs.provider.tasks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.content.ContentValues;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+
+
+/**
+ * Tests for {@link GroupCommitQueue}. The tests run on an in-memory database with a single table.
+ *
+ * @author Marten Gajda <marten@dmfs.org>
+ */
+public class GroupCommitQueueTest extends AndroidTestCase
+{
+	private SQLiteOpenHelper mOpenHelper;
+
+	private GroupCommitQueue mQueue;
+
+	/**
+	 * The calls of {@link GroupCommitQueue#onGroupCommitted(boolean)}.
+	 */
+	private final AtomicInteger mGroupCommits = new AtomicInteger();
+
+	/**
+	 * Set if {@link GroupCommitQueue#onGroupCommitted(boolean)} has been called within a transaction.
+	 */
+	private volatile boolean mCommittedInTransaction;
+
+
+	@Override
+	protected void setUp() throws Exception
+	{
+		super.setUp();
+		mOpenHelper = new SQLiteOpenHelper(getContext(), null, null, 1)
+		{
+			@Override
+			public void onCreate(SQLiteDatabase db)
+			{
+				db.execSQL("create table values_table (value integer unique)");
+			}
+
+
+			@Override
+			public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion)
+			{
+			}
+		};
+
+		mQueue = new GroupCommitQueue(mOpenHelper)
+		{
+			@Override
+			protected long beginTransaction(SQLiteDatabase db)
+			{
+				db.beginTransaction();
+				return SystemClock.elapsedRealtime();
+			}
+
+
+			@Override
+			protected void endTransaction(SQLiteDatabase db, long transactionStart, boolean successful)
+			{
+				db.endTransaction();
+			}
+
+
+			@Override
+			protected void onGroupCommitted(boolean callerIsSyncAdapter)
+			{
+				mCommittedInTransaction |= mOpenHelper.getWritableDatabase().inTransaction();
+				mGroupCommits.incrementAndGet();
+			}
+		};
+	}
+
+
+	@Override
+	protected void tearDown() throws Exception
+	{
+		mOpenHelper.close();
+		super.tearDown();
+	}
+
+
+	public void testFailingWrite()
+	{
+		try
+		{
+			mQueue.submit(new GroupCommitQueue.Write<Object>(false)
+			{
+				@Override
+				Object execute(SQLiteDatabase db)
+				{
+					db.execSQL("insert into values_table (value) values (1)");
+					throw new IllegalStateException("invalid value");
+				}
+			});
+			fail("the write should have failed");
+		}
+		catch (IllegalStateException e)
+		{
+			// expected
+		}
+		assertEquals(0, mGroupCommits.get());
+		assertEquals(0, count());
+	}
+
+
+	public void testFailingWriteOfGroupIsRetriedAlone() throws Exception
+	{
+		final CountDownLatch blocked = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+
+		// the first write keeps its thread busy, so the following writes are combined into one group
+		Submitter first = new Submitter(new GroupCommitQueue.Write<Object>(false)
+		{
+			@Override
+			Object execute(SQLiteDatabase db)
+			{
+				blocked.countDown();
+				try
+				{
+					release.await();
+				}
+				catch (InterruptedException e)
+				{
+					throw new IllegalStateException("interrupted", e);
+				}
+				return null;
+			}
+		});
+		first.start();
+		blocked.await();
+
+		List<Submitter> group = new ArrayList<Submitter>();
+		Insert[] inserts = { new Insert(1), new Insert(2), new Insert(2), new Insert(3) };
+		for (Insert insert : inserts)
+		{
+			Submitter submitter = new Submitter(insert);
+			group.add(submitter);
+			submitter.start();
+		}
+
+		// give the other threads a chance to queue their writes
+		Thread.sleep(200);
+		release.countDown();
+
+		first.join();
+		assertNull(first.mError);
+		for (Submitter submitter : group)
+		{
+			submitter.join();
+		}
+
+		// the second insert of the value 2 violates the constraint, all the other inserts are committed
+		int failed = 0;
+		for (Submitter submitter : group)
+		{
+			if (submitter.mError != null)
+			{
+				assertTrue(submitter.mError instanceof RuntimeException);
+				++failed;
+			}
+		}
+		assertEquals(1, failed);
+		assertEquals(3, count());
+
+		// the group has been rolled back and its writes have been executed again, each in its own transaction
+		int executions = 0;
+		for (Insert insert : inserts)
+		{
+			executions += insert.mExecutions.get();
+		}
+		assertTrue(executions > inserts.length);
+		assertEquals(2, mGroupCommits.get());
+		assertFalse(mCommittedInTransaction);
+	}
+
+
+	public void testNestedWriteIsCommittedWithItsGroup()
+	{
+		final Insert nested = new Insert(2);
+		mQueue.submit(new GroupCommitQueue.Write<Object>(false)
+		{
+			@Override
+			Object execute(SQLiteDatabase db)
+			{
+				db.execSQL("insert into values_table (value) values (1)");
+				mQueue.submit(nested);
+				// nothing has been committed yet
+				assertEquals(0, mGroupCommits.get());
+				return null;
+			}
+		});
+
+		assertEquals(1, nested.mExecutions.get());
+		assertEquals(2, count());
+		assertEquals(1, mGroupCommits.get());
+		assertFalse(mCommittedInTransaction);
+	}
+
+
+	public void testFailingNestedWriteRollsBackItsGroup()
+	{
+		try
+		{
+			mQueue.submit(new GroupCommitQueue.Write<Object>(false)
+			{
+				@Override
+				Object execute(SQLiteDatabase db)
+				{
+					db.execSQL("insert into values_table (value) values (1)");
+					return mQueue.submit(new Insert(1));
+				}
+			});
+			fail("the write should have failed");
+		}
+		catch (RuntimeException e)
+		{
+			// expected
+		}
+		assertEquals(0, count());
+		assertEquals(0, mGroupCommits.get());
+	}
+
+
+	private long count()
+	{
+		return DatabaseUtils.queryNumEntries(mOpenHelper.getReadableDatabase(), "values_table");
+	}
+
+	/**
+	 * A write that inserts a value. Values are unique, inserting the same value twice fails.
+	 */
+	private final class Insert extends GroupCommitQueue.Write<Long>
+	{
+		private final int mValue;
+
+		private final AtomicInteger mExecutions = new AtomicInteger();
+
+
+		public Insert(int value)
+		{
+			super(false);
+			mValue = value;
+		}
+
+
+		@Override
+		Long execute(SQLiteDatabase db)
+		{
+			mExecutions.incrementAndGet();
+			ContentValues values = new ContentValues(1);
+			values.put("value", mValue);
+			return db.insertOrThrow("values_table", null, values);
+		}
+	}
+
+	/**
+	 * A thread that submits a {@link GroupCommitQueue.Write} and keeps the exception of the write, if any.
+	 */
+	private final class Submitter extends Thread
+	{
+		private final GroupCommitQueue.Write<?> mWrite;
+
+		private volatile Throwable mError;
+
+
+		public Submitter(GroupCommitQueue.Write<?> write)
+		{
+			mWrite = write;
+		}
+
+
+		@Override
+		public void run()
+		{
+			try
+			{
+				mQueue.submit(mWrite);
+			}
+			catch (Throwable e)
+			{
+				mError = e;
+			}
+		}
+	}
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright (C) 2015 Marten Gajda <marten@dmfs.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.dmfs.provider.tasks;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.dmfs.provider.tasks.FTSDatabaseHelper.FTSContentColumns;
+import org.dmfs.provider.tasks.FTSDatabaseHelper.NGramColumns;
+import org.dmfs.provider.tasks.FTSDatabaseHelper.SearchableTypes;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+import android.test.RenamingDelegatingContext;
+
+
+/**
+ * Tests for the incremental update of the n-gram relations of a task field in
+ * {@link FTSDatabaseHelper#updateEntry(SQLiteDatabase, NGramCache, long, int, String, String)} and its use of the {@link NGramCache}. After each update the
+ * field must be related to exactly the n-grams of the new text, no matter if the relations have been updated incrementally or replaced.
+ *
+ * @author Marten Gajda <marten@dmfs.org>
+ */
+public class NGramDiffTest extends AndroidTestCase
+{
+	private final static long TASK_ID = 42;
+
+	private final static String SQL_QUERY_NGRAMS = "SELECT " + NGramColumns.TEXT + " FROM " + FTSDatabaseHelper.FTS_CONTENT_TABLE + " JOIN "
+		+ FTSDatabaseHelper.FTS_NGRAM_TABLE + " ON (" + FTSContentColumns.NGRAM_ID + " = " + NGramColumns.NGRAM_ID + ") WHERE " + FTSContentColumns.TASK_ID
+		+ " = ? AND " + FTSContentColumns.TYPE + " = ?";
+
+	private RenamingDelegatingContext mContext;
+
+	private TaskDatabaseHelper mHelper;
+
+	private SQLiteDatabase mDb;
+
+	private NGramCache mCache;
+
+
+	@Override
+	protected void setUp() throws Exception
+	{
+		super.setUp();
+		mContext = new RenamingDelegatingContext(getContext(), "ngramdifftest.");
+		mHelper = new TaskDatabaseHelper(mContext, null);
+		mDb = mHelper.getWritableDatabase();
+		mCache = NGramCache.get(mDb);
+	}
+
+
+	@Override
+	protected void tearDown() throws Exception
+	{
+		mHelper.close();
+		mContext.deleteDatabase("tasks.db");
+		super.tearDown();
+	}
+
+
+	public void testInitialText()
+	{
+		update(SearchableTypes.TITLE, null, "Buy milk");
+		assertNGrams(SearchableTypes.TITLE, "Buy milk");
+	}
+
+
+	public void testSmallChange()
+	{
+		update(SearchableTypes.TITLE, null, "Buy milk and bread");
+		// most n-grams remain, so the relations are updated incrementally
+		update(SearchableTypes.TITLE, "Buy milk and bread", "Buy milk and butter");
+		assertNGrams(SearchableTypes.TITLE, "Buy milk and butter");
+	}
+
+
+	public void testLargeChange()
+	{
+		update(SearchableTypes.TITLE, null, "Buy milk");
+		// most n-grams are gone, so all relations are replaced
+		update(SearchableTypes.TITLE, "Buy milk", "Call the plumber");
+		assertNGrams(SearchableTypes.TITLE, "Call the plumber");
+	}
+
+
+	public void testRemovedText()
+	{
+		update(SearchableTypes.TITLE, null, "Buy milk");
+		update(SearchableTypes.TITLE, "Buy milk", null);
+		assertNGrams(SearchableTypes.TITLE, null);
+	}
+
+
+	public void testFieldsAreIndependent()
+	{
+		update(SearchableTypes.TITLE, null, "Buy milk");
+		update(SearchableTypes.DESCRIPTION, null, "Buy milk at the corner store");
+		update(SearchableTypes.TITLE, "Buy milk", "Buy more milk");
+
+		assertNGrams(SearchableTypes.TITLE, "Buy more milk");
+		assertNGrams(SearchableTypes.DESCRIPTION, "Buy milk at the corner store");
+	}
+
+
+	public void testRolledBackIdsAreNotReused()
+	{
+		mDb.beginTransaction();
+		try
+		{
+			// these n-grams are inserted and cached by a transaction that's rolled back, so their ids are invalid afterwards
+			FTSDatabaseHelper.updateEntry(mDb, mCache, TASK_ID, SearchableTypes.TITLE, null, "Quixotic zephyr");
+		}
+		finally
+		{
+			mDb.endTransaction();
+			mCache.rollback();
+		}
+
+		// take the ids of the rolled back n-grams
+		update(SearchableTypes.LOCATION, null, "Jukebox quartz");
+
+		update(SearchableTypes.TITLE, null, "Quixotic zephyr");
+		assertNGrams(SearchableTypes.TITLE, "Quixotic zephyr");
+		assertNGrams(SearchableTypes.LOCATION, "Jukebox quartz");
+
+		// an incremental update of the field must find the relations to delete
+		update(SearchableTypes.TITLE, "Quixotic zephyr", "Quixotic zephyrs");
+		assertNGrams(SearchableTypes.TITLE, "Quixotic zephyrs");
+	}
+
+
+	/**
+	 * Updates a field of the task in a committed transaction.
+	 */
+	private void update(int type, String oldText, String newText)
+	{
+		boolean success = false;
+		mDb.beginTransaction();
+		try
+		{
+			FTSDatabaseHelper.updateEntry(mDb, mCache, TASK_ID, type, oldText, newText);
+			mDb.setTransactionSuccessful();
+			success = true;
+		}
+		finally
+		{
+			mDb.endTransaction();
+			if (success)
+			{
+				mCache.commit();
+			}
+			else
+			{
+				mCache.rollback();
+			}
+		}
+	}
+
+
+	/**
+	 * Asserts that the given field of the task is related to exactly the n-grams of the given text.
+	 */
+	private void assertNGrams(int type, String text)
+	{
+		Set<String> ngrams = new HashSet<String>();
+		Cursor c = mDb.rawQuery(SQL_QUERY_NGRAMS, new String[] { String.valueOf(TASK_ID), String.valueOf(type) });
+		try
+		{
+			while (c.moveToNext())
+			{
+				assertTrue("duplicate relation to " + c.getString(0), ngrams.add(c.getString(0)));
+			}
+		}
+		finally
+		{
+			c.close();
+		}
+		assertEquals(FTSDatabaseHelper.ngramsOf(text), ngrams);
+	}
+}
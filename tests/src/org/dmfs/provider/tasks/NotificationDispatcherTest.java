@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2015 Marten Gajda <marten@dmfs.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.dmfs.provider.tasks;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+import android.content.ContentUris;
+import android.net.Uri;
+
+
+/**
+ * Tests for {@link NotificationDispatcher#collapse(Map)}.
+ *
+ * @author Marten Gajda <marten@dmfs.org>
+ */
+public class NotificationDispatcherTest extends TestCase
+{
+	private final static Uri ROOT = Uri.parse("content://org.dmfs.provider.tasks.test");
+
+	private final static Uri TASKS = Uri.withAppendedPath(ROOT, "tasks");
+
+	private final static Uri INSTANCES = Uri.withAppendedPath(ROOT, "instances");
+
+
+	public void testFewSiblingsAreKept()
+	{
+		Map<Uri, Boolean> uris = new HashMap<Uri, Boolean>();
+		for (int i = 1; i <= 3; ++i)
+		{
+			uris.put(ContentUris.withAppendedId(TASKS, i), false);
+		}
+		assertEquals(uris, NotificationDispatcher.collapse(uris));
+	}
+
+
+	public void testManySiblingsAreCollapsedToTheCollection()
+	{
+		Map<Uri, Boolean> uris = new HashMap<Uri, Boolean>();
+		for (int i = 1; i <= 20; ++i)
+		{
+			uris.put(ContentUris.withAppendedId(TASKS, i), i == 5);
+		}
+		uris.put(ContentUris.withAppendedId(INSTANCES, 1), false);
+
+		Map<Uri, Boolean> expected = new HashMap<Uri, Boolean>();
+		// one of the collapsed notifications requested a sync
+		expected.put(TASKS, true);
+		expected.put(ContentUris.withAppendedId(INSTANCES, 1), false);
+		assertEquals(expected, NotificationDispatcher.collapse(uris));
+	}
+
+
+	public void testCollectionsAreNotCollapsedToTheRoot()
+	{
+		Map<Uri, Boolean> uris = new HashMap<Uri, Boolean>();
+		String[] collections = { "tasklists", "tasks", "instances", "properties", "categories", "alarms", "syncstate", "search", "more", "even_more" };
+		for (String collection : collections)
+		{
+			uris.put(Uri.withAppendedPath(ROOT, collection), false);
+		}
+		assertEquals(uris, NotificationDispatcher.collapse(uris));
+	}
+
+
+	public void testCollapsedCollectionsAreNotCollapsedToTheRoot()
+	{
+		Map<Uri, Boolean> uris = new HashMap<Uri, Boolean>();
+		String[] collections = { "tasklists", "tasks", "instances", "properties", "categories", "alarms", "syncstate", "search", "more", "even_more" };
+		for (String collection : collections)
+		{
+			for (int i = 1; i <= 10; ++i)
+			{
+				uris.put(ContentUris.withAppendedId(Uri.withAppendedPath(ROOT, collection), i), false);
+			}
+		}
+
+		Map<Uri, Boolean> result = NotificationDispatcher.collapse(uris);
+		assertEquals(collections.length, result.size());
+		for (String collection : collections)
+		{
+			assertTrue(result.containsKey(Uri.withAppendedPath(ROOT, collection)));
+		}
+	}
+
+
+	public void testDescendantsOfNotifiedUrisAreDropped()
+	{
+		Map<Uri, Boolean> uris = new HashMap<Uri, Boolean>();
+		uris.put(TASKS, false);
+		uris.put(ContentUris.withAppendedId(TASKS, 1), true);
+		uris.put(TASKS.buildUpon().appendQueryParameter("caller_is_syncadapter", "true").build(), false);
+		uris.put(INSTANCES, false);
+
+		Map<Uri, Boolean> expected = new HashMap<Uri, Boolean>();
+		expected.put(TASKS, true);
+		expected.put(INSTANCES, false);
+		assertEquals(expected, NotificationDispatcher.collapse(uris));
+	}
+}
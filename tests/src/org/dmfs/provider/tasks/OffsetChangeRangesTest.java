@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2015 Marten Gajda <marten@dmfs.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.dmfs.provider.tasks;
+
+import java.util.TimeZone;
+
+import junit.framework.TestCase;
+
+
+/**
+ * Tests for {@link ContentOperation#offsetChangeRanges(TimeZone, TimeZone, long, long, int)}.
+ *
+ * @author Marten Gajda <marten@dmfs.org>
+ */
+public class OffsetChangeRangesTest extends TestCase
+{
+	/**
+	 * 20150101T000000Z
+	 */
+	private final static long START_2015 = 1420070400000L;
+
+	/**
+	 * 20160101T000000Z
+	 */
+	private final static long START_2016 = 1451606400000L;
+
+	private final static long ONE_YEAR = 365L * 24L * 3600L * 1000L;
+
+	/**
+	 * The start of daylight saving time in New York in 2015, 20150308T070000Z.
+	 */
+	private final static long NEW_YORK_DST_START = 1425798000000L;
+
+	/**
+	 * The end of daylight saving time in New York in 2015, 20151101T060000Z.
+	 */
+	private final static long NEW_YORK_DST_END = 1446357600000L;
+
+	private final static TimeZone NEW_YORK = TimeZone.getTimeZone("America/New_York");
+
+	/**
+	 * A fixed offset of UTC-5, which is the standard time of New York.
+	 */
+	private final static TimeZone FIXED_MINUS_FIVE = TimeZone.getTimeZone("Etc/GMT+5");
+
+
+	public void testSameTimeZone()
+	{
+		assertEquals(0, ContentOperation.offsetChangeRanges(NEW_YORK, NEW_YORK, START_2015, START_2016, 64).length);
+	}
+
+
+	public void testDaylightSavingTime()
+	{
+		assertRanges(ContentOperation.offsetChangeRanges(NEW_YORK, FIXED_MINUS_FIVE, START_2015, START_2016, 64), NEW_YORK_DST_START, NEW_YORK_DST_END);
+		// the result doesn't depend on the order of the time zones
+		assertRanges(ContentOperation.offsetChangeRanges(FIXED_MINUS_FIVE, NEW_YORK, START_2015, START_2016, 64), NEW_YORK_DST_START, NEW_YORK_DST_END);
+	}
+
+
+	public void testRangesAreClippedToTheSpan()
+	{
+		long from = NEW_YORK_DST_START + 1000;
+		long to = NEW_YORK_DST_END - 1000;
+		assertRanges(ContentOperation.offsetChangeRanges(NEW_YORK, FIXED_MINUS_FIVE, from, to, 64), from, to);
+	}
+
+
+	public void testAlwaysDifferent()
+	{
+		// Berlin and London switch at the same time, so their offsets are always an hour apart
+		assertRanges(ContentOperation.offsetChangeRanges(TimeZone.getTimeZone("Europe/Berlin"), TimeZone.getTimeZone("Europe/London"), START_2015,
+			START_2016, 64), START_2015, START_2016);
+	}
+
+
+	public void testTooManyRanges()
+	{
+		// three summers
+		assertEquals(6, ContentOperation.offsetChangeRanges(NEW_YORK, FIXED_MINUS_FIVE, START_2015, START_2015 + 3 * ONE_YEAR, 3).length);
+		assertNull(ContentOperation.offsetChangeRanges(NEW_YORK, FIXED_MINUS_FIVE, START_2015, START_2015 + 3 * ONE_YEAR, 2));
+	}
+
+
+	private static void assertRanges(long[] ranges, long... expected)
+	{
+		assertNotNull(ranges);
+		assertEquals(expected.length, ranges.length);
+		for (int i = 0; i < expected.length; ++i)
+		{
+			assertEquals(expected[i], ranges[i]);
+		}
+	}
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2015 Marten Gajda <marten@dmfs.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.dmfs.provider.tasks;
+
+import java.util.ArrayList;
+
+import junit.framework.TestCase;
+import android.content.ContentUris;
+import android.net.Uri;
+import android.os.Bundle;
+
+
+/**
+ * Tests for {@link ProviderOperationsLog}.
+ *
+ * @author Marten Gajda <marten@dmfs.org>
+ */
+@SuppressWarnings("deprecation")
+public class ProviderOperationsLogTest extends TestCase
+{
+	private final static Uri TASKS = Uri.parse("content://org.dmfs.provider.tasks.test/tasks");
+
+	private final static Uri LISTS = Uri.parse("content://org.dmfs.provider.tasks.test/tasklists");
+
+
+	public void testEmpty()
+	{
+		ProviderOperationsLog log = new ProviderOperationsLog();
+		assertTrue(log.isEmpty());
+
+		Bundle bundle = log.toBundle(false);
+		assertEquals(0, bundle.getLongArray(TaskContract.EXTRA_OPERATIONS_RANGES).length);
+		assertFalse(bundle.getBoolean(TaskContract.EXTRA_OPERATIONS_OVERFLOW));
+		assertTrue(bundle.getParcelableArrayList(TaskContract.EXTRA_OPERATIONS_URIS).isEmpty());
+		assertTrue(bundle.getIntegerArrayList(TaskContract.EXTRA_OPERATIONS).isEmpty());
+	}
+
+
+	public void testRanges()
+	{
+		ProviderOperationsLog log = new ProviderOperationsLog();
+		for (int id = 10; id < 20; ++id)
+		{
+			log.log(ProviderOperation.INSERT, ContentUris.withAppendedId(TASKS, id));
+		}
+		// a repeated operation doesn't add a range
+		log.log(ProviderOperation.INSERT, ContentUris.withAppendedId(TASKS, 15));
+		log.log(ProviderOperation.UPDATE, ContentUris.withAppendedId(LISTS, 3));
+		log.log(ProviderOperation.DELETE, TASKS);
+		log.log(ProviderOperation.INSERT, ContentUris.withAppendedId(TASKS, 20));
+
+		Bundle bundle = log.toBundle(false);
+		assertFalse(log.isEmpty());
+		assertFalse(bundle.getBoolean(TaskContract.EXTRA_OPERATIONS_OVERFLOW));
+
+		ArrayList<Uri> baseUris = bundle.getParcelableArrayList(TaskContract.EXTRA_OPERATIONS_BASE_URIS);
+		assertEquals(2, baseUris.size());
+		assertEquals(TASKS, baseUris.get(0));
+		assertEquals(LISTS, baseUris.get(1));
+
+		assertRanges(bundle.getLongArray(TaskContract.EXTRA_OPERATIONS_RANGES), //
+			ProviderOperation.INSERT.ordinal(), 0, 10, 19, //
+			ProviderOperation.UPDATE.ordinal(), 1, 3, 3, //
+			ProviderOperation.DELETE.ordinal(), 0, -1, -1, //
+			ProviderOperation.INSERT.ordinal(), 0, 20, 20);
+	}
+
+
+	public void testLegacyExtrasKeepOrderAndDuplicates()
+	{
+		ProviderOperationsLog log = new ProviderOperationsLog();
+		log.log(ProviderOperation.INSERT, ContentUris.withAppendedId(TASKS, 2));
+		log.log(ProviderOperation.INSERT, ContentUris.withAppendedId(TASKS, 1));
+		log.log(ProviderOperation.UPDATE, ContentUris.withAppendedId(TASKS, 2));
+		log.log(ProviderOperation.UPDATE, ContentUris.withAppendedId(TASKS, 2));
+
+		Bundle bundle = log.toBundle(true);
+		assertTrue(log.isEmpty());
+
+		ArrayList<Uri> uris = bundle.getParcelableArrayList(TaskContract.EXTRA_OPERATIONS_URIS);
+		ArrayList<Integer> operations = bundle.getIntegerArrayList(TaskContract.EXTRA_OPERATIONS);
+		assertEquals(4, uris.size());
+		assertEquals(4, operations.size());
+		assertEquals(ContentUris.withAppendedId(TASKS, 2), uris.get(0));
+		assertEquals(ContentUris.withAppendedId(TASKS, 1), uris.get(1));
+		assertEquals(ContentUris.withAppendedId(TASKS, 2), uris.get(2));
+		assertEquals(ContentUris.withAppendedId(TASKS, 2), uris.get(3));
+		assertEquals(ProviderOperation.INSERT.ordinal(), operations.get(0).intValue());
+		assertEquals(ProviderOperation.INSERT.ordinal(), operations.get(1).intValue());
+		assertEquals(ProviderOperation.UPDATE.ordinal(), operations.get(2).intValue());
+		assertEquals(ProviderOperation.UPDATE.ordinal(), operations.get(3).intValue());
+
+		// clearing the log doesn't modify the Bundle
+		log.log(ProviderOperation.DELETE, TASKS);
+		assertEquals(4, uris.size());
+	}
+
+
+	public void testOverflow()
+	{
+		ProviderOperationsLog log = new ProviderOperationsLog();
+		int count = 3000;
+		for (int i = 0; i < count; ++i)
+		{
+			// every other id, so each operation needs its own range
+			log.log(ProviderOperation.UPDATE, ContentUris.withAppendedId(TASKS, 2 * i));
+		}
+
+		Bundle bundle = log.toBundle(false);
+		assertTrue(bundle.getBoolean(TaskContract.EXTRA_OPERATIONS_OVERFLOW));
+		long[] ranges = bundle.getLongArray(TaskContract.EXTRA_OPERATIONS_RANGES);
+		assertTrue(ranges.length > 0);
+		assertTrue(ranges.length < count * 4);
+
+		// the legacy extras contain all operations regardless of the overflow
+		assertEquals(count, bundle.getParcelableArrayList(TaskContract.EXTRA_OPERATIONS_URIS).size());
+		assertEquals(count, bundle.getIntegerArrayList(TaskContract.EXTRA_OPERATIONS).size());
+	}
+
+
+	public void testAddAll()
+	{
+		ProviderOperationsLog pending = new ProviderOperationsLog();
+		pending.log(ProviderOperation.INSERT, ContentUris.withAppendedId(TASKS, 2));
+		pending.log(ProviderOperation.INSERT, ContentUris.withAppendedId(TASKS, 3));
+
+		ProviderOperationsLog log = new ProviderOperationsLog();
+		log.log(ProviderOperation.INSERT, ContentUris.withAppendedId(TASKS, 1));
+		log.addAll(pending);
+
+		Bundle bundle = log.toBundle(false);
+		assertRanges(bundle.getLongArray(TaskContract.EXTRA_OPERATIONS_RANGES), ProviderOperation.INSERT.ordinal(), 0, 1, 3);
+		assertEquals(3, bundle.getParcelableArrayList(TaskContract.EXTRA_OPERATIONS_URIS).size());
+	}
+
+
+	private static void assertRanges(long[] ranges, long... expected)
+	{
+		assertNotNull(ranges);
+		assertEquals(expected.length, ranges.length);
+		for (int i = 0; i < expected.length; ++i)
+		{
+			assertEquals(expected[i], ranges[i]);
+		}
+	}
+}
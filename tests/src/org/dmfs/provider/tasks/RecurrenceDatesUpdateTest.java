@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2015 Marten Gajda <marten@dmfs.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.dmfs.provider.tasks;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.dmfs.provider.tasks.TaskContract.Instances;
+import org.dmfs.provider.tasks.TaskContract.Tasks;
+import org.dmfs.rfc5545.DateTime;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+
+
+/**
+ * Tests for the incremental update of the instances of a recurring task when only its RDATEs or EXDATEs change.
+ *
+ * @author Marten Gajda <marten@dmfs.org>
+ */
+public class RecurrenceDatesUpdateTest extends TaskProviderTestCase
+{
+	private final static long ONE_DAY = 24L * 3600L * 1000L;
+
+	/**
+	 * The start of the tasks, 10 o'clock UTC today, so all instances are within the expansion horizon.
+	 */
+	private long mStart;
+
+
+	@Override
+	protected void setUp() throws Exception
+	{
+		super.setUp();
+		mStart = System.currentTimeMillis() / ONE_DAY * ONE_DAY + 10 * 3600L * 1000L;
+	}
+
+
+	public void testAddExDate()
+	{
+		long id = insertTask(task("FREQ=DAILY;COUNT=5"));
+		Map<Long, Long> before = instances(id);
+
+		update(id, Tasks.EXDATE, date(mStart + 2 * ONE_DAY));
+
+		Map<Long, Long> after = instances(id);
+		before.remove(mStart + 2 * ONE_DAY);
+		// the other instances have not been rebuilt, they keep their ids
+		assertEquals(before, after);
+	}
+
+
+	public void testRemoveExDate()
+	{
+		ContentValues values = task("FREQ=DAILY;COUNT=5");
+		values.put(Tasks.EXDATE, date(mStart + 2 * ONE_DAY));
+		long id = insertTask(values);
+		Map<Long, Long> before = instances(id);
+		assertEquals(4, before.size());
+
+		update(id, Tasks.EXDATE, null);
+
+		Map<Long, Long> after = instances(id);
+		assertEquals(5, after.size());
+		assertTrue(after.containsKey(mStart + 2 * ONE_DAY));
+		after.remove(mStart + 2 * ONE_DAY);
+		assertEquals(before, after);
+	}
+
+
+	public void testAddAndRemoveRDate()
+	{
+		long id = insertTask(task("FREQ=WEEKLY;COUNT=2"));
+		Map<Long, Long> before = instances(id);
+
+		update(id, Tasks.RDATE, date(mStart + 3 * ONE_DAY));
+
+		Map<Long, Long> after = instances(id);
+		assertEquals(3, after.size());
+		assertTrue(after.containsKey(mStart + 3 * ONE_DAY));
+		after.remove(mStart + 3 * ONE_DAY);
+		assertEquals(before, after);
+
+		update(id, Tasks.RDATE, null);
+		assertEquals(before, instances(id));
+	}
+
+
+	public void testRDateOnRuleInstanceIsKeptOnRemoval()
+	{
+		// the RDATE is an instance of the rule too, removing it must not remove the instance
+		ContentValues values = task("FREQ=DAILY;COUNT=5");
+		values.put(Tasks.RDATE, date(mStart + ONE_DAY));
+		long id = insertTask(values);
+		Map<Long, Long> before = instances(id);
+
+		update(id, Tasks.RDATE, null);
+
+		assertEquals(before, instances(id));
+	}
+
+
+	public void testManyChangesRebuildInstances()
+	{
+		long id = insertTask(task("FREQ=WEEKLY;COUNT=2"));
+
+		StringBuilder rdates = new StringBuilder();
+		for (int i = 1; i <= 20; ++i)
+		{
+			if (i > 1)
+			{
+				rdates.append(',');
+			}
+			rdates.append(date(mStart + i * ONE_DAY + 3600L * 1000L));
+		}
+		update(id, Tasks.RDATE, rdates.toString());
+
+		assertEquals(22, instances(id).size());
+	}
+
+
+	private ContentValues task(String rrule)
+	{
+		ContentValues values = new ContentValues();
+		values.put(Tasks.TITLE, "task");
+		values.put(Tasks.DTSTART, mStart);
+		values.put(Tasks.TZ, "UTC");
+		values.put(Tasks.IS_ALLDAY, 0);
+		values.put(Tasks.RRULE, rrule);
+		return values;
+	}
+
+
+	private void update(long id, String column, String value)
+	{
+		ContentValues values = new ContentValues();
+		values.put(column, value);
+		assertEquals(1, mResolver.update(ContentUris.withAppendedId(Tasks.getContentUri(AUTHORITY), id), values, null, null));
+	}
+
+
+	/**
+	 * Returns the instance ids of the given task mapped by their original time.
+	 */
+	private Map<Long, Long> instances(long taskId)
+	{
+		Map<Long, Long> result = new LinkedHashMap<Long, Long>();
+		Cursor c = mResolver.query(Instances.getContentUri(AUTHORITY), new String[] { Instances.INSTANCE_ORIGINAL_TIME, Instances._ID }, Instances.TASK_ID
+			+ " = " + taskId, null, Instances.INSTANCE_ORIGINAL_TIME);
+		try
+		{
+			while (c.moveToNext())
+			{
+				result.put(c.getLong(0), c.getLong(1));
+			}
+		}
+		finally
+		{
+			c.close();
+		}
+		return result;
+	}
+
+
+	private static String date(long timestamp)
+	{
+		return new DateTime(DateTime.UTC, timestamp).toString();
+	}
+}
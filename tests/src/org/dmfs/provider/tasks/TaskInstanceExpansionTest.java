@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2015 Marten Gajda <marten@dmfs.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.dmfs.provider.tasks;
+
+import org.dmfs.provider.tasks.TaskContract.Instances;
+import org.dmfs.provider.tasks.TaskContract.Tasks;
+import org.dmfs.provider.tasks.TaskDatabaseHelper.Tables;
+import org.dmfs.provider.tasks.model.ContentValuesTaskAdapter;
+import org.dmfs.provider.tasks.model.TaskAdapter;
+import org.dmfs.provider.tasks.processors.tasks.TaskInstancesProcessor;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+import android.test.RenamingDelegatingContext;
+
+
+/**
+ * Tests for {@link TaskInstancesProcessor#expandInstances(SQLiteDatabase, TaskAdapter, long, long)}.
+ *
+ * @author Marten Gajda <marten@dmfs.org>
+ */
+public class TaskInstanceExpansionTest extends AndroidTestCase
+{
+	private final static long ONE_DAY = 24L * 3600L * 1000L;
+
+	/**
+	 * 20150101T100000Z
+	 */
+	private final static long ANCHOR = 1420106400000L;
+
+	private RenamingDelegatingContext mContext;
+
+	private TaskDatabaseHelper mHelper;
+
+	private SQLiteDatabase mDb;
+
+
+	@Override
+	protected void setUp() throws Exception
+	{
+		super.setUp();
+		mContext = new RenamingDelegatingContext(getContext(), "expansiontest.");
+		mHelper = new TaskDatabaseHelper(mContext, null);
+		mDb = mHelper.getWritableDatabase();
+	}
+
+
+	@Override
+	protected void tearDown() throws Exception
+	{
+		mHelper.close();
+		mContext.deleteDatabase("tasks.db");
+		super.tearDown();
+	}
+
+
+	public void testContinuesAfterLastInstance()
+	{
+		TaskAdapter task = insertTask("FREQ=DAILY");
+
+		assertEquals(10, TaskInstancesProcessor.expandInstances(mDb, task, Long.MIN_VALUE, ANCHOR + 9 * ONE_DAY));
+		assertEquals(10, TaskInstancesProcessor.expandInstances(mDb, task, ANCHOR + 9 * ONE_DAY, ANCHOR + 19 * ONE_DAY));
+
+		assertEquals(20, instanceCount(task));
+		assertEquals(ANCHOR + 19 * ONE_DAY, lastInstance(task));
+	}
+
+
+	public void testDoesNotInsertTwice()
+	{
+		TaskAdapter task = insertTask("FREQ=DAILY");
+
+		assertEquals(10, TaskInstancesProcessor.expandInstances(mDb, task, Long.MIN_VALUE, ANCHOR + 9 * ONE_DAY));
+		assertEquals(0, TaskInstancesProcessor.expandInstances(mDb, task, ANCHOR + 9 * ONE_DAY, ANCHOR + 9 * ONE_DAY));
+
+		assertEquals(10, instanceCount(task));
+	}
+
+
+	public void testSkipsEndedSeries()
+	{
+		TaskAdapter task = insertTask("FREQ=DAILY;UNTIL=20150105T100000Z");
+
+		assertEquals(5, TaskInstancesProcessor.expandInstances(mDb, task, Long.MIN_VALUE, ANCHOR + 9 * ONE_DAY));
+		assertEquals(0, TaskInstancesProcessor.expandInstances(mDb, task, ANCHOR + 9 * ONE_DAY, ANCHOR + 19 * ONE_DAY));
+
+		assertEquals(5, instanceCount(task));
+	}
+
+
+	public void testSkipsExceptions()
+	{
+		TaskAdapter task = insertTask("FREQ=DAILY;COUNT=5");
+
+		ContentValues exception = new ContentValues();
+		exception.put(Tasks.LIST_ID, 1);
+		exception.put(Tasks.ORIGINAL_INSTANCE_ID, task.id());
+		exception.put(Tasks.ORIGINAL_INSTANCE_TIME, ANCHOR + 2 * ONE_DAY);
+		mDb.insert(Tables.TASKS, null, exception);
+
+		assertEquals(4, TaskInstancesProcessor.expandInstances(mDb, task, Long.MIN_VALUE, ANCHOR + 9 * ONE_DAY));
+	}
+
+
+	/**
+	 * Inserts a task in UTC that starts at {@link #ANCHOR} with the given recurrence rule.
+	 */
+	private TaskAdapter insertTask(String rrule)
+	{
+		ContentValues values = new ContentValues();
+		values.put(Tasks.LIST_ID, 1);
+		values.put(Tasks.DTSTART, ANCHOR);
+		values.put(Tasks.TZ, "UTC");
+		values.put(Tasks.IS_ALLDAY, 0);
+		values.put(Tasks.RRULE, rrule);
+		long id = mDb.insert(Tables.TASKS, null, values);
+		values.remove(Tasks.LIST_ID);
+		return new ContentValuesTaskAdapter(id, values);
+	}
+
+
+	private int instanceCount(TaskAdapter task)
+	{
+		Cursor c = mDb.query(Tables.INSTANCES, new String[] { "count(distinct " + Instances.INSTANCE_ORIGINAL_TIME + ")" },
+			Instances.TASK_ID + " = " + task.id(), null, null, null, null);
+		try
+		{
+			c.moveToFirst();
+			return c.getInt(0);
+		}
+		finally
+		{
+			c.close();
+		}
+	}
+
+
+	private long lastInstance(TaskAdapter task)
+	{
+		Cursor c = mDb.query(Tables.INSTANCES, new String[] { "max(" + Instances.INSTANCE_ORIGINAL_TIME + ")" }, Instances.TASK_ID + " = " + task.id(),
+			null, null, null, null);
+		try
+		{
+			c.moveToFirst();
+			return c.getLong(0);
+		}
+		finally
+		{
+			c.close();
+		}
+	}
+}
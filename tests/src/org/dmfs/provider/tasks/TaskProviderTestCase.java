@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2015 Marten Gajda <marten@dmfs.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.dmfs.provider.tasks;
+
+import org.dmfs.provider.tasks.TaskContract.TaskLists;
+import org.dmfs.provider.tasks.TaskContract.Tasks;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.net.Uri;
+import android.test.AndroidTestCase;
+
+
+/**
+ * Base class of tests that talk to the {@link TaskProvider} of the test package. Each test gets its own local task list, which is removed with all its tasks
+ * when the test ends.
+ *
+ * @author Marten Gajda <marten@dmfs.org>
+ */
+public abstract class TaskProviderTestCase extends AndroidTestCase
+{
+	/**
+	 * The authority of the {@link TaskProvider} in the manifest of the test package.
+	 */
+	protected final static String AUTHORITY = "org.dmfs.provider.tasks.test";
+
+	protected ContentResolver mResolver;
+
+	/**
+	 * The id of the task list of the current test.
+	 */
+	protected long mListId;
+
+
+	@Override
+	protected void setUp() throws Exception
+	{
+		super.setUp();
+		mResolver = getContext().getContentResolver();
+
+		ContentValues values = new ContentValues();
+		values.put(TaskLists.LIST_NAME, getName());
+		values.put(TaskLists.LIST_COLOR, 0xff00ff00);
+		values.put(TaskLists.VISIBLE, 1);
+		values.put(TaskLists.SYNC_ENABLED, 1);
+		mListId = ContentUris.parseId(mResolver.insert(asSyncAdapter(TaskLists.getContentUri(AUTHORITY)), values));
+	}
+
+
+	@Override
+	protected void tearDown() throws Exception
+	{
+		mResolver.delete(asSyncAdapter(ContentUris.withAppendedId(TaskLists.getContentUri(AUTHORITY), mListId)), null, null);
+		super.tearDown();
+	}
+
+
+	/**
+	 * Inserts a task with the given values into the list of the current test.
+	 *
+	 * @return The id of the new task.
+	 */
+	protected long insertTask(ContentValues values)
+	{
+		values.put(Tasks.LIST_ID, mListId);
+		return ContentUris.parseId(mResolver.insert(Tasks.getContentUri(AUTHORITY), values));
+	}
+
+
+	/**
+	 * Returns the given {@link Uri} with the parameters of a sync adapter of the local account.
+	 */
+	protected static Uri asSyncAdapter(Uri uri)
+	{
+		return uri.buildUpon().appendQueryParameter(TaskContract.CALLER_IS_SYNCADAPTER, "true")
+			.appendQueryParameter(TaskContract.ACCOUNT_NAME, TaskContract.LOCAL_ACCOUNT_NAME)
+			.appendQueryParameter(TaskContract.ACCOUNT_TYPE, TaskContract.LOCAL_ACCOUNT_TYPE).build();
+	}
+}
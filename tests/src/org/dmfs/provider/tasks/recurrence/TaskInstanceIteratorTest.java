@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2015 Marten Gajda <marten@dmfs.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.dmfs.provider.tasks.recurrence;
+
+import junit.framework.TestCase;
+
+import org.dmfs.provider.tasks.TaskContract.Tasks;
+import org.dmfs.provider.tasks.model.ContentValuesTaskAdapter;
+import org.dmfs.provider.tasks.model.TaskAdapter;
+
+import android.content.ContentValues;
+
+
+/**
+ * Tests for {@link TaskInstanceIterator}.
+ *
+ * @author Marten Gajda <marten@dmfs.org>
+ */
+public class TaskInstanceIteratorTest extends TestCase
+{
+	private final static long ONE_DAY = 24L * 3600L * 1000L;
+
+	/**
+	 * 20150101T100000Z
+	 */
+	private final static long ANCHOR = 1420106400000L;
+
+
+	public void testIteratesAnchorRuleAndRDates()
+	{
+		TaskAdapter task = task("FREQ=DAILY;COUNT=3", "20141231T100000Z,20150110T100000Z", null);
+		assertInstances(new TaskInstanceIterator(task, null), ANCHOR - ONE_DAY, ANCHOR, ANCHOR + ONE_DAY, ANCHOR + 2 * ONE_DAY, ANCHOR + 9 * ONE_DAY);
+	}
+
+
+	public void testSkipsExDatesAndExceptions()
+	{
+		TaskAdapter task = task("FREQ=DAILY;COUNT=5", null, "20150102T100000Z");
+		assertInstances(new TaskInstanceIterator(task, new long[] { ANCHOR + 3 * ONE_DAY }), ANCHOR, ANCHOR + 2 * ONE_DAY, ANCHOR + 4 * ONE_DAY);
+	}
+
+
+	public void testFastForwardRuleIterator()
+	{
+		TaskInstanceIterator iterator = new TaskInstanceIterator(task("FREQ=DAILY", null, null), null);
+		iterator.fastForward(ANCHOR + 5 * ONE_DAY);
+		assertEquals(ANCHOR + 5 * ONE_DAY, iterator.next().getTimestamp());
+		assertEquals(ANCHOR + 6 * ONE_DAY, iterator.next().getTimestamp());
+	}
+
+
+	public void testFastForwardCachedExpansion()
+	{
+		TaskInstanceIterator iterator = new TaskInstanceIterator(task("FREQ=DAILY", null, null), null, ANCHOR + 30 * ONE_DAY);
+		iterator.fastForward(ANCHOR + 5 * ONE_DAY + 1);
+		assertEquals(ANCHOR + 6 * ONE_DAY, iterator.next().getTimestamp());
+		assertEquals(ANCHOR + 7 * ONE_DAY, iterator.next().getTimestamp());
+	}
+
+
+	public void testFastForwardSkipsAnchorAndRDates()
+	{
+		TaskAdapter task = task("FREQ=WEEKLY;COUNT=3", "20141231T100000Z,20150103T100000Z,20150120T100000Z", null);
+		TaskInstanceIterator iterator = new TaskInstanceIterator(task, null);
+		iterator.fastForward(ANCHOR + 3 * ONE_DAY);
+		assertInstances(iterator, ANCHOR + 7 * ONE_DAY, ANCHOR + 14 * ONE_DAY, ANCHOR + 19 * ONE_DAY);
+	}
+
+
+	public void testFastForwardDoesNotGoBack()
+	{
+		TaskInstanceIterator iterator = new TaskInstanceIterator(task("FREQ=DAILY;COUNT=4", null, null), null);
+		assertEquals(ANCHOR, iterator.next().getTimestamp());
+		assertEquals(ANCHOR + ONE_DAY, iterator.next().getTimestamp());
+		iterator.fastForward(ANCHOR);
+		assertInstances(iterator, ANCHOR + 2 * ONE_DAY, ANCHOR + 3 * ONE_DAY);
+	}
+
+
+	public void testFastForwardBeyondLastInstance()
+	{
+		TaskInstanceIterator iterator = new TaskInstanceIterator(task("FREQ=DAILY;COUNT=4", "20150110T100000Z", null), null);
+		iterator.fastForward(ANCHOR + 20 * ONE_DAY);
+		assertFalse(iterator.hasNext());
+	}
+
+
+	public void testSeriesEndWithoutRule()
+	{
+		assertEquals(ANCHOR, TaskInstanceIterator.seriesEnd(task(null, null, null)));
+		assertEquals(ANCHOR + 9 * ONE_DAY, TaskInstanceIterator.seriesEnd(task(null, "20141231T100000Z,20150110T100000Z", null)));
+	}
+
+
+	public void testSeriesEndWithUntil()
+	{
+		assertEquals(ANCHOR + 9 * ONE_DAY, TaskInstanceIterator.seriesEnd(task("FREQ=DAILY;UNTIL=20150110T100000Z", null, null)));
+		assertEquals(ANCHOR + 19 * ONE_DAY, TaskInstanceIterator.seriesEnd(task("FREQ=DAILY;UNTIL=20150110T100000Z", "20150120T100000Z", null)));
+	}
+
+
+	public void testSeriesEndOfOpenRules()
+	{
+		assertEquals(Long.MAX_VALUE, TaskInstanceIterator.seriesEnd(task("FREQ=DAILY", null, null)));
+		// rules with a COUNT are not expanded to find their end
+		assertEquals(Long.MAX_VALUE, TaskInstanceIterator.seriesEnd(task("FREQ=DAILY;COUNT=10", null, null)));
+	}
+
+
+	public void testSeriesEndWithoutAnchor()
+	{
+		ContentValues values = new ContentValues();
+		values.put(Tasks.RRULE, "FREQ=DAILY");
+		assertEquals(Long.MIN_VALUE, TaskInstanceIterator.seriesEnd(new ContentValuesTaskAdapter(values)));
+	}
+
+
+	/**
+	 * Returns a task in UTC that starts at {@link #ANCHOR} with the given recurrence set.
+	 */
+	private static TaskAdapter task(String rrule, String rdates, String exdates)
+	{
+		ContentValues values = new ContentValues();
+		values.put(Tasks.DTSTART, ANCHOR);
+		values.put(Tasks.TZ, "UTC");
+		values.put(Tasks.IS_ALLDAY, 0);
+		values.put(Tasks.RRULE, rrule);
+		values.put(Tasks.RDATE, rdates);
+		values.put(Tasks.EXDATE, exdates);
+		return new ContentValuesTaskAdapter(values);
+	}
+
+
+	private static void assertInstances(TaskInstanceIterator iterator, long... expected)
+	{
+		for (long instance : expected)
+		{
+			assertTrue(iterator.hasNext());
+			assertEquals(instance, iterator.next().getTimestamp());
+		}
+		assertFalse(iterator.hasNext());
+	}
+}